@@ -0,0 +1,100 @@
+package spatial.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import spatial.kdpoint.KDPoint;
+import spatial.trees.ConcurrentPRQuadTree;
+import spatial.trees.PRQuadTree;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>JMH benchmarks of parallel ingest into a {@link ConcurrentPRQuadTree}, against a {@link PRQuadTree} behind a
+ * single lock. Every benchmark thread inserts points of its own region of the space and deletes them right away, so
+ * that the tree keeps its initial {@link #size} throughout. Run them with increasing thread counts to see how they
+ * scale, e.g. {@code ant bench -Dbench.args="ConcurrentPRQuadTreeBenchmark -t 4"}.</p>
+ *
+ * @see PRQuadTreeBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xss64m", "-Xmx8g"})
+@State(Scope.Benchmark)
+public class ConcurrentPRQuadTreeBenchmark {
+
+    static final int K = PRQuadTreeBenchmark.K;
+    static final int BOUND = PRQuadTreeBenchmark.BOUND;
+    // Regions are vertical bands of the space, one per thread, each of which spans many stripes
+    static final int REGIONS = 64;
+
+    @Param({"100000", "1000000"})
+    public int size;
+
+    @Param({"4"})
+    public int bucketingParam;
+
+    private ConcurrentPRQuadTree striped;
+    private PRQuadTree locked;
+    private final AtomicInteger nextRegion = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        striped = new ConcurrentPRQuadTree(K, bucketingParam);
+        locked = new PRQuadTree(K, bucketingParam);
+        for (KDPoint p : Datasets.generate(Datasets.Distribution.UNIFORM, size, 2, BOUND, 47)) {
+            striped.insert(p);
+            locked.insert(p);
+        }
+    }
+
+    /**
+     * The points that a single benchmark thread inserts: uniform within a band of the space of its own.
+     */
+    @State(Scope.Thread)
+    public static class Region {
+        private KDPoint[] points;
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setUp(ConcurrentPRQuadTreeBenchmark benchmark) {
+            int region = benchmark.nextRegion.getAndIncrement() % REGIONS;
+            int width = 2 * BOUND / REGIONS;
+            points = Datasets.generate(Datasets.Distribution.UNIFORM, KDTreeBenchmark.ANCHORS, 2, BOUND, 48 + region);
+            for (KDPoint p : points)
+                p.coords[0] = -BOUND + region * width + Math.floorMod(p.coords[0], width);
+        }
+
+        KDPoint next() {
+            return points[next++ & (points.length - 1)];
+        }
+    }
+
+    @Benchmark
+    public void stripedInsertThenDelete(Region region) {
+        KDPoint p = region.next();
+        striped.insert(p);
+        striped.delete(p);
+    }
+
+    @Benchmark
+    public void lockedInsertThenDelete(Region region) {
+        KDPoint p = region.next();
+        synchronized (locked) {
+            locked.insert(p);
+            locked.delete(p);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package spatial.bench;
+
+import spatial.kdpoint.KDPoint;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * <p>{@link Datasets} generates the reproducible point sets that the benchmarks of this package run on. Every
+ * generator draws integer coordinates from the half-open interval {@code [-bound, bound)} in every dimension, so that
+ * the same datasets can be loaded into {@link spatial.trees.KDTree}s and into {@link spatial.trees.PRQuadTree}s whose
+ * root spans that interval.</p>
+ */
+public final class Datasets {
+
+    /**
+     * The shapes of point sets that we benchmark against.
+     */
+    public enum Distribution {
+        /** Every coordinate uniformly distributed. */
+        UNIFORM,
+        /** Gaussian blobs around a few uniformly placed centers, like most real-world point sets. */
+        CLUSTERED,
+        /** Uniform points in lexicographic order; the worst case for trees built by successive insertions. */
+        SORTED,
+        /** Uniform draws from a pool of only 1% distinct points, so that every point repeats about 100 times. */
+        DUPLICATES
+    }
+
+    private static final int CLUSTERS = 32;
+
+    private Datasets() {
+    }
+
+    /**
+     * Generates a point set.
+     * @param distribution The shape of the point set.
+     * @param size The number of points to generate.
+     * @param dims The dimensionality of the points.
+     * @param bound Every coordinate lies in {@code [-bound, bound)}.
+     * @param seed The seed of the generator; equal seeds generate equal point sets.
+     * @return An array of size freshly allocated {@link KDPoint}s.
+     */
+    public static KDPoint[] generate(Distribution distribution, int size, int dims, int bound, long seed) {
+        Random r = new Random(seed);
+        KDPoint[] points = new KDPoint[size];
+        switch (distribution) {
+            case UNIFORM:
+                for (int i = 0; i < size; i++)
+                    points[i] = uniform(r, dims, bound);
+                break;
+            case CLUSTERED:
+                KDPoint[] centers = new KDPoint[CLUSTERS];
+                for (int c = 0; c < CLUSTERS; c++)
+                    centers[c] = uniform(r, dims, bound);
+                double sigma = bound / 64.0;
+                for (int i = 0; i < size; i++) {
+                    KDPoint center = centers[r.nextInt(CLUSTERS)];
+                    int[] coords = new int[dims];
+                    for (int d = 0; d < dims; d++) {
+                        long coord = Math.round(center.coords[d] + r.nextGaussian() * sigma);
+                        coords[d] = (int) Math.max(-bound, Math.min(bound - 1, coord));
+                    }
+                    points[i] = new KDPoint(coords);
+                }
+                break;
+            case SORTED:
+                for (int i = 0; i < size; i++)
+                    points[i] = uniform(r, dims, bound);
+                Arrays.sort(points, Datasets::lexicographic);
+                break;
+            case DUPLICATES:
+                KDPoint[] pool = new KDPoint[Math.max(1, size / 100)];
+                for (int i = 0; i < pool.length; i++)
+                    pool[i] = uniform(r, dims, bound);
+                for (int i = 0; i < size; i++)
+                    points[i] = new KDPoint(pool[r.nextInt(pool.length)]);
+                break;
+            default:
+                throw new RuntimeException("Unknown distribution: " + distribution + ".");
+        }
+        return points;
+    }
+
+    private static KDPoint uniform(Random r, int dims, int bound) {
+        int[] coords = new int[dims];
+        for (int d = 0; d < dims; d++)
+            coords[d] = r.nextInt(2 * bound) - bound;
+        return new KDPoint(coords);
+    }
+
+    private static int lexicographic(KDPoint p1, KDPoint p2) {
+        for (int d = 0; d < p1.coords.length; d++) {
+            int c = Integer.compare(p1.coords[d], p2.coords[d]);
+            if (c != 0)
+                return c;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,146 @@
+package spatial.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import spatial.kdpoint.KDPoint;
+import spatial.trees.KDTree;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>JMH benchmarks of the {@link KDTree} operations. Every benchmark runs against a tree of {@link #size} points of
+ * the given {@link #dims dimensionality} and {@link #distribution}, and measures the average time of a single
+ * operation. Queries are anchored at a fixed, cycled set of points drawn from the same distribution as the tree.</p>
+ *
+ * <p>The full parameter space is large; narrow it down on the command line, e.g.
+ * {@code ant bench -Dbench.args="KDTreeBenchmark.kNearestNeighbors -p size=1000000 -p dims=2"}.</p>
+ *
+ * @see PRQuadTreeBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xss64m", "-Xmx8g"})
+@State(Scope.Benchmark)
+public class KDTreeBenchmark {
+
+    /**
+     * How the benchmarked tree is built.
+     */
+    public enum Loader {
+        /** {@link KDTree#bulkLoad(int, java.util.Collection)}, which always produces a balanced tree. */
+        BULK_LOAD,
+        /**
+         * Successive {@link KDTree#insert(KDPoint)}s in dataset order. Combined with the
+         * {@link Datasets.Distribution#SORTED SORTED} distribution, this shows the cost of a degenerate tree.
+         */
+        INSERTION
+    }
+
+    static final int BOUND = 1 << 20;
+    static final int ANCHORS = 1 << 10; // Power of two, so that cycling through anchors is a mask
+    static final int EXPECTED_RANGE_RESULTS = 16;
+
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int size;
+
+    @Param({"2", "3", "8"})
+    public int dims;
+
+    @Param({"UNIFORM", "CLUSTERED", "SORTED", "DUPLICATES"})
+    public Datasets.Distribution distribution;
+
+    @Param({"BULK_LOAD", "INSERTION"})
+    public Loader loader;
+
+    private KDTree tree;
+    private KDPoint[] points, anchors, extras;
+    private double range;
+    private int next;
+
+    /**
+     * The neighbor counts of {@link #kNearestNeighbors(KNN, Blackhole)}, kept in their own state so that they
+     * only multiply the runs of that benchmark.
+     */
+    @State(Scope.Benchmark)
+    public static class KNN {
+        @Param({"1", "8", "64", "512"})
+        public int k;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        points = Datasets.generate(distribution, size, dims, BOUND, 47);
+        anchors = Datasets.generate(distribution, ANCHORS, dims, BOUND, 48);
+        extras = Datasets.generate(Datasets.Distribution.UNIFORM, ANCHORS, dims, BOUND, 49);
+        if (loader == Loader.BULK_LOAD) {
+            tree = KDTree.bulkLoad(dims, Arrays.asList(points));
+        } else {
+            tree = new KDTree(dims);
+            for (KDPoint p : points)
+                tree.insert(p);
+        }
+        // A radius whose enclosing cube holds about EXPECTED_RANGE_RESULTS points of a uniform dataset
+        range = BOUND * Math.pow((double) EXPECTED_RANGE_RESULTS / size, 1.0 / dims);
+        next = 0;
+    }
+
+    private KDPoint nextAnchor() {
+        return anchors[next++ & (ANCHORS - 1)];
+    }
+
+    @Benchmark
+    public boolean search() {
+        // Half of the searches hit and half of them miss
+        int i = next++;
+        return tree.search((i & 1) == 0 ? points[(i >>> 1) % size] : anchors[i & (ANCHORS - 1)]);
+    }
+
+    /**
+     * Inserts a point and deletes it right away, so that the tree keeps its parametrized size throughout.
+     */
+    @Benchmark
+    public void insertThenDelete() {
+        KDPoint p = extras[next++ & (ANCHORS - 1)];
+        tree.insert(p);
+        tree.delete(p);
+    }
+
+    /**
+     * Deletes a stored point and inserts it back right away, so that the tree keeps its parametrized size throughout.
+     */
+    @Benchmark
+    public void deleteThenInsert() {
+        KDPoint p = points[next++ % size];
+        tree.delete(p);
+        tree.insert(p);
+    }
+
+    @Benchmark
+    public void range(Blackhole bh) {
+        bh.consume(tree.range(nextAnchor(), range));
+    }
+
+    @Benchmark
+    public KDPoint nearestNeighbor() {
+        return tree.nearestNeighbor(nextAnchor());
+    }
+
+    @Benchmark
+    public void kNearestNeighbors(KNN knn, Blackhole bh) {
+        bh.consume(tree.kNearestNeighbors(knn.k, nextAnchor()));
+    }
+}
@@ -0,0 +1,135 @@
+package spatial.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import spatial.kdpoint.KDPoint;
+import spatial.trees.PRQuadTree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>JMH benchmarks of the {@link PRQuadTree} operations. Every benchmark runs against a tree built by inserting
+ * {@link #size} 2D points of the given {@link #distribution}, and measures the average time of a single operation.
+ * Since a {@link PRQuadTree} ignores duplicate insertions, a {@link Datasets.Distribution#DUPLICATES DUPLICATES} tree
+ * only stores about 1% of {@link #size} points. Queries are anchored at a fixed, cycled set of points drawn from the
+ * same distribution as the tree.</p>
+ *
+ * <p>The full parameter space is large; narrow it down on the command line, e.g.
+ * {@code ant bench -Dbench.args="PRQuadTreeBenchmark.range -p size=100000 -p bucketingParam=4"}.</p>
+ *
+ * @see KDTreeBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xss64m", "-Xmx8g"})
+@State(Scope.Benchmark)
+public class PRQuadTreeBenchmark {
+
+    // The root of the tree spans [-2^(K-1), 2^(K-1)), which is exactly the range of the generated coordinates
+    static final int K = 21;
+    static final int BOUND = 1 << (K - 1);
+    static final int ANCHORS = KDTreeBenchmark.ANCHORS;
+
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int size;
+
+    @Param({"UNIFORM", "CLUSTERED", "SORTED", "DUPLICATES"})
+    public Datasets.Distribution distribution;
+
+    @Param({"1", "4", "16"})
+    public int bucketingParam;
+
+    private PRQuadTree tree;
+    private KDPoint[] points, anchors, extras;
+    private double range;
+    private int next;
+
+    /**
+     * The neighbor counts of {@link #kNearestNeighbors(KNN, Blackhole)}, kept in their own state so that they
+     * only multiply the runs of that benchmark.
+     */
+    @State(Scope.Benchmark)
+    public static class KNN {
+        @Param({"1", "8", "64", "512"})
+        public int k;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        points = Datasets.generate(distribution, size, 2, BOUND, 47);
+        anchors = Datasets.generate(distribution, ANCHORS, 2, BOUND, 48);
+        tree = new PRQuadTree(K, bucketingParam);
+        for (KDPoint p : points)
+            tree.insert(p);
+        // insertThenDelete() must not delete points of the dataset, so only keep extra points that are not stored
+        List<KDPoint> absent = new ArrayList<>();
+        for (KDPoint p : Datasets.generate(Datasets.Distribution.UNIFORM, 2 * ANCHORS, 2, BOUND, 49))
+            if (absent.size() < ANCHORS && !tree.search(p))
+                absent.add(p);
+        extras = absent.toArray(new KDPoint[0]);
+        // A radius whose enclosing square holds about 16 points of a uniform dataset
+        range = BOUND * Math.sqrt((double) KDTreeBenchmark.EXPECTED_RANGE_RESULTS / size);
+        next = 0;
+    }
+
+    private KDPoint nextAnchor() {
+        return anchors[next++ & (ANCHORS - 1)];
+    }
+
+    @Benchmark
+    public boolean search() {
+        // Half of the searches hit and half of them miss
+        int i = next++;
+        return tree.search((i & 1) == 0 ? points[(i >>> 1) % size] : anchors[i & (ANCHORS - 1)]);
+    }
+
+    /**
+     * Inserts a point and deletes it right away, so that the tree keeps its parametrized size throughout.
+     */
+    @Benchmark
+    public void insertThenDelete() {
+        KDPoint p = extras[next++ % extras.length];
+        tree.insert(p);
+        tree.delete(p);
+    }
+
+    /**
+     * Deletes a stored point and inserts it back right away, so that the tree keeps its parametrized size throughout.
+     */
+    @Benchmark
+    public void deleteThenInsert() {
+        KDPoint p = points[next++ % size];
+        tree.delete(p);
+        tree.insert(p);
+    }
+
+    @Benchmark
+    public void range(Blackhole bh) {
+        bh.consume(tree.range(nextAnchor(), range));
+    }
+
+    @Benchmark
+    public KDPoint nearestNeighbor() {
+        return tree.nearestNeighbor(nextAnchor());
+    }
+
+    @Benchmark
+    public void kNearestNeighbors(KNN knn, Blackhole bh) {
+        bh.consume(tree.kNearestNeighbors(knn.k, nextAnchor()));
+    }
+}
@@ -4,16 +4,39 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import spatial.kdpoint.InvalidDimensionalityException;
+import spatial.kdpoint.HilbertCode;
 import spatial.kdpoint.KDPoint;
+import spatial.kdpoint.MortonCode;
 import spatial.knnutils.BoundedPriorityQueue;
+import spatial.knnutils.BoundedQueue;
+import spatial.knnutils.HeapBoundedPriorityQueue;
+import spatial.nodes.KDTreeNode;
 import spatial.nodes.PRQuadBlackNode;
 import spatial.nodes.PRQuadGrayNode;
 import spatial.nodes.PRQuadNode;
+import spatial.trees.ConcurrentKDTree;
+import spatial.trees.ConcurrentPRQuadTree;
 import spatial.trees.KDTree;
+import spatial.trees.LinearQuadTree;
+import spatial.trees.LoggedSpatialDictionary;
+import spatial.trees.MappedKDTree;
 import spatial.trees.PRQuadTree;
+import spatial.trees.PersistentKDTree;
+import spatial.trees.PointStoreKDTree;
 import visualization.CompactVizTree;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 import static spatial.kdpoint.KDPoint.*;
@@ -404,7 +427,7 @@ public class StudentTests {
                 expectedKnnPoints.enqueue(new KDPoint(-2, 6), 2.236068);
                 // expectedKnnPoints.enqueue(new KDPoint(-2.0, 7.0),2.236068);
 
-                BoundedPriorityQueue<KDPoint> knnPoints = prQuadTree.kNearestNeighbors(kNN, queryPt);
+                BoundedQueue<KDPoint> knnPoints = prQuadTree.kNearestNeighbors(kNN, queryPt);
                 assertEquals("Expected KNN result to have " + expectedKnnPoints.size()
                                 + " elements but it actually have "
                                 + knnPoints.size() + " elements", expectedKnnPoints.size(), knnPoints.size());
@@ -717,4 +740,1277 @@ public class StudentTests {
                 assertTrue(black.getClass().toString().contains("PRQuadBlackNode"));
 
         }
+
+        @Test
+        public void testKDTreeBulkLoadSortedInputIsBalanced() {
+                List<KDPoint> points = new ArrayList<>();
+                for (int i = 0; i < 1023; i++)
+                        points.add(new KDPoint(i, -i));
+                kdTree = KDTree.bulkLoad(points);
+                assertEquals("A bulk-loaded KD-Tree should count all of its points.", points.size(), kdTree.count());
+                assertEquals("A bulk-loaded KD-Tree over 1023 sorted points should be perfectly balanced.", 9,
+                                kdTree.height());
+                for (KDPoint p : points)
+                        assertTrue("A bulk-loaded KD-Tree could not find " + p + ".", kdTree.search(p));
+        }
+
+        @Test
+        public void testKDTreeBulkLoadAgreesWithInsertion() {
+                int dim = 3;
+                List<KDPoint> points = new ArrayList<>();
+                for (int i = 0; i < MAX_ITER; i++)
+                        points.add(new KDPoint(r.nextInt(10), r.nextInt(10), r.nextInt(10))); // Plenty of ties.
+                KDTree bulk = KDTree.bulkLoad(dim, points);
+                kdTree = new KDTree(dim);
+                for (KDPoint p : points)
+                        kdTree.insert(p);
+                for (int i = 0; i < MAX_ITER; i++) {
+                        KDPoint anchor = getRandomPoint(dim);
+                        assertEquals("Bulk-loaded and incrementally built KD-Trees disagree on a range query from " + anchor
+                                        + ".", kdTree.range(anchor, 50).size(), bulk.range(anchor, 50).size());
+                        KDPoint nn = bulk.nearestNeighbor(anchor);
+                        assertEquals("Bulk-loaded and incrementally built KD-Trees disagree on the NN of " + anchor + ".",
+                                        kdTree.nearestNeighbor(anchor).euclideanDistance(anchor),
+                                        nn.euclideanDistance(anchor), 0);
+                }
+                for (KDPoint p : points)
+                        bulk.delete(p);
+                assertTrue("Deleting every point of a bulk-loaded KD-Tree should leave it empty.", bulk.isEmpty());
+        }
+
+        @Test
+        public void testKDTreeParallelBulkLoadMatchesSequential() {
+                List<KDPoint> points = new ArrayList<>();
+                for (int i = 0; i < 5 * KDTreeNode.PARALLEL_BUILD_CUTOFF; i++)
+                        points.add(getRandomPoint(3));
+                ForkJoinPool pool = new ForkJoinPool(4);
+                try {
+                        KDTree parallel = KDTree.parallelBulkLoad(3, points, pool);
+                        kdTree = KDTree.bulkLoad(3, points);
+                        assertEquals("A parallel bulk load should count all of its points.", points.size(),
+                                        parallel.count());
+                        assertEquals("Parallel and sequential bulk loads should produce the same height.",
+                                        kdTree.height(), parallel.height());
+                        assertEquals("Parallel and sequential bulk loads should produce the same tree.",
+                                        kdTree.treeDescription(false), parallel.treeDescription(false));
+                } finally {
+                        pool.shutdown();
+                }
+        }
+
+        @Test
+        public void testBalancedKDTreeSortedInsertionsAndDeletions() {
+                int n = 4096;
+                double alpha = KDTree.DEFAULT_ALPHA;
+                // Weight balance along every updated path bounds the height by log_{1/alpha}(n).
+                double maxHeight = Math.log(n) / Math.log(1 / alpha) + 1;
+                kdTree = new KDTree(2, alpha);
+                for (int i = 0; i < n; i++) {
+                        kdTree.insert(new KDPoint(i, i / 2));
+                        assertTrue("A balanced KD-Tree grew to a height of " + kdTree.height() + " after " + (i + 1)
+                                        + " sorted insertions.", kdTree.height() <= maxHeight);
+                }
+                for (int i = 0; i < n; i++)
+                        assertTrue("A balanced KD-Tree lost " + new KDPoint(i, i / 2) + ".",
+                                        kdTree.search(new KDPoint(i, i / 2)));
+                for (int i = 0; i < n; i += 2) {
+                        kdTree.delete(new KDPoint(i, i / 2));
+                        assertTrue("A balanced KD-Tree grew to a height of " + kdTree.height() + " while deleting.",
+                                        kdTree.height() <= maxHeight);
+                }
+                assertEquals("Half of the points of the balanced KD-Tree should be left.", n / 2, kdTree.count());
+                for (int i = 0; i < n; i++)
+                        assertEquals("A balanced KD-Tree answered a search for " + new KDPoint(i, i / 2) + " wrongly.",
+                                        i % 2 == 1, kdTree.search(new KDPoint(i, i / 2)));
+        }
+
+        @Test
+        public void testPointStoreKDTreeAgreesWithKDTree() {
+                int dim = 3;
+                kdTree = new KDTree(dim);
+                PointStoreKDTree stored = new PointStoreKDTree(dim);
+                List<KDPoint> inserted = new ArrayList<>();
+                for (int i = 0; i < 20 * MAX_ITER; i++) {
+                        KDPoint p = new KDPoint(r.nextInt(20), r.nextInt(20), r.nextInt(20));
+                        if (r.nextInt(3) == 0 && !inserted.isEmpty()) {
+                                KDPoint victim = inserted.remove(r.nextInt(inserted.size()));
+                                kdTree.delete(victim);
+                                stored.delete(victim);
+                        } else {
+                                inserted.add(p);
+                                kdTree.insert(p);
+                                stored.insert(p);
+                        }
+                        assertEquals("A PointStoreKDTree and a KDTree disagree on their count.", kdTree.count(),
+                                        stored.count());
+                        assertEquals("A PointStoreKDTree and a KDTree disagree on their height.", kdTree.height(),
+                                        stored.height());
+                        assertEquals("A PointStoreKDTree and a KDTree disagree on a search for " + p + ".",
+                                        kdTree.search(p), stored.search(p));
+                }
+                for (int i = 0; i < MAX_ITER; i++) {
+                        KDPoint anchor = new KDPoint(r.nextInt(20), r.nextInt(20), r.nextInt(20));
+                        assertEquals("A PointStoreKDTree and a KDTree disagree on a range query from " + anchor + ".",
+                                        new HashSet<>(kdTree.range(anchor, 5)), new HashSet<>(stored.range(anchor, 5)));
+                        assertEquals("A PointStoreKDTree and a KDTree disagree on the NN of " + anchor + ".",
+                                        kdTree.nearestNeighbor(anchor).euclideanDistance(anchor),
+                                        stored.nearestNeighbor(anchor).euclideanDistance(anchor), 0);
+                        BoundedQueue<KDPoint> expected = kdTree.kNearestNeighbors(5, anchor);
+                        BoundedQueue<KDPoint> actual = stored.kNearestNeighbors(5, anchor);
+                        assertEquals("A PointStoreKDTree and a KDTree disagree on the 5-NN of " + anchor + ".",
+                                        expected.last().euclideanDistance(anchor), actual.last().euclideanDistance(anchor), 0);
+                }
+        }
+
+        @Test
+        public void testHeapBoundedPriorityQueueAgreesWithBoundedPriorityQueue() {
+                for (int capacity : new int[] { 1, 7, 64 }) {
+                        BoundedQueue<Integer> expected = new BoundedPriorityQueue<>(capacity);
+                        BoundedQueue<Integer> actual = new HeapBoundedPriorityQueue<>(capacity);
+                        for (int i = 0; i < 20 * MAX_ITER; i++) {
+                                if (r.nextInt(4) == 0) {
+                                        assertEquals("Heap-based queue dequeued a different element.", expected.dequeue(),
+                                                        actual.dequeue());
+                                } else {
+                                        // Few distinct priorities, so that plenty of ties have to be broken in FIFO order
+                                        double priority = r.nextInt(10);
+                                        expected.enqueue(i, priority);
+                                        actual.enqueue(i, priority);
+                                }
+                                assertEquals("Heap-based queue has a different size.", expected.size(), actual.size());
+                                assertEquals("Heap-based queue has a different last element.", expected.last(),
+                                                actual.last());
+                                assertEquals("Heap-based queue has a different worst priority.",
+                                                expected.worstPriority(), actual.worstPriority(), 0);
+                                if (i % 50 == 0) {
+                                        assertEquals("Heap-based queue has a different first element.", expected.first(),
+                                                        actual.first());
+                                        List<Integer> expectedOrder = new ArrayList<>(), actualOrder = new ArrayList<>();
+                                        expected.forEach(expectedOrder::add);
+                                        actual.forEach(actualOrder::add);
+                                        assertEquals("Heap-based queue iterates in a different order.", expectedOrder,
+                                                        actualOrder);
+                                }
+                        }
+                }
+        }
+
+        @Test
+        public void testBatchKNNMatchesSequentialKNN() {
+                kdTree = new KDTree(2);
+                prQuadTree = new PRQuadTree(10, 4);
+                for (int i = 0; i < 5000; i++) {
+                        KDPoint p = new KDPoint(r.nextInt(1024) - 512, r.nextInt(1024) - 512);
+                        kdTree.insert(p);
+                        prQuadTree.insert(p);
+                }
+                List<KDPoint> anchors = new ArrayList<>();
+                for (int i = 0; i < 1000; i++)
+                        anchors.add(new KDPoint(r.nextInt(1024) - 512, r.nextInt(1024) - 512));
+                ForkJoinPool pool = new ForkJoinPool(4);
+                try {
+                        List<List<KDPoint>> kdBatch = kdTree.kNearestNeighborsBatch(7, anchors, pool);
+                        List<List<KDPoint>> prBatch = prQuadTree.kNearestNeighborsBatch(7, anchors, pool);
+                        assertEquals("A batch should hold one result per anchor.", anchors.size(), kdBatch.size());
+                        assertEquals("A batch should hold one result per anchor.", anchors.size(), prBatch.size());
+                        for (int i = 0; i < anchors.size(); i++) {
+                                List<KDPoint> kdExpected = new ArrayList<>(), prExpected = new ArrayList<>();
+                                kdTree.kNearestNeighbors(7, anchors.get(i)).forEach(kdExpected::add);
+                                prQuadTree.kNearestNeighbors(7, anchors.get(i)).forEach(prExpected::add);
+                                assertEquals("Batch and single kNN queries disagree on the KD-Tree for anchor #" + i + ".",
+                                                kdExpected, kdBatch.get(i));
+                                assertEquals("Batch and single kNN queries disagree on the PR-QuadTree for anchor #" + i + ".",
+                                                prExpected, prBatch.get(i));
+                        }
+                } finally {
+                        pool.shutdown();
+                }
+                assertTrue("An empty batch should produce no results.",
+                                kdTree.kNearestNeighborsBatch(3, new ArrayList<>()).isEmpty());
+        }
+
+        @Test
+        public void testPRQuadTreeQueriesAgreeWithKDTree() {
+                for (int bucket : new int[] { 1, 3 }) {
+                        kdTree = new KDTree(2);
+                        prQuadTree = new PRQuadTree(8, bucket);
+                        for (int i = 0; i < 2000; i++) {
+                                KDPoint p = new KDPoint(r.nextInt(256) - 128, r.nextInt(256) - 128);
+                                if (!kdTree.search(p)) {
+                                        kdTree.insert(p);
+                                        prQuadTree.insert(p);
+                                }
+                        }
+                        for (int i = 0; i < MAX_ITER; i++) {
+                                // Anchors may lie outside of the space spanned by the PR-QuadTree
+                                KDPoint anchor = new KDPoint(r.nextInt(400) - 200, r.nextInt(400) - 200);
+                                assertEquals("A PR-QuadTree and a KD-Tree disagree on a range query from " + anchor + ".",
+                                                new HashSet<>(kdTree.range(anchor, 10)),
+                                                new HashSet<>(prQuadTree.range(anchor, 10)));
+                                assertEquals("A PR-QuadTree and a KD-Tree disagree on the NN of " + anchor + ".",
+                                                kdTree.nearestNeighbor(anchor).euclideanDistance(anchor),
+                                                prQuadTree.nearestNeighbor(anchor).euclideanDistance(anchor), 0);
+                                assertEquals("A PR-QuadTree and a KD-Tree disagree on the 9-NN of " + anchor + ".",
+                                                kdTree.kNearestNeighbors(9, anchor).last().euclideanDistance(anchor),
+                                                prQuadTree.kNearestNeighbors(9, anchor).last().euclideanDistance(anchor), 0);
+                        }
+                }
+        }
+
+        @Test
+        public void testHigherDimensionalPRQuadTreeAgreesWithKDTree() {
+                for (int dims = 1; dims <= 4; dims++) {
+                        kdTree = new KDTree(dims);
+                        prQuadTree = new PRQuadTree(7, 2, dims);
+                        List<KDPoint> inserted = new ArrayList<>();
+                        for (int i = 0; i < 1500; i++) {
+                                int[] coords = new int[dims];
+                                for (int d = 0; d < dims; d++)
+                                        coords[d] = r.nextInt(128) - 64;
+                                KDPoint p = new KDPoint(coords);
+                                if (!kdTree.search(p)) {
+                                        kdTree.insert(p);
+                                        prQuadTree.insert(p);
+                                        inserted.add(p);
+                                }
+                        }
+                        for (int i = 0; i < inserted.size() / 3; i++) {
+                                KDPoint victim = inserted.remove(r.nextInt(inserted.size()));
+                                kdTree.delete(victim);
+                                prQuadTree.delete(victim);
+                                assertFalse("A " + dims + "-D PR-tree still contains a deleted point.",
+                                                prQuadTree.search(victim));
+                        }
+                        assertEquals("A " + dims + "-D PR-tree has the wrong count.", kdTree.count(), prQuadTree.count());
+                        for (KDPoint p : inserted)
+                                assertTrue("A " + dims + "-D PR-tree lost " + p + ".", prQuadTree.search(p));
+                        for (int i = 0; i < MAX_ITER; i++) {
+                                int[] coords = new int[dims];
+                                for (int d = 0; d < dims; d++)
+                                        coords[d] = r.nextInt(128) - 64;
+                                KDPoint anchor = new KDPoint(coords);
+                                assertEquals("A " + dims + "-D PR-tree disagrees with a KD-Tree on a range query.",
+                                                new HashSet<>(kdTree.range(anchor, 12)),
+                                                new HashSet<>(prQuadTree.range(anchor, 12)));
+                                assertEquals("A " + dims + "-D PR-tree disagrees with a KD-Tree on the NN of " + anchor + ".",
+                                                kdTree.nearestNeighbor(anchor).euclideanDistance(anchor),
+                                                prQuadTree.nearestNeighbor(anchor).euclideanDistance(anchor), 0);
+                                assertEquals("A " + dims + "-D PR-tree disagrees with a KD-Tree on the 5-NN of " + anchor + ".",
+                                                kdTree.kNearestNeighbors(5, anchor).last().euclideanDistance(anchor),
+                                                prQuadTree.kNearestNeighbors(5, anchor).last().euclideanDistance(anchor), 0);
+                        }
+                }
+                PRQuadGrayNode octant = new PRQuadGrayNode(new KDPoint(0, 0, 0), 3, 1);
+                assertEquals("A 3-D gray node should have 8 children.", 8, octant.getChildren().length);
+        }
+
+        @Test
+        public void testPRQuadTreeRootGrowsToSpanOutlyingPoints() {
+                kdTree = new KDTree(2);
+                prQuadTree = new PRQuadTree(2, 2); // The root initially spans [-2, 2) in both dimensions
+                List<KDPoint> inserted = new ArrayList<>();
+                for (int i = 0; i < 1000; i++) {
+                        // Spread the points over ever larger scales, so that the root keeps growing
+                        int scale = 1 << r.nextInt(30);
+                        KDPoint p = new KDPoint(r.nextInt(scale) - r.nextInt(scale), r.nextInt(scale) - r.nextInt(scale));
+                        if (!kdTree.search(p)) {
+                                kdTree.insert(p);
+                                prQuadTree.insert(p);
+                                inserted.add(p);
+                        }
+                }
+                prQuadTree.insert(new KDPoint(Integer.MAX_VALUE, Integer.MIN_VALUE));
+                kdTree.insert(new KDPoint(Integer.MAX_VALUE, Integer.MIN_VALUE));
+                inserted.add(new KDPoint(Integer.MAX_VALUE, Integer.MIN_VALUE));
+                assertTrue("The root of the PR-QuadTree should have grown.", prQuadTree.getK() > 2);
+                assertEquals("A grown PR-QuadTree has the wrong count.", kdTree.count(), prQuadTree.count());
+                for (KDPoint p : inserted)
+                        assertTrue("A grown PR-QuadTree lost " + p + ".", prQuadTree.search(p));
+                for (int i = 0; i < MAX_ITER; i++) {
+                        KDPoint anchor = inserted.get(r.nextInt(inserted.size()));
+                        assertEquals("A grown PR-QuadTree and a KD-Tree disagree on a range query from " + anchor + ".",
+                                        new HashSet<>(kdTree.range(anchor, 1 << 20)),
+                                        new HashSet<>(prQuadTree.range(anchor, 1 << 20)));
+                        assertEquals("A grown PR-QuadTree and a KD-Tree disagree on the 5-NN of " + anchor + ".",
+                                        kdTree.kNearestNeighbors(5, anchor).last().euclideanDistance(anchor),
+                                        prQuadTree.kNearestNeighbors(5, anchor).last().euclideanDistance(anchor), 0);
+                }
+                for (KDPoint p : inserted) {
+                        prQuadTree.delete(p);
+                        assertFalse("A grown PR-QuadTree still contains a deleted point.", prQuadTree.search(p));
+                }
+                assertTrue("A grown PR-QuadTree should be empty after deleting everything.", prQuadTree.isEmpty());
+        }
+
+        // Recomputes the height and count of a PR-QuadTree subtree from scratch, as {height, count}
+        private static int[] recomputeHeightAndCount(PRQuadNode node) {
+                if (node == null)
+                        return new int[] { -1, 0 };
+                if (node instanceof PRQuadBlackNode)
+                        return new int[] { 0, node.count() };
+                int height = -1, count = 0;
+                for (PRQuadNode child : ((PRQuadGrayNode) node).getChildren()) {
+                        int[] hc = recomputeHeightAndCount(child);
+                        height = Math.max(height, hc[0]);
+                        count += hc[1];
+                }
+                int[] cached = { node.height(), node.count() };
+                assertArrayEquals("A gray node's cached height and count are stale.",
+                                new int[] { height + 1, count }, cached);
+                return cached;
+        }
+
+        @Test
+        public void testPRQuadGrayNodeCachesHeightAndCount() {
+                for (int bucket : new int[] { 1, 2, 4 }) {
+                        PRQuadNode root = new PRQuadGrayNode(new KDPoint(0, 0), 10, bucket);
+                        Set<KDPoint> inserted = new HashSet<>();
+                        for (int i = 0; i < 3000; i++) {
+                                KDPoint p = new KDPoint(r.nextInt(1024) - 512, r.nextInt(1024) - 512);
+                                if (root != null && !inserted.isEmpty() && r.nextInt(3) == 0) {
+                                        KDPoint victim = inserted.iterator().next();
+                                        inserted.remove(victim);
+                                        root = root.delete(victim);
+                                } else if (inserted.add(p)) {
+                                        root = (root == null) ? new PRQuadBlackNode(new KDPoint(0, 0), 10, bucket, p)
+                                                        : root.insert(p, 10);
+                                }
+                                if (i % 100 == 0)
+                                        assertEquals("The cached count of the root is wrong.", inserted.size(),
+                                                        recomputeHeightAndCount(root)[1]);
+                        }
+                }
+        }
+
+        @Test
+        public void testPRQuadTreeInsertIfAbsentAndDeleteIfPresent() {
+                for (int bucket : new int[] { 1, 3 }) {
+                        prQuadTree = new PRQuadTree(6, bucket);
+                        Set<KDPoint> expected = new HashSet<>();
+                        for (int i = 0; i < 5000; i++) {
+                                // A small space, so that most operations hit points that are already stored
+                                KDPoint p = new KDPoint(r.nextInt(48) - 24, r.nextInt(48) - 24);
+                                if (r.nextBoolean())
+                                        assertEquals("insertIfAbsent() misreported the insertion of " + p + ".",
+                                                        expected.add(p), prQuadTree.insertIfAbsent(p));
+                                else
+                                        assertEquals("deleteIfPresent() misreported the deletion of " + p + ".",
+                                                        expected.remove(p), prQuadTree.deleteIfPresent(p));
+                                assertEquals("The PR-QuadTree has the wrong count.", expected.size(), prQuadTree.count());
+                        }
+                        for (KDPoint p : expected)
+                                assertTrue("The PR-QuadTree lost " + p + ".", prQuadTree.search(p));
+                }
+        }
+
+        @Test
+        public void testKDTreeDeleteIfPresentAndDeleteAll() {
+                for (KDTree tree : new KDTree[] { new KDTree(3), new KDTree(3, KDTree.DEFAULT_ALPHA) }) {
+                        // A small space, so that the tree holds plenty of duplicates
+                        List<KDPoint> expected = new ArrayList<>();
+                        for (int i = 0; i < 3000; i++) {
+                                KDPoint p = new KDPoint(r.nextInt(20), r.nextInt(20), r.nextInt(20));
+                                tree.insert(p);
+                                expected.add(p);
+                        }
+                        for (int i = 0; i < 500; i++) {
+                                KDPoint p = new KDPoint(r.nextInt(24), r.nextInt(24), r.nextInt(24));
+                                assertEquals("deleteIfPresent() misreported the deletion of " + p + ".",
+                                                expected.remove(p), tree.deleteIfPresent(p));
+                        }
+                        // Batches with duplicates and with points that are not in the tree
+                        for (int round = 0; round < 10; round++) {
+                                List<KDPoint> batch = new ArrayList<>();
+                                for (int i = 0; i < 150; i++)
+                                        batch.add(new KDPoint(r.nextInt(24), r.nextInt(24), r.nextInt(24)));
+                                int deleted = 0;
+                                for (KDPoint p : batch)
+                                        if (expected.remove(p))
+                                                deleted++;
+                                assertEquals("deleteAll() misreported the number of deleted points.", deleted,
+                                                tree.deleteAll(batch));
+                                assertEquals("The KD-Tree has the wrong count after deleteAll().", expected.size(),
+                                                tree.count());
+                        }
+                        Map<KDPoint, Integer> copies = new HashMap<>();
+                        for (KDPoint p : expected)
+                                copies.merge(p, 1, Integer::sum);
+                        for (Map.Entry<KDPoint, Integer> e : copies.entrySet()) {
+                                for (int i = 0; i < e.getValue(); i++)
+                                        assertTrue("The KD-Tree lost a copy of " + e.getKey() + ".",
+                                                        tree.deleteIfPresent(e.getKey()));
+                                assertFalse("The KD-Tree holds too many copies of " + e.getKey() + ".",
+                                                tree.search(e.getKey()));
+                        }
+                        assertTrue("The KD-Tree should be empty.", tree.isEmpty());
+                }
+        }
+
+        @Test
+        public void testLinearQuadTreeAgreesWithPRQuadTreeAndKDTree() {
+                for (int bucket : new int[] { 1, 4 }) {
+                        for (int scale : new int[] { 1 << 6, 1 << 29 }) { // Coordinates that differ by less than 2^31
+                                kdTree = new KDTree(2);
+                                prQuadTree = new PRQuadTree(32, bucket); // The same implicit root as a LinearQuadTree
+                                LinearQuadTree linear = new LinearQuadTree(bucket);
+                                List<KDPoint> inserted = new ArrayList<>();
+                                for (int i = 0; i < 2000; i++) {
+                                        KDPoint p = new KDPoint(r.nextInt(scale) - r.nextInt(scale),
+                                                        r.nextInt(scale) - r.nextInt(scale));
+                                        if (!kdTree.search(p)) {
+                                                kdTree.insert(p);
+                                                inserted.add(p);
+                                        }
+                                        prQuadTree.insert(p);
+                                        linear.insert(p);
+                                }
+                                assertEquals("A LinearQuadTree has the wrong count.", kdTree.count(), linear.count());
+                                assertEquals("A LinearQuadTree and a PR-QuadTree disagree on the height.",
+                                                prQuadTree.height(), linear.height());
+                                assertEquals("A bulk-loaded LinearQuadTree has the wrong height.", linear.height(),
+                                                LinearQuadTree.bulkLoad(bucket, inserted).height());
+                                for (int i = 0; i < inserted.size() / 3; i++) {
+                                        KDPoint victim = inserted.remove(r.nextInt(inserted.size()));
+                                        kdTree.delete(victim);
+                                        linear.delete(victim);
+                                        assertFalse("A LinearQuadTree still contains a deleted point.",
+                                                        linear.search(victim));
+                                }
+                                assertEquals("A LinearQuadTree has the wrong count.", kdTree.count(), linear.count());
+                                for (KDPoint p : inserted)
+                                        assertTrue("A LinearQuadTree lost " + p + ".", linear.search(p));
+                                // Ranges that hold a handful of points on average
+                                double range = scale * 0.1;
+                                for (int i = 0; i < MAX_ITER; i++) {
+                                        KDPoint anchor = (i % 2 == 0) ? inserted.get(r.nextInt(inserted.size()))
+                                                        : new KDPoint(r.nextInt(scale) - r.nextInt(scale),
+                                                                        r.nextInt(scale) - r.nextInt(scale));
+                                        assertEquals("A LinearQuadTree and a KD-Tree disagree on a range query from "
+                                                        + anchor + ".", new HashSet<>(kdTree.range(anchor, range)),
+                                                        new HashSet<>(linear.range(anchor, range)));
+                                        assertEquals("A LinearQuadTree and a KD-Tree disagree on the NN of " + anchor + ".",
+                                                        kdTree.nearestNeighbor(anchor).euclideanDistance(anchor),
+                                                        linear.nearestNeighbor(anchor).euclideanDistance(anchor), 0);
+                                        assertEquals("A LinearQuadTree and a KD-Tree disagree on the 7-NN of " + anchor
+                                                        + ".", kdTree.kNearestNeighbors(7, anchor).last().euclideanDistance(anchor),
+                                                        linear.kNearestNeighbors(7, anchor).last().euclideanDistance(anchor), 0);
+                                }
+                        }
+                }
+        }
+
+        private KDPoint randomPoint(int dims) {
+                int[] coords = new int[dims];
+                for (int d = 0; d < dims; d++)
+                        coords[d] = r.nextBoolean() ? r.nextInt() : r.nextInt(64) - 32;
+                return new KDPoint(coords);
+        }
+
+        private static boolean inBox(KDPoint p, KDPoint[] box) {
+                for (int d = 0; d < p.coords.length; d++)
+                        if (p.coords[d] < box[0].coords[d] || p.coords[d] > box[1].coords[d])
+                                return false;
+                return true;
+        }
+
+        @Test
+        public void testMortonAndHilbertCodesRoundTrip() {
+                for (int dims = 1; dims <= 5; dims++) {
+                        for (int i = 0; i < MAX_ITER; i++) {
+                                KDPoint p = randomPoint(dims);
+                                assertEquals("A Morton key did not decode back to its point.", p,
+                                                MortonCode.decode(MortonCode.encode(p), dims));
+                                assertEquals("A Hilbert key did not decode back to its point.", p,
+                                                HilbertCode.decode(HilbertCode.encode(p), dims));
+                        }
+                }
+                for (int i = 0; i < MAX_ITER; i++) {
+                        // The 3D lookup table must agree with plain bit interleaving
+                        KDPoint p = randomPoint(3);
+                        long[] expected = new long[2];
+                        for (int bit = 0; bit < 96; bit++)
+                                if (((p.coords[bit % 3] ^ Integer.MIN_VALUE) >>> (bit / 3) & 1) != 0)
+                                        expected[1 - bit / 64] |= 1L << (bit % 64);
+                        assertArrayEquals("The 3D Morton key of " + p + " is wrong.", expected, MortonCode.encode(p));
+                }
+                // Keys of 1D points follow the signed order of the coordinates
+                int[] sorted = { Integer.MIN_VALUE, -5, -1, 0, 1, 5, Integer.MAX_VALUE };
+                for (int i = 1; i < sorted.length; i++) {
+                        KDPoint lower = new KDPoint(sorted[i - 1]), higher = new KDPoint(sorted[i]);
+                        assertTrue("Morton keys are out of order.",
+                                        MortonCode.compare(MortonCode.encode(lower), MortonCode.encode(higher)) < 0);
+                        assertTrue("Hilbert keys are out of order.",
+                                        MortonCode.compare(HilbertCode.encode(lower), HilbertCode.encode(higher)) < 0);
+                }
+        }
+
+        @Test
+        public void testHilbertCurveIsContinuous() {
+                for (int i = 0; i < MAX_ITER; i++) {
+                        long key = r.nextLong() & Long.MAX_VALUE; // So that key + 1 does not wrap around
+                        KDPoint p = HilbertCode.decode2D(key), q = HilbertCode.decode2D(key + 1);
+                        long steps = Math.abs((long) p.coords[0] - q.coords[0]) + Math.abs((long) p.coords[1] - q.coords[1]);
+                        assertEquals("Consecutive Hilbert keys should decode to neighboring points.", 1, steps);
+                        assertEquals("HilbertCode.encode2D() disagrees with HilbertCode.encode().", key,
+                                        HilbertCode.encode2D(p.coords[0], p.coords[1]));
+                }
+        }
+
+        @Test
+        public void testSpaceFillingCurveCellBounds() {
+                for (int dims = 2; dims <= 3; dims++) {
+                        for (int i = 0; i < MAX_ITER; i++) {
+                                KDPoint p = randomPoint(dims), q = randomPoint(dims);
+                                long[] mp = MortonCode.encode(p), mq = MortonCode.encode(q);
+                                KDPoint[] box = MortonCode.compare(mp, mq) <= 0 ? MortonCode.cellBounds(mp, mq, dims)
+                                                : MortonCode.cellBounds(mq, mp, dims);
+                                assertTrue("A Morton key range's box should hold its ends.", inBox(p, box) && inBox(q, box));
+                                long[] hp = HilbertCode.encode(p), hq = HilbertCode.encode(q);
+                                box = MortonCode.compare(hp, hq) <= 0 ? HilbertCode.cellBounds(hp, hq, dims)
+                                                : HilbertCode.cellBounds(hq, hp, dims);
+                                assertTrue("A Hilbert key range's box should hold its ends.", inBox(p, box) && inBox(q, box));
+                        }
+                }
+                // A single key is a cell of side 1, and a range over the whole space is the whole space
+                KDPoint p = new KDPoint(3, -7);
+                long[] key = MortonCode.encode(p);
+                assertArrayEquals("A single key's box should be its point.", new KDPoint[] { p, p },
+                                MortonCode.cellBounds(key, key, 2));
+                assertArrayEquals("The full key range's box should be the whole space.",
+                                new KDPoint[] { new KDPoint(Integer.MIN_VALUE, Integer.MIN_VALUE),
+                                                new KDPoint(Integer.MAX_VALUE, Integer.MAX_VALUE) },
+                                MortonCode.cellBounds(new long[] { 0 }, new long[] { -1 }, 2));
+        }
+
+        @Test
+        public void testKDTreeSnapshotsRestoreTheExactTree() throws IOException {
+                KDTree[] trees = { new KDTree(3), new KDTree(3, KDTree.DEFAULT_ALPHA), new KDTree(3) };
+                for (int t = 0; t < trees.length; t++) {
+                        KDTree tree = trees[t];
+                        int n = (t == 2) ? 0 : 3000; // Also snapshot an empty tree
+                        for (int i = 0; i < n; i++)
+                                tree.insert(new KDPoint(r.nextInt(100), r.nextInt(100), r.nextInt(100)));
+                        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                        tree.writeSnapshot(Channels.newChannel(bytes));
+                        KDTree restored = KDTree.readSnapshot(Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())));
+                        assertEquals("A restored KD-Tree has the wrong structure.", tree.treeDescription(false),
+                                        restored.treeDescription(false));
+                        assertEquals("A restored KD-Tree has the wrong count.", tree.count(), restored.count());
+                        assertEquals("A restored KD-Tree has the wrong height.", tree.height(), restored.height());
+                        assertEquals("A restored KD-Tree should balance itself like the original.", tree.isBalanced(),
+                                        restored.isBalanced());
+                }
+                try {
+                        KDTree.readSnapshot(Channels.newChannel(new ByteArrayInputStream(new byte[] { 1, 2, 3, 4, 5 })));
+                        fail("Reading garbage as a KD-Tree snapshot should have failed.");
+                } catch (IOException expected) {
+                        // Expected
+                }
+        }
+
+        @Test
+        public void testPRQuadTreeSnapshotsRestoreTheExactTree() throws IOException {
+                for (int dims = 2; dims <= 3; dims++) {
+                        prQuadTree = new PRQuadTree(4, 2, dims); // Small, so that the root has to grow
+                        for (int i = 0; i < 3000; i++) {
+                                int[] coords = new int[dims];
+                                for (int d = 0; d < dims; d++)
+                                        coords[d] = r.nextInt(1000) - 500;
+                                prQuadTree.insert(new KDPoint(coords));
+                        }
+                        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                        prQuadTree.writeSnapshot(Channels.newChannel(bytes));
+                        PRQuadTree restored = PRQuadTree.readSnapshot(
+                                        Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())));
+                        assertEquals("A restored PR-tree has the wrong structure.", prQuadTree.treeDescription(false),
+                                        restored.treeDescription(false));
+                        assertEquals("A restored PR-tree has the wrong count.", prQuadTree.count(), restored.count());
+                        assertEquals("A restored PR-tree has the wrong height.", prQuadTree.height(), restored.height());
+                        assertEquals("A restored PR-tree has the wrong k.", prQuadTree.getK(), restored.getK());
+                        // The restored tree must keep working like the original
+                        for (int i = 0; i < MAX_ITER; i++) {
+                                int[] coords = new int[dims];
+                                for (int d = 0; d < dims; d++)
+                                        coords[d] = r.nextInt(1000) - 500;
+                                KDPoint p = new KDPoint(coords);
+                                assertEquals("A restored PR-tree disagrees with the original.", prQuadTree.search(p),
+                                                restored.search(p));
+                                prQuadTree.delete(p);
+                                restored.delete(p);
+                        }
+                        assertEquals("A restored PR-tree has the wrong structure after deletions.",
+                                        prQuadTree.treeDescription(false), restored.treeDescription(false));
+                }
+        }
+
+        @Test
+        public void testMappedKDTreeAgreesWithKDTree() throws IOException {
+                Path file = Files.createTempFile("mapped", ".kdm");
+                try {
+                        for (int dims = 1; dims <= 3; dims++) {
+                                kdTree = new KDTree(dims);
+                                List<KDPoint> points = new ArrayList<>();
+                                for (int i = 0; i < 3000; i++) {
+                                        // A small grid, so that there are plenty of ties and duplicates
+                                        int[] coords = new int[dims];
+                                        for (int d = 0; d < dims; d++)
+                                                coords[d] = r.nextInt(40) - 20;
+                                        KDPoint p = new KDPoint(coords);
+                                        kdTree.insert(p);
+                                        points.add(p);
+                                }
+                                MappedKDTree.write(file, dims, points);
+                                MappedKDTree mapped = MappedKDTree.open(file);
+                                assertEquals("A MappedKDTree has the wrong count.", kdTree.count(), mapped.count());
+                                assertEquals("A MappedKDTree should be perfectly balanced.", 11, mapped.height());
+                                for (KDPoint p : points)
+                                        assertTrue("A MappedKDTree lost " + p + ".", mapped.search(p));
+                                for (int i = 0; i < MAX_ITER; i++) {
+                                        int[] coords = new int[dims];
+                                        for (int d = 0; d < dims; d++)
+                                                coords[d] = r.nextInt(50) - 25;
+                                        KDPoint anchor = new KDPoint(coords);
+                                        assertEquals("A MappedKDTree and a KD-Tree disagree on searching for " + anchor + ".",
+                                                        kdTree.search(anchor), mapped.search(anchor));
+                                        Collection<KDPoint> expected = kdTree.range(anchor, 3), actual = mapped.range(anchor, 3);
+                                        assertEquals("A MappedKDTree and a KD-Tree disagree on a range query from " + anchor + ".",
+                                                        expected.size(), actual.size());
+                                        assertEquals("A MappedKDTree and a KD-Tree disagree on a range query from " + anchor + ".",
+                                                        new HashSet<>(expected), new HashSet<>(actual));
+                                        assertEquals("A MappedKDTree and a KD-Tree disagree on the NN of " + anchor + ".",
+                                                        kdTree.nearestNeighbor(anchor).euclideanDistance(anchor),
+                                                        mapped.nearestNeighbor(anchor).euclideanDistance(anchor), 0);
+                                        assertEquals("A MappedKDTree and a KD-Tree disagree on the 20-NN of " + anchor + ".",
+                                                        kdTree.kNearestNeighbors(20, anchor).last().euclideanDistance(anchor),
+                                                        mapped.kNearestNeighbors(20, anchor).last().euclideanDistance(anchor), 0);
+                                }
+                        }
+                        // Squared distances between these exceed Long.MAX_VALUE
+                        KDPoint hi = new KDPoint(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+                        MappedKDTree.write(file, 3, Arrays.asList(new KDPoint(Integer.MIN_VALUE, Integer.MIN_VALUE,
+                                        Integer.MIN_VALUE), new KDPoint(0, 0, 0), hi));
+                        MappedKDTree wide = MappedKDTree.open(file);
+                        assertEquals("The NN of " + hi + " in a MappedKDTree is wrong.", new KDPoint(0, 0, 0), wide.nearestNeighbor(hi));
+                        assertEquals("The 1-NN of " + hi + " in a MappedKDTree is wrong.", new KDPoint(0, 0, 0),
+                                        wide.kNearestNeighbors(1, hi).first());
+                        assertEquals("A range query around " + hi + " in a MappedKDTree is wrong.",
+                                        Collections.singletonList(new KDPoint(0, 0, 0)), new ArrayList<>(wide.range(hi, 4e9)));
+                        MappedKDTree.write(file, 2, Collections.emptyList());
+                        MappedKDTree empty = MappedKDTree.open(file);
+                        assertTrue("An empty MappedKDTree should be empty.", empty.isEmpty());
+                        assertNull("An empty MappedKDTree has no nearest neighbor.", empty.nearestNeighbor(new KDPoint(0, 0)));
+                } finally {
+                        Files.delete(file);
+                }
+        }
+
+        @Test
+        public void testLoggedSpatialDictionaryReplaysItsLog() throws IOException, InterruptedException {
+                Path dir = Files.createTempDirectory("wal");
+                try {
+                        LoggedSpatialDictionary<KDTree> logged = LoggedSpatialDictionary.open(dir, () -> new KDTree(2),
+                                        LoggedSpatialDictionary.KD_TREE, true);
+                        // Threads that sync on every mutation share their fsyncs
+                        Thread[] threads = new Thread[4];
+                        for (int t = 0; t < threads.length; t++) {
+                                final int offset = 1000 * t;
+                                threads[t] = new Thread(() -> {
+                                        for (int i = 0; i < 250; i++)
+                                                logged.insert(new KDPoint(offset + i, -i));
+                                });
+                                threads[t].start();
+                        }
+                        for (Thread thread : threads)
+                                thread.join();
+                        for (int i = 0; i < 100; i++)
+                                logged.delete(new KDPoint(i, -i));
+                        logged.close();
+
+                        // Simulate a crash in the middle of appending a record
+                        Path log = dir.resolve("log-0");
+                        byte[] bytes = Files.readAllBytes(log);
+                        Files.write(log, Arrays.copyOfRange(bytes, 4, 11), StandardOpenOption.APPEND); // Header skipped
+                        LoggedSpatialDictionary<KDTree> reopened = LoggedSpatialDictionary.open(dir, () -> new KDTree(2),
+                                        LoggedSpatialDictionary.KD_TREE, true);
+                        assertEquals("A replayed log has the wrong count.", 900, reopened.count());
+                        for (int t = 0; t < threads.length; t++)
+                                for (int i = 0; i < 250; i++)
+                                        assertEquals("A replayed log has lost or kept the wrong points.", t > 0 || i >= 100,
+                                                        reopened.search(new KDPoint(1000 * t + i, -i)));
+
+                        // Compacting leaves a single generation behind, which replays to the same tree
+                        reopened.compact();
+                        reopened.insert(new KDPoint(7, 7));
+                        reopened.delete(new KDPoint(3000, 0));
+                        ArrayList<String> expected = reopened.dictionary().treeDescription(false);
+                        reopened.close();
+                        assertEquals("A compaction did not start a new generation.", 1, reopened.generation());
+                        assertEquals("A compaction left other generations behind.",
+                                        new HashSet<>(Arrays.asList("snapshot-1", "log-1")),
+                                        new HashSet<>(Arrays.asList(dir.toFile().list())));
+                        reopened = LoggedSpatialDictionary.open(dir, () -> new KDTree(2), LoggedSpatialDictionary.KD_TREE, true);
+                        assertEquals("A compacted log replays to the wrong tree.", expected,
+                                        reopened.dictionary().treeDescription(false));
+                        reopened.close();
+                } finally {
+                        for (File file : dir.toFile().listFiles())
+                                Files.delete(file.toPath());
+                        Files.delete(dir);
+                }
+        }
+
+        @Test
+        public void testLoggedSpatialDictionaryOnlyKeepsSyncedMutations() throws IOException {
+                Path dir = Files.createTempDirectory("wal");
+                try {
+                        LoggedSpatialDictionary<PRQuadTree> logged = LoggedSpatialDictionary.open(dir,
+                                        () -> new PRQuadTree(4, 2), LoggedSpatialDictionary.PR_QUAD_TREE, false);
+                        for (int i = 0; i < 50; i++)
+                                logged.insert(new KDPoint(i, 2 * i));
+                        logged.sync();
+                        for (int i = 50; i < 60; i++)
+                                logged.insert(new KDPoint(i, 2 * i));
+                        assertEquals("A logged PR-tree has the wrong count.", 60, logged.count());
+                        // Another process that opens the directory now only sees what was synced
+                        LoggedSpatialDictionary<PRQuadTree> other = LoggedSpatialDictionary.open(dir,
+                                        () -> new PRQuadTree(4, 2), LoggedSpatialDictionary.PR_QUAD_TREE, false);
+                        assertEquals("Unsynced mutations should not be durable yet.", 50, other.count());
+                        other.close();
+                        logged.close();
+                        other = LoggedSpatialDictionary.open(dir, () -> new PRQuadTree(4, 2),
+                                        LoggedSpatialDictionary.PR_QUAD_TREE, false);
+                        assertEquals("Closing should sync every mutation.", 60, other.count());
+                        assertEquals("A replayed PR-tree has the wrong structure.", logged.dictionary().treeDescription(false),
+                                        other.dictionary().treeDescription(false));
+                        other.close();
+                } finally {
+                        for (File file : dir.toFile().listFiles())
+                                Files.delete(file.toPath());
+                        Files.delete(dir);
+                }
+        }
+
+        @Test
+        public void testLoggedSpatialDictionaryFailsOnceItsLogCannotBeWritten() throws IOException {
+                Path dir = Files.createTempDirectory("wal");
+                try {
+                        LoggedSpatialDictionary<KDTree> logged = LoggedSpatialDictionary.open(dir, () -> new KDTree(2),
+                                        LoggedSpatialDictionary.KD_TREE, false);
+                        for (int i = 0; i < 20; i++)
+                                logged.insert(new KDPoint(i, -i));
+                        logged.sync();
+                        logged.insert(new KDPoint(100, 100));
+                        // A write from an interrupted thread closes the log's channel and fails
+                        Thread.currentThread().interrupt();
+                        try {
+                                logged.sync();
+                                fail("A sync whose write fails should throw.");
+                        } catch (IOException ignored) {
+                        } finally {
+                                Thread.interrupted();
+                        }
+                        try {
+                                logged.sync();
+                                fail("A sync after a failed one should throw.");
+                        } catch (IOException ignored) {
+                        }
+                        try {
+                                logged.insert(new KDPoint(200, 200));
+                                fail("A mutation after a failed sync should throw.");
+                        } catch (UncheckedIOException ignored) {
+                        }
+                        try {
+                                logged.compact();
+                                fail("A compaction after a failed sync should throw.");
+                        } catch (IOException ignored) {
+                        }
+                        assertTrue("A failed dictionary should still answer queries.", logged.search(new KDPoint(100, 100)));
+                        try {
+                                logged.close();
+                                fail("Closing a failed dictionary should throw.");
+                        } catch (IOException ignored) {
+                        }
+                        LoggedSpatialDictionary<KDTree> reopened = LoggedSpatialDictionary.open(dir, () -> new KDTree(2),
+                                        LoggedSpatialDictionary.KD_TREE, false);
+                        assertEquals("Only the mutations synced before the failure should be durable.", 20, reopened.count());
+                        reopened.close();
+                } finally {
+                        for (File file : dir.toFile().listFiles())
+                                Files.delete(file.toPath());
+                        Files.delete(dir);
+                }
+        }
+
+        @Test
+        public void testLoggedSpatialDictionaryStopsAtRecordsOfTheWrongDimensionality() throws IOException {
+                Path dir = Files.createTempDirectory("wal"), other = Files.createTempDirectory("wal");
+                try {
+                        LoggedSpatialDictionary<KDTree> logged = LoggedSpatialDictionary.open(dir, () -> new KDTree(2),
+                                        LoggedSpatialDictionary.KD_TREE, true);
+                        for (int i = 0; i < 20; i++)
+                                logged.insert(new KDPoint(i, i));
+                        try {
+                                logged.insert(new KDPoint(1, 2, 3));
+                                fail("A point of the wrong dimensionality should be rejected.");
+                        } catch (RuntimeException ignored) {
+                        }
+                        logged.close();
+                        Path log = dir.resolve("log-0");
+                        long intact = Files.size(log);
+
+                        // A crash left the header of a record with a huge dimensionality behind
+                        Files.write(log, new byte[] { 1, 0x40, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 }, StandardOpenOption.APPEND);
+                        logged = LoggedSpatialDictionary.open(dir, () -> new KDTree(2), LoggedSpatialDictionary.KD_TREE, true);
+                        assertEquals("A garbled log tail should be dropped.", 20, logged.count());
+                        assertEquals("A garbled log tail should be truncated.", intact, Files.size(log));
+                        logged.close();
+
+                        // So does an intact record of another dimensionality, and everything after it
+                        LoggedSpatialDictionary<KDTree> threeD = LoggedSpatialDictionary.open(other, () -> new KDTree(3),
+                                        LoggedSpatialDictionary.KD_TREE, true);
+                        threeD.insert(new KDPoint(1, 2, 3));
+                        threeD.close();
+                        byte[] record = Files.readAllBytes(other.resolve("log-0"));
+                        Files.write(log, Arrays.copyOfRange(record, 4, record.length), StandardOpenOption.APPEND);
+                        logged = LoggedSpatialDictionary.open(dir, () -> new KDTree(2), LoggedSpatialDictionary.KD_TREE, true);
+                        assertEquals("A record of the wrong dimensionality should end the log.", 20, logged.count());
+                        logged.insert(new KDPoint(-1, -1));
+                        logged.close();
+                        logged = LoggedSpatialDictionary.open(dir, () -> new KDTree(2), LoggedSpatialDictionary.KD_TREE, true);
+                        assertEquals("Records appended after a dropped tail should replay.", 21, logged.count());
+                        assertTrue("Records appended after a dropped tail should replay.", logged.search(new KDPoint(-1, -1)));
+                        logged.close();
+                } finally {
+                        for (Path d : new Path[] { dir, other }) {
+                                for (File file : d.toFile().listFiles())
+                                        Files.delete(file.toPath());
+                                Files.delete(d);
+                        }
+                }
+        }
+
+        @Test
+        public void testConcurrentKDTreeQueriesAreLinearizable() throws InterruptedException {
+                // The i-th point is closer to the origin than every point before it, so after j insertions, the NN of
+                // the origin is point j-1, its k nearest neighbors are points j-k to j-1, and every range query from
+                // it returns a suffix of those j points. Points far from the origin come and go in the background,
+                // so that deletions and rebuilds restructure the tree under the queries.
+                final int n = 3000, k = 5, offset = 10 * n;
+                final KDPoint origin = new KDPoint(0, 0);
+                ConcurrentKDTree tree = new ConcurrentKDTree(2, KDTree.DEFAULT_ALPHA);
+                AtomicInteger inserted = new AtomicInteger();
+                for (; inserted.get() < k; inserted.incrementAndGet())
+                        tree.insert(new KDPoint(offset - inserted.get(), inserted.get() % 7));
+                List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+                Thread writer = new Thread(() -> {
+                        Random random = new Random(47);
+                        List<KDPoint> far = new ArrayList<>();
+                        for (int i = k; i < n; i++) {
+                                tree.insert(new KDPoint(offset - i, i % 7));
+                                inserted.incrementAndGet();
+                                KDPoint noise = new KDPoint(3 * offset + random.nextInt(offset), random.nextInt(offset));
+                                tree.insert(noise);
+                                far.add(noise);
+                                if (random.nextBoolean())
+                                        tree.delete(far.remove(random.nextInt(far.size())));
+                        }
+                });
+                Thread[] readers = new Thread[4];
+                for (int t = 0; t < readers.length; t++) {
+                        readers[t] = new Thread(() -> {
+                                try {
+                                        while (inserted.get() < n) {
+                                                int before = inserted.get();
+                                                KDPoint nn = tree.nearestNeighbor(origin);
+                                                BoundedQueue<KDPoint> knn = tree.kNearestNeighbors(k, origin);
+                                                Collection<KDPoint> range = tree.range(origin, offset - n / 2 + 0.5);
+                                                // The writer counts an insertion after it returns, so one more may already be in
+                                                int after = inserted.get();
+                                                // Recover j from every answer, and check that it is a state between before and after
+                                                int j = offset - nn.coords[0] + 1;
+                                                assertTrue("The NN of the origin is not from a state during the query: " + j
+                                                                + " not in [" + before + ", " + (after + 1) + "].",
+                                                                j >= before && j <= after + 1);
+                                                Set<Integer> indices = new HashSet<>();
+                                                for (KDPoint p : knn)
+                                                        indices.add(offset - p.coords[0]);
+                                                j = Collections.max(indices) + 1;
+                                                assertTrue("The kNN of the origin are not from a state during the query.",
+                                                                j >= before && j <= after + 1 && indices.size() == k
+                                                                                && Collections.min(indices) == j - k);
+                                                // Points n/2 to j-1 are in range, so an empty range means that j <= n/2
+                                                j = range.isEmpty() ? Math.min(before, n / 2) : n / 2 + range.size();
+                                                assertTrue("A range query is not from a state during the query.",
+                                                                j >= before && j <= after + 1);
+                                                for (KDPoint p : range)
+                                                        assertTrue("A range query returned a point out of range.",
+                                                                        offset - p.coords[0] >= n / 2 && offset - p.coords[0] < j);
+                                        }
+                                } catch (Throwable e) {
+                                        failures.add(e);
+                                }
+                        });
+                        readers[t].start();
+                }
+                writer.start();
+                writer.join();
+                for (Thread reader : readers)
+                        reader.join();
+                if (!failures.isEmpty())
+                        throw new AssertionError(failures.get(0));
+                for (int i = 0; i < n; i++)
+                        assertTrue("A ConcurrentKDTree lost a point.", tree.search(new KDPoint(offset - i, i % 7)));
+                assertTrue("A ConcurrentKDTree has the wrong count.", tree.count() >= n && tree.count() <= 2 * n - k);
+        }
+
+        @Test
+        public void testPersistentKDTreeKeepsEveryVersion() {
+                for (PersistentKDTree empty : new PersistentKDTree[] { new PersistentKDTree(2),
+                                new PersistentKDTree(2, KDTree.DEFAULT_ALPHA) }) {
+                        kdTree = empty.isBalanced() ? new KDTree(2, KDTree.DEFAULT_ALPHA) : new KDTree(2);
+                        List<PersistentKDTree> versions = new ArrayList<>();
+                        List<KDPoint> points = new ArrayList<>();
+                        PersistentKDTree tree = empty;
+                        versions.add(tree);
+                        for (int i = 0; i < 500; i++) {
+                                // Sorted along x, the worst order for a tree that does not rebalance
+                                KDPoint p = new KDPoint(i, r.nextInt(50));
+                                tree = tree.insert(p);
+                                kdTree.insert(p);
+                                versions.add(tree);
+                                points.add(p);
+                        }
+                        for (int i = 0; i < 300; i++) {
+                                KDPoint p = points.get(r.nextInt(points.size()));
+                                tree = tree.delete(p);
+                                kdTree.delete(p);
+                                versions.add(tree);
+                                points.add(p); // Deleting it again below leaves the version as is
+                        }
+                        assertSame("Deleting an absent point should return the same version.", tree,
+                                        tree.delete(new KDPoint(-1, -1)));
+                        assertEquals("A persistent KD-Tree has the wrong count.", kdTree.count(), tree.count());
+                        assertEquals("A persistent KD-Tree has the wrong height.", kdTree.height(), tree.height());
+                        // Every version still holds exactly the points it was created with
+                        for (int v = 0; v <= 500; v += 25) {
+                                PersistentKDTree version = versions.get(v);
+                                assertEquals("An old version of a persistent KD-Tree changed.", v, version.count());
+                                for (int i = 0; i < 500; i++)
+                                        assertEquals("An old version of a persistent KD-Tree changed.", i < v,
+                                                        version.search(points.get(i)));
+                        }
+                        for (int i = 0; i < MAX_ITER; i++) {
+                                KDPoint anchor = new KDPoint(r.nextInt(600) - 50, r.nextInt(100) - 25);
+                                assertEquals("A persistent KD-Tree and a KD-Tree disagree on the NN of " + anchor + ".",
+                                                kdTree.nearestNeighbor(anchor).euclideanDistance(anchor),
+                                                tree.nearestNeighbor(anchor).euclideanDistance(anchor), 0);
+                                assertEquals("A persistent KD-Tree and a KD-Tree disagree on a range query from " + anchor + ".",
+                                                new HashSet<>(kdTree.range(anchor, 10)), new HashSet<>(tree.range(anchor, 10)));
+                        }
+                        // Rolling back a batch is just a matter of keeping the version it started from
+                        PersistentKDTree batch = tree;
+                        for (int i = 0; i < 100; i++)
+                                batch = batch.insert(new KDPoint(-i, -i));
+                        assertEquals("A batch was not applied.", tree.count() + 100, batch.count());
+                        assertFalse("A batch leaked into the version it started from.", tree.search(new KDPoint(-5, -5)));
+                }
+        }
+
+        @Test
+        public void testConcurrentPRQuadTreeAgreesWithPRQuadTree() {
+                for (int dims = 2; dims <= 3; dims++) {
+                        for (int bucket : new int[] { 1, 3 }) {
+                                prQuadTree = new PRQuadTree(10, bucket, dims);
+                                ConcurrentPRQuadTree striped = new ConcurrentPRQuadTree(10, bucket, dims, 2);
+                                List<KDPoint> points = new ArrayList<>();
+                                for (int i = 0; i < 2000; i++) {
+                                        int[] coords = new int[dims];
+                                        for (int d = 0; d < dims; d++)
+                                                coords[d] = (int) (r.nextGaussian() * 100) % 512; // Denser around the origin
+                                        KDPoint p = new KDPoint(coords);
+                                        prQuadTree.insert(p);
+                                        striped.insert(p);
+                                        points.add(p);
+                                }
+                                for (int i = 0; i < 700; i++) {
+                                        KDPoint p = points.get(r.nextInt(points.size()));
+                                        prQuadTree.delete(p);
+                                        striped.delete(p);
+                                }
+                                assertEquals("A striped PR-tree has the wrong count.", prQuadTree.count(), striped.count());
+                                assertEquals("A striped PR-tree has the wrong height.", prQuadTree.height(), striped.height());
+                                for (KDPoint p : points)
+                                        assertEquals("A striped PR-tree and a PR-tree disagree on searching for " + p + ".",
+                                                        prQuadTree.search(p), striped.search(p));
+                                for (int i = 0; i < MAX_ITER; i++) {
+                                        KDPoint anchor = points.get(r.nextInt(points.size()));
+                                        assertEquals("A striped PR-tree and a PR-tree disagree on a range query from " + anchor + ".",
+                                                        new HashSet<>(prQuadTree.range(anchor, 40)),
+                                                        new HashSet<>(striped.range(anchor, 40)));
+                                        assertEquals("A striped PR-tree and a PR-tree disagree on the NN of " + anchor + ".",
+                                                        prQuadTree.nearestNeighbor(anchor).euclideanDistance(anchor),
+                                                        striped.nearestNeighbor(anchor).euclideanDistance(anchor), 0);
+                                        assertEquals("A striped PR-tree and a PR-tree disagree on the 10-NN of " + anchor + ".",
+                                                        prQuadTree.kNearestNeighbors(10, anchor).last().euclideanDistance(anchor),
+                                                        striped.kNearestNeighbors(10, anchor).last().euclideanDistance(anchor), 0);
+                                }
+                        }
+                }
+                // The largest root spans every int coordinate, and no larger one is allowed
+                ConcurrentPRQuadTree widest = new ConcurrentPRQuadTree(ConcurrentPRQuadTree.MAX_K, 1);
+                KDPoint[] corners = { new KDPoint(Integer.MIN_VALUE, Integer.MIN_VALUE),
+                                new KDPoint(Integer.MAX_VALUE, Integer.MIN_VALUE), new KDPoint(Integer.MIN_VALUE, Integer.MAX_VALUE),
+                                new KDPoint(Integer.MAX_VALUE, Integer.MAX_VALUE), ZERO };
+                for (KDPoint corner : corners)
+                        widest.insert(corner);
+                for (KDPoint corner : corners)
+                        assertTrue("The widest striped PR-tree lost " + corner + ".", widest.search(corner));
+                assertEquals("The widest striped PR-tree has the wrong count.", corners.length, widest.count());
+                try {
+                        new ConcurrentPRQuadTree(ConcurrentPRQuadTree.MAX_K + 1, 1);
+                        fail("A striped PR-tree wider than the int range should be rejected.");
+                } catch (RuntimeException ignored) {
+                }
+        }
+
+        @Test
+        public void testConcurrentPRQuadTreeParallelIngest() throws InterruptedException {
+                ConcurrentPRQuadTree striped = new ConcurrentPRQuadTree(12, 2);
+                prQuadTree = new PRQuadTree(12, 2);
+                // Every thread ingests a mix of points of its own and points that all threads share, and deletes
+                // some of its own points again
+                final int threads = 4, perThread = 5000;
+                List<List<KDPoint>> batches = new ArrayList<>();
+                // Points are distinct across batches, so that only thread 0 ever deletes a point of the shared batch
+                Set<KDPoint> seen = new HashSet<>();
+                for (int t = 0; t < threads; t++) {
+                        List<KDPoint> batch = new ArrayList<>();
+                        while (batch.size() < perThread) {
+                                KDPoint p = new KDPoint(r.nextInt(4096) - 2048, r.nextInt(4096) - 2048);
+                                if (seen.add(p))
+                                        batch.add(p);
+                        }
+                        batches.add(batch);
+                }
+                List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+                Thread[] workers = new Thread[threads];
+                for (int t = 0; t < threads; t++) {
+                        List<KDPoint> batch = batches.get(t), shared = batches.get(0);
+                        workers[t] = new Thread(() -> {
+                                try {
+                                        for (int i = 0; i < perThread; i++) {
+                                                striped.insert(batch.get(i));
+                                                striped.insert(shared.get(i));
+                                                if (i % 3 == 0)
+                                                        striped.delete(batch.get(i / 2));
+                                        }
+                                } catch (Throwable e) {
+                                        failures.add(e);
+                                }
+                        });
+                        workers[t].start();
+                }
+                for (Thread worker : workers)
+                        worker.join();
+                if (!failures.isEmpty())
+                        throw new AssertionError(failures.get(0));
+                // Deletions race with the insertions of the same points by other threads, so check the final
+                // state against a sequential tree that holds whatever the striped tree ended up holding
+                for (List<KDPoint> batch : batches)
+                        for (KDPoint p : batch)
+                                if (striped.search(p))
+                                        prQuadTree.insert(p);
+                assertEquals("A striped PR-tree has the wrong count after a parallel ingest.", prQuadTree.count(),
+                                striped.count());
+                assertEquals("A striped PR-tree has the wrong height after a parallel ingest.", prQuadTree.height(),
+                                striped.height());
+                for (int i = 0; i < perThread; i++)
+                        assertTrue("A striped PR-tree lost a point of the shared batch.",
+                                        striped.search(batches.get(0).get(i)) || i < perThread / 2);
+        }
+
+        @Test
+        public void testNearestNeighborIteratorsBrowseByDistance() {
+                kdTree = new KDTree(2, KDTree.DEFAULT_ALPHA);
+                PRQuadTree prTree = new PRQuadTree(4, 3);
+                List<KDPoint> points = new ArrayList<>();
+                Set<KDPoint> seen = new HashSet<>();
+                for (int i = 0; i < 2000; i++) {
+                        // A small space, so that there are plenty of ties; PR-QuadTrees hold no duplicates, though
+                        KDPoint p = new KDPoint(r.nextInt(100) - 50, r.nextInt(100) - 50);
+                        if (!seen.add(p))
+                                continue;
+                        kdTree.insert(p);
+                        prTree.insert(p);
+                        points.add(p);
+                }
+                for (int i = 0; i < 500; i++) {
+                        KDPoint p = points.remove(r.nextInt(points.size()));
+                        kdTree.delete(p);
+                        prTree.delete(p);
+                }
+                for (int i = 0; i < 50; i++) {
+                        KDPoint anchor = (i % 2 == 0) ? points.get(r.nextInt(points.size()))
+                                        : new KDPoint(r.nextInt(300) - 150, r.nextInt(300) - 150);
+                        List<KDPoint> expected = new ArrayList<>();
+                        for (KDPoint p : points)
+                                if (!p.equals(anchor))
+                                        expected.add(p);
+                        expected.sort(Comparator.comparingDouble(p -> p.distanceSquared(anchor)));
+                        for (Iterator<KDPoint> it : Arrays.asList(kdTree.nearestNeighbors(anchor),
+                                        prTree.nearestNeighbors(anchor))) {
+                                List<KDPoint> browsed = new ArrayList<>();
+                                it.forEachRemaining(browsed::add);
+                                assertEquals("Browsing should report every point but the anchor.", expected.size(),
+                                                browsed.size());
+                                for (int j = 0; j < expected.size(); j++)
+                                        assertEquals("Browsing reported a neighbor out of order.",
+                                                        expected.get(j).distanceSquared(anchor),
+                                                        browsed.get(j).distanceSquared(anchor), 0);
+                                Map<KDPoint, Integer> multiset = new HashMap<>();
+                                for (KDPoint p : expected)
+                                        multiset.merge(p, 1, Integer::sum);
+                                for (KDPoint p : browsed)
+                                        multiset.merge(p, -1, Integer::sum);
+                                assertTrue("Browsing reported the wrong points.",
+                                                multiset.values().stream().allMatch(c -> c == 0));
+                                try {
+                                        it.next();
+                                        fail("An exhausted iterator should throw a NoSuchElementException.");
+                                } catch (NoSuchElementException ignored) {
+                                }
+                        }
+                        // A prefix of the stream has the distances of a kNN query
+                        int m = 1 + r.nextInt(20);
+                        BoundedQueue<KDPoint> knn = kdTree.kNearestNeighbors(m, anchor);
+                        Iterator<KDPoint> prefix = prTree.nearestNeighborStream(anchor).limit(m).iterator();
+                        for (KDPoint p : knn)
+                                assertEquals("A prefix of the neighbor stream disagrees with a kNN query.",
+                                                p.distanceSquared(anchor), prefix.next().distanceSquared(anchor), 0);
+                        assertFalse("The neighbor stream was not limited.", prefix.hasNext());
+                }
+                // Squared distances between these exceed Long.MAX_VALUE, so they must not wrap around
+                List<KDPoint> wide = Arrays.asList(new KDPoint(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE),
+                                new KDPoint(-1, -1, -1), new KDPoint(1 << 30, 1 << 30, 1 << 30),
+                                new KDPoint(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE));
+                KDTree wideKD = new KDTree(3);
+                PRQuadTree widePR = new PRQuadTree(2, 1, 3);
+                for (KDPoint p : wide) {
+                        wideKD.insert(p);
+                        widePR.insert(p);
+                }
+                KDPoint wideAnchor = wide.get(3);
+                List<KDPoint> expectedWide = Arrays.asList(wide.get(2), wide.get(1), wide.get(0));
+                List<KDPoint> browsedWide = new ArrayList<>();
+                wideKD.nearestNeighbors(wideAnchor).forEachRemaining(browsedWide::add);
+                assertEquals("Browsing a KD-Tree over wide coordinates reported the wrong order.", expectedWide, browsedWide);
+                browsedWide.clear();
+                widePR.nearestNeighbors(wideAnchor).forEachRemaining(browsedWide::add);
+                assertEquals("Browsing a PR-QuadTree over wide coordinates reported the wrong order.", expectedWide, browsedWide);
+                assertFalse("Browsing an empty tree should report nothing.",
+                                new KDTree(2).nearestNeighbors(ZERO).hasNext());
+                assertEquals("Browsing an empty tree should report nothing.", 0,
+                                new PRQuadTree(4, 3).nearestNeighborStream(ZERO).count());
+        }
+
+        @Test
+        public void testRangeBoxAgreesWithBruteForce() {
+                for (int dims = 2; dims <= 3; dims++) {
+                        kdTree = new KDTree(dims);
+                        PRQuadTree prTree = new PRQuadTree(5, 2, dims);
+                        List<KDPoint> points = new ArrayList<>();
+                        Set<KDPoint> seen = new HashSet<>();
+                        for (int i = 0; i < 3000; i++) {
+                                KDPoint p = randomPoint(dims);
+                                for (int d = 0; d < dims; d++)
+                                        p.coords[d] = Math.floorMod(p.coords[d], 200) - 100;
+                                // KD-Trees hold duplicates, PR-QuadTrees do not
+                                kdTree.insert(p);
+                                if (seen.add(p))
+                                        prTree.insert(p);
+                                points.add(p);
+                        }
+                        for (int i = 0; i < 500; i++) {
+                                KDPoint p = points.remove(r.nextInt(points.size()));
+                                kdTree.delete(p);
+                                if (!points.contains(p)) {
+                                        prTree.delete(p);
+                                        seen.remove(p);
+                                }
+                        }
+                        for (int i = 0; i < MAX_ITER; i++) {
+                                KDPoint min = new KDPoint(new int[dims]), max = new KDPoint(new int[dims]);
+                                for (int d = 0; d < dims; d++) {
+                                        min.coords[d] = r.nextInt(260) - 130;
+                                        max.coords[d] = min.coords[d] + r.nextInt(150) - 10; // Sometimes empty
+                                }
+                                List<KDPoint> expected = new ArrayList<>();
+                                for (KDPoint p : points) {
+                                        boolean in = true;
+                                        for (int d = 0; d < dims; d++)
+                                                in &= min.coords[d] <= p.coords[d] && p.coords[d] <= max.coords[d];
+                                        if (in)
+                                                expected.add(p);
+                                }
+                                List<KDPoint> kdFound = new ArrayList<>(kdTree.rangeBox(min, max));
+                                expected.sort(Comparator.comparing(KDPoint::toString));
+                                kdFound.sort(Comparator.comparing(KDPoint::toString));
+                                assertEquals("A box range query on a KD-Tree disagrees with brute force.", expected, kdFound);
+                                assertEquals("A box range query on a PR-QuadTree disagrees with brute force.",
+                                                new HashSet<>(expected), new HashSet<>(prTree.rangeBox(min, max)));
+                                assertEquals("A box range query on a PR-QuadTree reported duplicates.",
+                                                new HashSet<>(expected).size(), prTree.rangeBox(min, max).size());
+                        }
+                        // A box around the whole space reports every point at once
+                        KDPoint lo = new KDPoint(new int[dims]), hi = new KDPoint(new int[dims]);
+                        Arrays.fill(lo.coords, Integer.MIN_VALUE);
+                        Arrays.fill(hi.coords, Integer.MAX_VALUE);
+                        assertEquals("A box around the whole space should report every point.", points.size(),
+                                        kdTree.rangeBox(lo, hi).size());
+                        assertEquals("A box around the whole space should report every point.", seen.size(),
+                                        prTree.rangeBox(lo, hi).size());
+                }
+                try {
+                        kdTree.rangeBox(new KDPoint(0, 0), new KDPoint(1, 1));
+                        fail("A box of the wrong dimensionality should be rejected.");
+                } catch (RuntimeException ignored) {
+                }
+        }
+
+        @Test
+        public void testQueriesOverWideCoordinates() {
+                // Squared distances between such points exceed Long.MAX_VALUE, in 3D even from the origin
+                for (int dims = 2; dims <= 3; dims++) {
+                        KDPoint lo = new KDPoint(new int[dims]), zero = new KDPoint(new int[dims]), hi = new KDPoint(new int[dims]);
+                        Arrays.fill(lo.coords, Integer.MIN_VALUE);
+                        Arrays.fill(hi.coords, Integer.MAX_VALUE);
+                        kdTree = new KDTree(dims);
+                        PRQuadTree prTree = new PRQuadTree(2, 1, dims);
+                        PointStoreKDTree stored = new PointStoreKDTree(dims);
+                        for (KDPoint p : new KDPoint[] { lo, zero, hi }) {
+                                kdTree.insert(p);
+                                prTree.insert(p);
+                                stored.insert(p);
+                        }
+                        double reach = 1.01 * zero.euclideanDistance(hi);
+                        assertEquals("The nearest neighbor of " + hi + " in a KD-Tree is wrong.", zero, kdTree.nearestNeighbor(hi));
+                        assertEquals("The nearest neighbor of " + hi + " in a PR-QuadTree is wrong.", zero, prTree.nearestNeighbor(hi));
+                        assertEquals("The nearest neighbor of " + hi + " in a PointStoreKDTree is wrong.", zero, stored.nearestNeighbor(hi));
+                        assertEquals("The 1-NN of " + hi + " in a KD-Tree is wrong.", zero, kdTree.kNearestNeighbors(1, hi).first());
+                        assertEquals("The 1-NN of " + hi + " in a PR-QuadTree is wrong.", zero, prTree.kNearestNeighbors(1, hi).first());
+                        assertEquals("The 1-NN of " + hi + " in a PointStoreKDTree is wrong.", zero, stored.kNearestNeighbors(1, hi).first());
+                        assertEquals("A range query around " + hi + " in a KD-Tree is wrong.",
+                                        Collections.singletonList(zero), new ArrayList<>(kdTree.range(hi, reach)));
+                        assertEquals("A range query around " + hi + " in a PR-QuadTree is wrong.",
+                                        Collections.singletonList(zero), new ArrayList<>(prTree.range(hi, reach)));
+                        assertEquals("A range query around " + hi + " in a PointStoreKDTree is wrong.",
+                                        Collections.singletonList(zero), new ArrayList<>(stored.range(hi, reach)));
+                }
+                LinearQuadTree linear = LinearQuadTree.bulkLoad(1, Arrays.asList(new KDPoint(Integer.MIN_VALUE, 0), ZERO,
+                                new KDPoint(Integer.MAX_VALUE, 0)));
+                KDPoint hi = new KDPoint(Integer.MAX_VALUE, 0);
+                assertEquals("The 1-NN of " + hi + " in a LinearQuadTree is wrong.", ZERO, linear.kNearestNeighbors(1, hi).first());
+                assertEquals("A range query around " + hi + " in a LinearQuadTree is wrong.",
+                                Collections.singletonList(ZERO), new ArrayList<>(linear.range(hi, 3e9)));
+        }
 }
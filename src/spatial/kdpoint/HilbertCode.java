@@ -0,0 +1,159 @@
+package spatial.kdpoint;
+
+import java.util.Comparator;
+
+/**
+ * <p>{@link HilbertCode} maps {@link KDPoint}s to their keys along the d-dimensional Hilbert curve and back. Like a
+ * {@link MortonCode Morton key}, a Hilbert key visits the cells of the recursive 2^d-ary subdivision of space one
+ * after the other, so keys that share a prefix of {@code l*d} bits lie in the same cell of side 2^(32-l). Unlike the
+ * Z-order, consecutive cells of the Hilbert order always share a face, so a range of Hilbert keys covers fewer,
+ * more compact regions of space. That makes it the better order for sharding and for laying points out on disk,
+ * at the cost of a somewhat more expensive encoding.</p>
+ *
+ * <p>Keys have the same layout as Morton keys, {@link MortonCode#words(int) ceil(32d/64)} {@code long}s, most
+ * significant word first, and compare as unsigned numbers with {@link MortonCode#compare(long[], long[])}. The
+ * encoding is J. Skilling's transposition of the coordinates (&quot;Programming the Hilbert curve&quot;, AIP
+ * Conference Proceedings 707, 2004), which works in any dimensionality without lookup tables.</p>
+ *
+ * @see MortonCode
+ */
+public final class HilbertCode {
+
+    private HilbertCode() {
+    }
+
+    /**
+     * Computes the Hilbert key of a {@link KDPoint} of any dimensionality.
+     * @param p The {@link KDPoint} to encode.
+     * @return The key of p, most significant word first.
+     */
+    public static long[] encode(KDPoint p) {
+        int dims = p.coords.length;
+        int[] x = new int[dims];
+        for (int d = 0; d < dims; d++)
+            x[d] = p.coords[d] ^ Integer.MIN_VALUE; // Unsigned, like in MortonCode
+        axesToTranspose(x);
+        // The transposed form holds the key's bits in columns, with x[0] the most significant of every level,
+        // while MortonCode.interleave() makes its first value the least significant
+        return MortonCode.interleave(reverse(x));
+    }
+
+    /**
+     * Recovers the {@link KDPoint} whose Hilbert key is provided.
+     * @param key A key computed by {@link #encode(KDPoint)}.
+     * @param dims The dimensionality of the encoded point.
+     * @return A new {@link KDPoint} whose key is {@code key}.
+     * @throws RuntimeException if the key does not have {@link MortonCode#words(int) words(dims)} words.
+     */
+    public static KDPoint decode(long[] key, int dims) {
+        MortonCode.checkWords(key, dims);
+        int[] x = reverse(MortonCode.deinterleave(key, dims));
+        transposeToAxes(x);
+        for (int d = 0; d < dims; d++)
+            x[d] ^= Integer.MIN_VALUE;
+        return new KDPoint(x);
+    }
+
+    /**
+     * Computes the Hilbert key of the 2D point (x, y).
+     * @param x The coordinate of dimension 0.
+     * @param y The coordinate of dimension 1.
+     * @return The key of (x, y), to be compared with {@link Long#compareUnsigned(long, long)}.
+     */
+    public static long encode2D(int x, int y) {
+        return encode(new KDPoint(x, y))[0];
+    }
+
+    /**
+     * Recovers the 2D point whose Hilbert key is provided.
+     * @param key A key computed by {@link #encode2D(int, int)}.
+     * @return A new 2D {@link KDPoint} whose key is {@code key}.
+     */
+    public static KDPoint decode2D(long key) {
+        return decode(new long[] { key }, 2);
+    }
+
+    /**
+     * Returns a {@link Comparator} that orders {@link KDPoint}s of the same dimensionality by Hilbert key. Every
+     * comparison encodes both points, so sorting many points is faster over precomputed keys.
+     * @return A {@link Comparator} of {@link KDPoint}s in Hilbert order.
+     */
+    public static Comparator<KDPoint> comparator() {
+        return (p1, p2) -> MortonCode.compare(encode(p1), encode(p2));
+    }
+
+    /**
+     * Returns the bounding box of a range of Hilbert keys: the smallest cell of the recursive subdivision of space
+     * that contains every point whose key lies between lo and hi, inclusive.
+     * @param lo The smallest key of the range.
+     * @param hi The largest key of the range.
+     * @param dims The dimensionality of the encoded points.
+     * @return An array holding the corner of the cell with the smallest coordinates, followed by the corner with the
+     * largest coordinates. Both are inclusive.
+     * @see MortonCode#cellBounds(long[], long[], int)
+     */
+    public static KDPoint[] cellBounds(long[] lo, long[] hi, int dims) {
+        MortonCode.checkWords(lo, dims);
+        MortonCode.checkWords(hi, dims);
+        // Points whose keys share l whole levels share the top l bits of every coordinate, whatever the
+        // orientation of the curve inside their cell
+        return MortonCode.cellBounds(decode(lo, dims), MortonCode.commonPrefixBits(lo, hi, dims) / dims);
+    }
+
+    private static int[] reverse(int[] values) {
+        int[] reversed = new int[values.length];
+        for (int d = 0; d < values.length; d++)
+            reversed[d] = values[values.length - 1 - d];
+        return reversed;
+    }
+
+    // Skilling's AxestoTranspose for 32-bit coordinates, in place
+    private static void axesToTranspose(int[] x) {
+        int n = x.length;
+        // Inverse undo
+        for (int q = Integer.MIN_VALUE; q != 1; q >>>= 1) {
+            int p = q - 1;
+            for (int i = 0; i < n; i++) {
+                if ((x[i] & q) != 0) {
+                    x[0] ^= p; // Invert
+                } else {
+                    int t = (x[0] ^ x[i]) & p; // Exchange
+                    x[0] ^= t;
+                    x[i] ^= t;
+                }
+            }
+        }
+        // Gray encode
+        for (int i = 1; i < n; i++)
+            x[i] ^= x[i - 1];
+        int t = 0;
+        for (int q = Integer.MIN_VALUE; q != 1; q >>>= 1)
+            if ((x[n - 1] & q) != 0)
+                t ^= q - 1;
+        for (int i = 0; i < n; i++)
+            x[i] ^= t;
+    }
+
+    // Skilling's TransposetoAxes for 32-bit coordinates, in place
+    private static void transposeToAxes(int[] x) {
+        int n = x.length;
+        // Gray decode
+        int t = x[n - 1] >>> 1;
+        for (int i = n - 1; i > 0; i--)
+            x[i] ^= x[i - 1];
+        x[0] ^= t;
+        // Undo excess work; q runs through every bit but the lowest, and overflows to 0 after the highest
+        for (int q = 2; q != 0; q <<= 1) {
+            int p = q - 1;
+            for (int i = n - 1; i >= 0; i--) {
+                if ((x[i] & q) != 0) {
+                    x[0] ^= p;
+                } else {
+                    t = (x[0] ^ x[i]) & p;
+                    x[0] ^= t;
+                    x[i] ^= t;
+                }
+            }
+        }
+    }
+}
@@ -133,14 +133,51 @@ public class KDPoint {
 	 * @return The <b>Euclidean distance</b> between the two {@link KDPoint}s.
 	 * @throws RuntimeException if the dimensionality of the two KDPoints is different.
 	 */
-	public double euclideanDistance(KDPoint p) throws RuntimeException{ // TODO: Make faster
+	public double euclideanDistance(KDPoint p) throws RuntimeException{
 		if(coords.length != p.coords.length)
 			throw new RuntimeException("Cannot calculate the Euclidean Distance between KDPoints of different dimensionalities.");
 		double sum = 0.0;
-		for(int i = 0; i < coords.length; i++)
-			sum = sum + Math.pow((coords[i] - p.coords[i]), 2);
+		for(int i = 0; i < coords.length; i++) {
+			double diff = (double)coords[i] - p.coords[i];
+			sum = sum + diff * diff;
+		}
 		return Math.sqrt(sum);
 	}
+
+	/**
+	 * <p>Calculate the <b>squared</b> Euclidean distance between this and p. Since squaring preserves the order of
+	 * non-negative numbers, comparing squared distances gives the same answer as comparing
+	 * {@link #euclideanDistance(KDPoint) Euclidean distances}, without a square root per call. Queries should compare
+	 * squared distances while they search and only take the square root of the distances that they report.</p>
+	 *
+	 * <p>The sum is accumulated in {@code double}, like {@link #euclideanDistance(KDPoint)} does: a single squared
+	 * coordinate difference can already exceed {@link Long#MAX_VALUE}, so integer arithmetic would overflow for points
+	 * far apart. The result is exact as long as it is below 2^53, e.g. for 2D points whose coordinates differ by less
+	 * than 2^26 in every dimension, and only ever rounded beyond that.</p>
+	 * @param p The {@link KDPoint} to calculate the squared distance to.
+	 * @return The <b>squared Euclidean distance</b> between the two {@link KDPoint}s.
+	 * @throws RuntimeException if the dimensionality of the two KDPoints is different.
+	 */
+	public double distanceSquared(KDPoint p) throws RuntimeException{
+		if(coords.length != p.coords.length)
+			throw new RuntimeException("Cannot calculate the Euclidean Distance between KDPoints of different dimensionalities.");
+		double sum = 0.0;
+		for(int i = 0; i < coords.length; i++) {
+			double diff = (double)coords[i] - p.coords[i];
+			sum = sum + diff * diff;
+		}
+		return sum;
+	}
+
+	/**
+	 * A static version of {@link #distanceSquared(KDPoint)}.
+	 * @param p1 One of the two {@link KDPoint}s to calculate the squared distance of.
+	 * @param p2 One of the two {@link KDPoint}s to calculate the squared distance of.
+	 * @return The squared Euclidean distance between p1 and p2.
+	 */
+	public static double distanceSquared(KDPoint p1, KDPoint p2){
+		return p1.distanceSquared(p2);
+	}
 	
 	/**
 	 * A static version of distance calculations. Since the Euclidean distance is symmetric,
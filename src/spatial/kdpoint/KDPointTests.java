@@ -177,6 +177,32 @@ public class KDPointTests {
         }
     }
 
+    @Test
+    public void testKDPointDistanceSquared() {
+        assertEquals("The squared distance between a point and itself must be 0", 0, origin3D.distanceSquared(origin3D), 0);
+        assertEquals("The squared Euclidean distance between two points is wrong",
+                9, new KDPoint(3, 2, -1).distanceSquared(new KDPoint(1, 3, 1)), 0);
+
+        // Squared distances must agree with distances, and must not overflow for far-apart points
+        for (int i = 0; i < MAX_ITER; i++) {
+            KDPoint p = new KDPoint(-r.nextInt(MAX_COORD), r.nextInt(MAX_COORD));
+            KDPoint q = new KDPoint(r.nextInt(MAX_COORD), -r.nextInt(MAX_COORD));
+            assertEquals("Squared distance disagrees with euclideanDistance()",
+                    Math.pow(p.euclideanDistance(q), 2), KDPoint.distanceSquared(p, q), EPS);
+        }
+        int half = Integer.MAX_VALUE / 2;
+        KDPoint far = new KDPoint(half, half), farOpposite = new KDPoint(-half, -half);
+        assertEquals("Squared distance overflowed", 2 * (2.0 * half) * (2.0 * half), far.distanceSquared(farOpposite), 0);
+        double span = (double) Integer.MAX_VALUE - Integer.MIN_VALUE;
+        assertEquals("Squared distance overflowed", 3 * span * span, new KDPoint(Integer.MIN_VALUE, Integer.MIN_VALUE,
+                Integer.MIN_VALUE).distanceSquared(new KDPoint(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE)), 0);
+
+        try {
+            origin2D.distanceSquared(origin3D);
+            fail("Expected RuntimeException");
+        } catch (RuntimeException e) {}
+    }
+
     @Test
     public void testKDPointToString() {
 
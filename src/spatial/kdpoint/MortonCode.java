@@ -0,0 +1,268 @@
+package spatial.kdpoint;
+
+import java.util.Comparator;
+
+/**
+ * <p>{@link MortonCode} maps {@link KDPoint}s to their Morton (Z-order) keys and back. The key of a point interleaves
+ * the bits of its coordinates, from the most significant bit of every coordinate down to the least significant one,
+ * so points whose keys share a prefix of {@code l*d} bits lie in the same cell of side 2^(32-l) of the recursive
+ * 2^d-ary subdivision of space: the same cells that a {@link spatial.trees.PRQuadTree} with k=32 splits space into.
+ * Sorting points by key therefore keeps points that are close in space mostly close in the order as well.</p>
+ *
+ * <p>Coordinates are interleaved after flipping their sign bit, which orders them like unsigned integers, so that
+ * the order of the keys agrees with the signed order of the coordinates in every dimension. Within every level,
+ * dimension 0 contributes the least significant bit. All 32 bits of every coordinate are kept, so a key of a
+ * d-dimensional point has 32d bits and is stored in {@link #words(int) ceil(32d/64)} {@code long}s, most significant
+ * word first, and keys compare as <b>unsigned</b> numbers: see {@link #compare(long[], long[])}. In 2D, a key is a
+ * single {@code long}, which {@link #encode2D(int, int)} computes without allocating anything.</p>
+ *
+ * <p>2D keys are interleaved with a few masked shifts per coordinate and 3D keys with a lookup table, in place of
+ * the bit-deposit instructions that Java does not expose. Other dimensionalities interleave bit by bit.</p>
+ *
+ * @see HilbertCode
+ */
+public final class MortonCode {
+
+    /**
+     * The number of bits that every coordinate contributes to a key.
+     */
+    public static final int BITS = 32;
+
+    // Spreads the 8 bits of a byte 3 positions apart: bit i moves to bit 3i
+    private static final long[] SPREAD3 = new long[256];
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            long spread = 0;
+            for (int i = 0; i < 8; i++)
+                spread |= (long) ((b >>> i) & 1) << (3 * i);
+            SPREAD3[b] = spread;
+        }
+    }
+
+    private MortonCode() {
+    }
+
+    /**
+     * Returns the number of {@code long}s that a key of a point of the provided dimensionality occupies.
+     * @param dims The dimensionality of the points.
+     * @return ceil(32 &#42; dims / 64).
+     */
+    public static int words(int dims) {
+        return (BITS * dims + 63) / 64;
+    }
+
+    /**
+     * Computes the Morton key of a {@link KDPoint} of any dimensionality.
+     * @param p The {@link KDPoint} to encode.
+     * @return The key of p, most significant word first.
+     */
+    public static long[] encode(KDPoint p) {
+        int dims = p.coords.length;
+        if (dims == 2)
+            return new long[] { encode2D(p.coords[0], p.coords[1]) };
+        if (dims == 3)
+            return encode3D(p.coords[0], p.coords[1], p.coords[2]);
+        int[] unsigned = new int[dims];
+        for (int d = 0; d < dims; d++)
+            unsigned[d] = p.coords[d] ^ Integer.MIN_VALUE;
+        return interleave(unsigned);
+    }
+
+    /**
+     * Recovers the {@link KDPoint} whose Morton key is provided.
+     * @param key A key computed by {@link #encode(KDPoint)}.
+     * @param dims The dimensionality of the encoded point.
+     * @return A new {@link KDPoint} whose key is {@code key}.
+     * @throws RuntimeException if the key does not have {@link #words(int) words(dims)} words.
+     */
+    public static KDPoint decode(long[] key, int dims) {
+        checkWords(key, dims);
+        if (dims == 2)
+            return new KDPoint(decodeX2D(key[0]), decodeY2D(key[0]));
+        int[] coords = deinterleave(key, dims);
+        for (int d = 0; d < dims; d++)
+            coords[d] ^= Integer.MIN_VALUE;
+        return new KDPoint(coords);
+    }
+
+    /**
+     * Computes the Morton key of the 2D point (x, y).
+     * @param x The coordinate of dimension 0.
+     * @param y The coordinate of dimension 1.
+     * @return The key of (x, y), to be compared with {@link Long#compareUnsigned(long, long)}.
+     */
+    public static long encode2D(int x, int y) {
+        return spread(x ^ Integer.MIN_VALUE) | (spread(y ^ Integer.MIN_VALUE) << 1);
+    }
+
+    /**
+     * Recovers the coordinate of dimension 0 from a 2D Morton key.
+     * @param key A key computed by {@link #encode2D(int, int)}, or any prefix of one followed by zeros.
+     * @return The x of the encoded point.
+     */
+    public static int decodeX2D(long key) {
+        return compact(key) ^ Integer.MIN_VALUE;
+    }
+
+    /**
+     * Recovers the coordinate of dimension 1 from a 2D Morton key.
+     * @param key A key computed by {@link #encode2D(int, int)}, or any prefix of one followed by zeros.
+     * @return The y of the encoded point.
+     */
+    public static int decodeY2D(long key) {
+        return compact(key >>> 1) ^ Integer.MIN_VALUE;
+    }
+
+    /**
+     * Computes the Morton key of the 3D point (x, y, z) with a lookup table, one byte of a coordinate at a time.
+     * @param x The coordinate of dimension 0.
+     * @param y The coordinate of dimension 1.
+     * @param z The coordinate of dimension 2.
+     * @return The 96-bit key of (x, y, z): its top 32 bits in the first word and the rest in the second.
+     */
+    public static long[] encode3D(int x, int y, int z) {
+        long[] key = new long[2];
+        int[] coords = { x ^ Integer.MIN_VALUE, y ^ Integer.MIN_VALUE, z ^ Integer.MIN_VALUE };
+        for (int d = 0; d < 3; d++) {
+            for (int b = 0; b < 4; b++) {
+                long spread = SPREAD3[(coords[d] >>> (8 * b)) & 0xFF];
+                int shift = 24 * b + d; // Position of the byte's lowest bit in the 96-bit key
+                if (shift >= 64) {
+                    key[0] |= spread << (shift - 64);
+                } else {
+                    key[1] |= spread << shift;
+                    if (shift + 24 > 64)
+                        key[0] |= spread >>> (64 - shift);
+                }
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Compares two keys of points of the same dimensionality as unsigned numbers, which orders points along the curve.
+     * This works for the keys of both {@link MortonCode} and {@link HilbertCode}.
+     * @param key1 The first key.
+     * @param key2 The second key.
+     * @return A negative number, zero, or a positive number if key1 comes before, at the same position as, or after key2.
+     */
+    public static int compare(long[] key1, long[] key2) {
+        for (int w = 0; w < key1.length; w++) {
+            int c = Long.compareUnsigned(key1[w], key2[w]);
+            if (c != 0)
+                return c;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns a {@link Comparator} that orders {@link KDPoint}s of the same dimensionality by Morton key. Every
+     * comparison encodes both points, so sorting many points is faster over precomputed keys.
+     * @return A {@link Comparator} of {@link KDPoint}s in Z-order.
+     */
+    public static Comparator<KDPoint> comparator() {
+        return (p1, p2) -> (p1.coords.length == 2)
+                ? Long.compareUnsigned(encode2D(p1.coords[0], p1.coords[1]), encode2D(p2.coords[0], p2.coords[1]))
+                : compare(encode(p1), encode(p2));
+    }
+
+    /**
+     * Returns the bounding box of a range of Morton keys: the smallest cell of the recursive subdivision of space
+     * that contains every point whose key lies between lo and hi, inclusive. That cell is the one identified by the
+     * longest common prefix of lo and hi that is a whole number of levels.
+     * @param lo The smallest key of the range.
+     * @param hi The largest key of the range.
+     * @param dims The dimensionality of the encoded points.
+     * @return An array holding the corner of the cell with the smallest coordinates, followed by the corner with the
+     * largest coordinates. Both are inclusive.
+     */
+    public static KDPoint[] cellBounds(long[] lo, long[] hi, int dims) {
+        checkWords(lo, dims);
+        checkWords(hi, dims);
+        return cellBounds(decode(lo, dims), commonPrefixBits(lo, hi, dims) / dims);
+    }
+
+    /* *********************************************************************************************** */
+    /* ******************************* SHARED WITH HilbertCode *************************************** */
+    /* *********************************************************************************************** */
+
+    // Interleaves the unsigned values, most significant level first; values[d] supplies bit d of every level
+    static long[] interleave(int[] values) {
+        int dims = values.length;
+        long[] key = new long[words(dims)];
+        for (int level = 0; level < BITS; level++) {
+            for (int d = 0; d < dims; d++) {
+                if (((values[d] >>> level) & 1) != 0) {
+                    int bit = level * dims + d;
+                    key[key.length - 1 - (bit >>> 6)] |= 1L << (bit & 63);
+                }
+            }
+        }
+        return key;
+    }
+
+    // The inverse of interleave()
+    static int[] deinterleave(long[] key, int dims) {
+        int[] values = new int[dims];
+        for (int level = 0; level < BITS; level++) {
+            for (int d = 0; d < dims; d++) {
+                int bit = level * dims + d;
+                if (((key[key.length - 1 - (bit >>> 6)] >>> (bit & 63)) & 1) != 0)
+                    values[d] |= 1 << level;
+            }
+        }
+        return values;
+    }
+
+    static void checkWords(long[] key, int dims) {
+        if (key.length != words(dims))
+            throw new RuntimeException("A key of a " + dims + "-D point has " + words(dims) + " words, not " +
+                    key.length + ".");
+    }
+
+    // Number of leading bits that the two keys share, out of the 32*dims bits of a key
+    static int commonPrefixBits(long[] key1, long[] key2, int dims) {
+        int unused = 64 * key1.length - BITS * dims; // Leading bits of the first word that no key uses
+        for (int w = 0; w < key1.length; w++) {
+            long diff = key1[w] ^ key2[w];
+            if (diff != 0)
+                return 64 * w + Long.numberOfLeadingZeros(diff) - unused;
+        }
+        return BITS * dims;
+    }
+
+    // The corners of the cell of side 2^(32-levels) that holds p
+    static KDPoint[] cellBounds(KDPoint p, int levels) {
+        int dims = p.coords.length;
+        // Bits of every (unsigned) coordinate below the cell's prefix, all zero at its lowest corner
+        int free = (levels == 0) ? -1 : (int) ((1L << (BITS - levels)) - 1);
+        int[] min = new int[dims], max = new int[dims];
+        for (int d = 0; d < dims; d++) {
+            int unsigned = p.coords[d] ^ Integer.MIN_VALUE;
+            min[d] = (unsigned & ~free) ^ Integer.MIN_VALUE;
+            max[d] = (unsigned | free) ^ Integer.MIN_VALUE;
+        }
+        return new KDPoint[] { new KDPoint(min), new KDPoint(max) };
+    }
+
+    private static long spread(int coord) {
+        // Moves bit i of coord to bit 2i
+        long x = coord & 0xFFFFFFFFL;
+        x = (x | (x << 16)) & 0x0000FFFF0000FFFFL;
+        x = (x | (x << 8)) & 0x00FF00FF00FF00FFL;
+        x = (x | (x << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        x = (x | (x << 2)) & 0x3333333333333333L;
+        return (x | (x << 1)) & 0x5555555555555555L;
+    }
+
+    private static int compact(long key) {
+        // Moves bit 2i of key to bit i, the inverse of spread()
+        long x = key & 0x5555555555555555L;
+        x = (x | (x >>> 1)) & 0x3333333333333333L;
+        x = (x | (x >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+        x = (x | (x >>> 4)) & 0x00FF00FF00FF00FFL;
+        x = (x | (x >>> 8)) & 0x0000FFFF0000FFFFL;
+        return (int) ((x | (x >>> 16)) & 0x00000000FFFFFFFFL);
+    }
+}
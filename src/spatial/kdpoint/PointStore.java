@@ -0,0 +1,189 @@
+package spatial.kdpoint;
+
+import java.util.Arrays;
+
+/**
+ * <p>{@link PointStore} keeps the coordinates of many <em>k</em>-dimensional points in a single, contiguous
+ * {@code int[]}, addressing every point by an integer <b>id</b>. The coordinates of the point with id {@code i}
+ * occupy the slots {@code [i*k, (i+1)*k)} of the array.</p>
+ *
+ * <p>Compared to keeping one {@link KDPoint} per point, this saves the two object headers and the reference
+ * that every {@link KDPoint} costs, and it keeps the coordinates of neighboring ids next to each other in memory.
+ * Data structures built on top of a {@link PointStore} store ids instead of {@link KDPoint} references, and only
+ * materialize {@link KDPoint}s when they hand them over to their clients.</p>
+ *
+ * <p>Ids of {@link #remove(int) removed} points are recycled by later {@link #add(KDPoint) additions}, so ids
+ * stay dense and the store never grows beyond the largest number of points it held at once.</p>
+ *
+ * @see KDPoint
+ * @see spatial.trees.PointStoreKDTree
+ */
+public class PointStore {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private final int dims;
+    private int[] coords;
+    // Ids in [0, highWater) have been handed out at least once
+    private int highWater;
+    // Stack of ids that were removed and can be handed out again
+    private int[] free;
+    private int freeCount;
+
+    /**
+     * Creates an empty {@link PointStore} for points of the provided dimensionality.
+     * @param dims The dimensionality of the stored points.
+     * @throws RuntimeException if dims&lt;=0.
+     */
+    public PointStore(int dims) {
+        this(dims, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates an empty {@link PointStore} for points of the provided dimensionality, with room for
+     * {@code initialCapacity} points before it has to grow.
+     * @param dims The dimensionality of the stored points.
+     * @param initialCapacity The number of points to allocate room for.
+     * @throws RuntimeException if dims&lt;=0 or initialCapacity&lt;0.
+     */
+    public PointStore(int dims, int initialCapacity) {
+        if (dims <= 0 || initialCapacity < 0)
+            throw new RuntimeException("Invalid PointStore parameters provided: dims=" + dims +
+                    ", initialCapacity=" + initialCapacity + ".");
+        this.dims = dims;
+        coords = new int[dims * Math.max(initialCapacity, 1)];
+        free = new int[DEFAULT_CAPACITY];
+        highWater = freeCount = 0;
+    }
+
+    /**
+     * Copies the coordinates of p into the store.
+     * @param p The {@link KDPoint} to store.
+     * @return The id under which the coordinates of p are now stored.
+     * @throws RuntimeException if the dimensionality of p differs from that of the store.
+     */
+    public int add(KDPoint p) {
+        if (p.coords.length != dims)
+            throw new RuntimeException("Cannot store a " + p.coords.length + "-D KDPoint in a " + dims + "-D PointStore.");
+        int id;
+        if (freeCount > 0) {
+            id = free[--freeCount];
+        } else {
+            id = highWater++;
+            if (highWater * dims > coords.length)
+                coords = Arrays.copyOf(coords, Math.max(coords.length * 2, highWater * dims));
+        }
+        System.arraycopy(p.coords, 0, coords, id * dims, dims);
+        return id;
+    }
+
+    /**
+     * Releases the provided id, so that a later {@link #add(KDPoint)} can reuse it. The caller must not
+     * use the id again until then.
+     * @param id The id to release.
+     */
+    public void remove(int id) {
+        if (freeCount == free.length)
+            free = Arrays.copyOf(free, free.length * 2);
+        free[freeCount++] = id;
+    }
+
+    /**
+     * Overwrites the coordinates stored under {@code to} with the coordinates stored under {@code from}.
+     * @param from The id to copy the coordinates from.
+     * @param to The id to copy the coordinates to.
+     */
+    public void copy(int from, int to) {
+        System.arraycopy(coords, from * dims, coords, to * dims, dims);
+    }
+
+    /**
+     * Returns a single coordinate of a stored point.
+     * @param id The id of the point.
+     * @param dim The dimension of the coordinate to return.
+     * @return The coordinate of the point with the provided id at dimension dim.
+     */
+    public int coord(int id, int dim) {
+        return coords[id * dims + dim];
+    }
+
+    /**
+     * Materializes a stored point into a freshly allocated {@link KDPoint}.
+     * @param id The id of the point.
+     * @return A {@link KDPoint} with the coordinates stored under id.
+     */
+    public KDPoint get(int id) {
+        int[] vals = new int[dims];
+        System.arraycopy(coords, id * dims, vals, 0, dims);
+        return new KDPoint(vals);
+    }
+
+    /**
+     * Checks whether a stored point has the same coordinates as p, without materializing it.
+     * @param id The id of the stored point.
+     * @param p The {@link KDPoint} to compare against.
+     * @return true iff the point stored under id {@link KDPoint#equals(Object) equals} p.
+     */
+    public boolean matches(int id, KDPoint p) {
+        if (p.coords.length != dims)
+            return false;
+        int base = id * dims;
+        for (int i = 0; i < dims; i++)
+            if (coords[base + i] != p.coords[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Calculates the <b>Euclidean distance</b> between a stored point and p, without materializing the former.
+     * @param id The id of the stored point.
+     * @param p The {@link KDPoint} to calculate the distance to.
+     * @return The <b>Euclidean distance</b> between the two points.
+     * @see KDPoint#euclideanDistance(KDPoint)
+     */
+    public double euclideanDistance(int id, KDPoint p) {
+        return Math.sqrt(distanceSquared(id, p));
+    }
+
+    /**
+     * Calculates the <b>squared</b> Euclidean distance between a stored point and p, without materializing the former.
+     * @param id The id of the stored point.
+     * @param p The {@link KDPoint} to calculate the squared distance to.
+     * @return The <b>squared Euclidean distance</b> between the two points.
+     * @see KDPoint#distanceSquared(KDPoint)
+     */
+    public double distanceSquared(int id, KDPoint p) {
+        int base = id * dims;
+        double sum = 0;
+        for (int i = 0; i < dims; i++) {
+            double diff = (double) coords[base + i] - p.coords[i];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    /**
+     * A simple accessor for the dimensionality of the stored points.
+     * @return The dimensionality of the stored points.
+     */
+    public int dims() {
+        return dims;
+    }
+
+    /**
+     * Returns an exclusive upper bound on every id that the store has handed out so far. Structures that keep
+     * per-id data in their own arrays can size them by this.
+     * @return One more than the largest id ever returned by {@link #add(KDPoint)}.
+     */
+    public int idBound() {
+        return highWater;
+    }
+
+    /**
+     * Returns the number of points currently held by the store.
+     * @return The number of points added and not yet removed.
+     */
+    public int size() {
+        return highWater - freeCount;
+    }
+}
@@ -24,10 +24,11 @@ import spatial.exceptions.UnimplementedMethodException;
  *
  * @author <a href = "https://github.com/jasonfillipou/">Jason Filippou</a>
  *
+ * @see BoundedQueue
  * @see PriorityQueue
  * @see PriorityQueueNode
  */
-public class BoundedPriorityQueue<T> implements PriorityQueue<T> {
+public class BoundedPriorityQueue<T> implements BoundedQueue<T> {
 
 	/* *********************************************************************** */
 	/* ************* PLACE YOUR PRIVATE FIELDS AND METHODS HERE: ************ */
@@ -109,6 +110,7 @@ public class BoundedPriorityQueue<T> implements PriorityQueue<T> {
 	 * @return The maximum priority element in our queue, or null if the queue is
 	 *         empty.
 	 */
+	@Override
 	public T last() {
 		if (set.isEmpty()) {
 			return null;
@@ -116,6 +118,22 @@ public class BoundedPriorityQueue<T> implements PriorityQueue<T> {
 		return set.last().getData();
 	}
 
+	/**
+	 * Returns the priority of the {@link #last() last} element in the queue. kNN queries
+	 * prune against this bound at every node they visit, so reading it directly saves
+	 * them from recomputing it out of the last element.
+	 *
+	 * @return The maximum priority in our queue, or {@link Double#POSITIVE_INFINITY} if
+	 *         the queue is empty.
+	 */
+	@Override
+	public double worstPriority() {
+		if (set.isEmpty()) {
+			return Double.POSITIVE_INFINITY;
+		}
+		return set.last().getPriority();
+	}
+
 	/**
 	 * Inspects whether a given element is in the queue. O(N) complexity.
 	 * 
@@ -123,6 +141,7 @@ public class BoundedPriorityQueue<T> implements PriorityQueue<T> {
 	 * @return {@code true} iff {@code element} is in {@code this}, {@code false}
 	 *         otherwise.
 	 */
+	@Override
 	public boolean contains(T element) {
 		for (PriorityQueueNode<T> node : this.set) {
 			if (node.getData().equals(element)) {
@@ -133,6 +152,16 @@ public class BoundedPriorityQueue<T> implements PriorityQueue<T> {
 		// return set.contains(element);
 	}
 
+	/**
+	 * Removes every element from the queue, so that it can be reused for another query
+	 * with the same capacity.
+	 */
+	@Override
+	public void clear() {
+		set.clear();
+		counter = 0;
+	}
+
 	@Override
 	public int size() {
 		return set.size();
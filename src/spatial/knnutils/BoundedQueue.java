@@ -0,0 +1,56 @@
+package spatial.knnutils;
+
+/**
+ * <p>{@link BoundedQueue} is the interface of the {@link PriorityQueue}s that kNN queries fill: queues that hold at
+ * most a fixed number of elements, and eject their <b>maximum</b> priority element whenever an enqueue would exceed
+ * that capacity. Ties in priority are broken in insertion (FIFO) order.</p>
+ *
+ * <p>kNN queries prune against the priority of the {@link #last() last} element, so implementations should make
+ * {@link #worstPriority()} cheap.</p>
+ *
+ * @see BoundedPriorityQueue
+ * @see HeapBoundedPriorityQueue
+ */
+public interface BoundedQueue<T> extends PriorityQueue<T> {
+
+	/**
+	 * Inserts element in the queue according to its priority. If the queue is at capacity, the maximum priority
+	 * element is then ejected, which could be element itself. Every priority is valid.
+	 *
+	 * @param element  The element to insert in the queue.
+	 * @param priority The priority of the element to insert in the queue.
+	 */
+	@Override
+	void enqueue(T element, double priority);
+
+	/**
+	 * Returns the last element in the queue, i.e. the one with the maximum priority.
+	 *
+	 * @return The maximum priority element in our queue, or null if the queue is
+	 *         empty.
+	 */
+	T last();
+
+	/**
+	 * Returns the priority of the {@link #last() last} element in the queue.
+	 *
+	 * @return The maximum priority in our queue, or {@link Double#POSITIVE_INFINITY} if
+	 *         the queue is empty.
+	 */
+	double worstPriority();
+
+	/**
+	 * Inspects whether a given element is in the queue.
+	 *
+	 * @param element The element to search for.
+	 * @return {@code true} iff {@code element} is in {@code this}, {@code false}
+	 *         otherwise.
+	 */
+	boolean contains(T element);
+
+	/**
+	 * Removes every element from the queue, so that it can be reused for another query
+	 * with the same capacity.
+	 */
+	void clear();
+}
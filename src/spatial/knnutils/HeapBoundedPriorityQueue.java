@@ -0,0 +1,288 @@
+package spatial.knnutils;
+
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * <p>
+ * {@link HeapBoundedPriorityQueue} is a {@link BoundedQueue} backed by a
+ * binary <b>max</b>-heap over parallel primitive arrays, instead of a
+ * {@link java.util.TreeSet} of {@link PriorityQueueNode}s. Elements are ordered
+ * exactly like in {@link BoundedPriorityQueue}: by priority, with ties broken in
+ * insertion (FIFO) order.
+ * </p>
+ *
+ * <p>
+ * Since the heap keeps the <em>worst</em> element at its root, {@link #last()}
+ * takes constant time and {@link #enqueue(Object, double)} on a full queue either
+ * rejects the element after a single comparison or replaces the root in
+ * O(log k), without allocating anything. This is the access pattern of kNN
+ * queries, which enqueue many candidates and prune against the current worst one.
+ * </p>
+ *
+ * <p>
+ * The operations that need the <em>best</em> element ({@link #first()},
+ * {@link #dequeue()} and iteration) sort the heap in place the first time they
+ * are called after an enqueue. An array sorted from worst to best is itself a
+ * valid max-heap, so after that, {@link #dequeue()} just drops the last slot and
+ * every one of those operations takes constant time until the next enqueue.
+ * </p>
+ *
+ * @see BoundedQueue
+ * @see BoundedPriorityQueue
+ */
+public class HeapBoundedPriorityQueue<T> implements BoundedQueue<T> {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final int capacity;
+	private double[] priorities;
+	private Object[] elements;
+	private int[] orders;
+	private int size;
+	private int counter;
+	// Whether the heap is sorted from worst (index 0) to best (index size-1)
+	private boolean sorted;
+	// Bumped by every structural modification, to detect concurrent modification while iterating
+	private int modCount;
+
+	/**
+	 * Constructor that specifies the size of our queue.
+	 *
+	 * @param size The static size of the {@link HeapBoundedPriorityQueue}. Has to be a
+	 *             positive integer.
+	 * @throws IllegalArgumentException if size is not a strictly positive integer.
+	 */
+	public HeapBoundedPriorityQueue(int size) throws IllegalArgumentException {
+		if (size < 1) {
+			throw new IllegalArgumentException();
+		}
+		capacity = size;
+		int initial = Math.min(size, INITIAL_CAPACITY);
+		priorities = new double[initial];
+		elements = new Object[initial];
+		orders = new int[initial];
+		this.size = counter = modCount = 0;
+		sorted = true;
+	}
+
+	@Override
+	public void enqueue(T element, double priority) {
+		int order = counter++;
+		if (size == capacity) {
+			// The newcomer is inserted last, so it loses every tie with the current worst element
+			if (priority >= priorities[0]) {
+				return;
+			}
+			// Evict the worst element by overwriting the root
+			set(0, element, priority, order);
+			siftDown(0, size);
+		} else {
+			if (size == elements.length) {
+				int grown = (int) Math.min(capacity, 2L * elements.length);
+				priorities = Arrays.copyOf(priorities, grown);
+				elements = Arrays.copyOf(elements, grown);
+				orders = Arrays.copyOf(orders, grown);
+			}
+			set(size, element, priority, order);
+			siftUp(size++);
+		}
+		sorted = false;
+		modCount++;
+	}
+
+	@Override
+	public T dequeue() {
+		if (size == 0) {
+			return null;
+		}
+		sort();
+		// The best element sits in the last slot, and dropping a heap's last slot keeps it a heap
+		T best = element(--size);
+		elements[size] = null;
+		modCount++;
+		return best;
+	}
+
+	@Override
+	public T first() {
+		if (size == 0) {
+			return null;
+		}
+		sort();
+		return element(size - 1);
+	}
+
+	/**
+	 * Returns the last element in the queue, which is always the root of the heap. Constant time.
+	 *
+	 * @return The maximum priority element in our queue, or null if the queue is
+	 *         empty.
+	 */
+	@Override
+	public T last() {
+		if (size == 0) {
+			return null;
+		}
+		return element(0);
+	}
+
+	/**
+	 * Returns the priority of the {@link #last() last} element in the queue, which is
+	 * always the root of the heap. Constant time.
+	 *
+	 * @return The maximum priority in our queue, or {@link Double#POSITIVE_INFINITY} if
+	 *         the queue is empty.
+	 */
+	@Override
+	public double worstPriority() {
+		if (size == 0) {
+			return Double.POSITIVE_INFINITY;
+		}
+		return priorities[0];
+	}
+
+	/**
+	 * Inspects whether a given element is in the queue. O(N) complexity.
+	 *
+	 * @param element The element to search for.
+	 * @return {@code true} iff {@code element} is in {@code this}, {@code false}
+	 *         otherwise.
+	 */
+	@Override
+	public boolean contains(T element) {
+		for (int i = 0; i < size; i++) {
+			if (elements[i].equals(element)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Removes every element from the queue, so that it can be reused for another query
+	 * with the same capacity. Keeps the arrays that the queue has grown so far.
+	 */
+	@Override
+	public void clear() {
+		Arrays.fill(elements, 0, size, null);
+		size = counter = 0;
+		sorted = true;
+		modCount++;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		sort();
+		return new Iterator<T>() {
+			// Walk the sorted heap from best to worst
+			int next = size - 1;
+			final int expectedModCount = modCount;
+
+			@Override
+			public boolean hasNext() {
+				return next >= 0;
+			}
+
+			@Override
+			public T next() {
+				if (modCount != expectedModCount) {
+					throw new ConcurrentModificationException();
+				}
+				if (next < 0) {
+					throw new NoSuchElementException();
+				}
+				return element(next--);
+			}
+		};
+	}
+
+	/* *********************************************************************** */
+	/* ************************** HEAP MAINTENANCE ************************** */
+	/* *********************************************************************** */
+
+	@SuppressWarnings("unchecked")
+	private T element(int i) {
+		return (T) elements[i];
+	}
+
+	private void set(int i, Object element, double priority, int order) {
+		elements[i] = element;
+		priorities[i] = priority;
+		orders[i] = order;
+	}
+
+	// Whether the element in slot i is worse than the element in slot j
+	private boolean worse(int i, int j) {
+		return priorities[i] > priorities[j] || (priorities[i] == priorities[j] && orders[i] > orders[j]);
+	}
+
+	private void swap(int i, int j) {
+		Object e = elements[i];
+		elements[i] = elements[j];
+		elements[j] = e;
+		double p = priorities[i];
+		priorities[i] = priorities[j];
+		priorities[j] = p;
+		int o = orders[i];
+		orders[i] = orders[j];
+		orders[j] = o;
+	}
+
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (!worse(i, parent)) {
+				return;
+			}
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	// Restores the heap property for slot i within the first n slots
+	private void siftDown(int i, int n) {
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= n) {
+				return;
+			}
+			if (child + 1 < n && worse(child + 1, child)) {
+				child++;
+			}
+			if (!worse(child, i)) {
+				return;
+			}
+			swap(i, child);
+			i = child;
+		}
+	}
+
+	private void sort() {
+		if (sorted) {
+			return;
+		}
+		// Heapsort leaves the slots sorted from best to worst...
+		for (int end = size - 1; end > 0; end--) {
+			swap(0, end);
+			siftDown(0, end);
+		}
+		// ...so reverse them, which also makes them a valid max-heap again
+		for (int i = 0, j = size - 1; i < j; i++, j--) {
+			swap(i, j);
+		}
+		sorted = true;
+	}
+}
@@ -39,12 +39,7 @@ public class KNNComparator<T extends KDPoint> implements Comparator<T>, Serializ
 
 	@Override
 	public int compare(T o1, T o2) {
-		double comparison = o1.euclideanDistance(anchor) - o2.euclideanDistance(anchor);
-		if(comparison < 0) // o1 closer
-			return -1;
-		else if(comparison == 0) // same distance
-			return 0;
-		else // o2 closer
-			return 1;
+		// Squared distances order points exactly like distances do
+		return Double.compare(o1.distanceSquared(anchor), o2.distanceSquared(anchor));
 	}
 }
@@ -1,9 +1,16 @@
 package spatial.nodes;
 
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import spatial.kdpoint.KDPoint;
-import spatial.knnutils.BoundedPriorityQueue;
+import spatial.knnutils.BoundedQueue;
 import spatial.knnutils.NNData;
+import spatial.trees.SnapshotReader;
+import spatial.trees.SnapshotWriter;
 
 /**
  * <p>
@@ -31,6 +38,8 @@ public class KDTreeNode {
     private KDPoint p;
     // Height of the subtree rooted at this node
     private int height;
+    // Number of KDPoints in the subtree rooted at this node
+    private int size;
     // Left and right children in the KD-Tree
     private KDTreeNode left, right;
 
@@ -47,6 +56,9 @@ public class KDTreeNode {
      * ********
      */
 
+    // Flags of a node in a snapshot, telling which children follow it
+    private static final int HAS_LEFT = 1, HAS_RIGHT = 2;
+
     /* *********************************************************************** */
     /* *************** IMPLEMENT THE FOLLOWING PUBLIC METHODS: ************ */
     /* *********************************************************************** */
@@ -62,10 +74,198 @@ public class KDTreeNode {
     public KDTreeNode(KDPoint p) {
     this.p = p; // Store the KDPoint in this node
     height = 0; // Leaf node starts with height 0
+    size = 1; // It only holds its own point
     left = null; // No children initially
     right = null;
     }
 
+    private KDTreeNode(KDTreeNode other) {
+        // A shallow copy, for the persistent operations to modify in place of other
+        p = other.p;
+        height = other.height;
+        size = other.size;
+        left = other.left;
+        right = other.right;
+    }
+
+    /**
+     * <p>
+     * Builds a <b>balanced</b> KD-Tree over the provided {@link KDPoint}s and
+     * returns its root. At every level, the median of the points with respect to
+     * the current dimension becomes the splitting point, and the dimension cycles
+     * exactly like it does for {@link #insert(KDPoint, int, int)}. Medians are
+     * found by selection rather than sorting, so the build costs O(n log n) and
+     * the height of the produced tree is about log2(n), regardless of the order
+     * in which the points are provided.
+     * </p>
+     *
+     * <p>
+     * Points that are <b>equal</b> to the median on the current dimension are all
+     * sent to the right subtree, just like insertion would do, so that search and
+     * deletion keep working on the produced tree. Many such ties can make the tree
+     * taller than log2(n).
+     * </p>
+     *
+     * @param points  The {@link KDPoint}s to build the tree from. The array is
+     *                <b>reordered</b> in place; the {@link KDPoint}s themselves
+     *                are stored as-is.
+     * @param currDim The dimension that the root of the produced tree splits on.
+     * @param dims    The total number of dimensions that the space considers.
+     * @return The root of the produced tree, or null if {@code points} is empty.
+     */
+    public static KDTreeNode build(KDPoint[] points, int currDim, int dims) {
+        return build(points, 0, points.length, currDim, dims);
+    }
+
+    private static KDTreeNode build(KDPoint[] points, int lo, int hi, int currDim, int dims) {
+        // Empty range, empty subtree
+        if (lo >= hi) {
+            return null;
+        }
+        var nextDim = (currDim + 1) % dims;
+        int split = splitAtMedian(points, lo, hi, currDim);
+        KDTreeNode node = new KDTreeNode(points[split]);
+        node.left = build(points, lo, split, nextDim, dims);
+        node.right = build(points, split + 1, hi, nextDim, dims);
+        update(node);
+        return node;
+    }
+
+    /**
+     * <p>
+     * Parallel version of {@link #build(KDPoint[], int, int)}. After a range of
+     * points has been split around its median, the left and right subtrees are
+     * built as separate {@link ForkJoinPool} tasks, since they occupy disjoint
+     * parts of the array. Ranges of at most {@link #PARALLEL_BUILD_CUTOFF} points
+     * are built sequentially, because forking tasks for them costs more than it
+     * saves. The produced tree is identical to the one that
+     * {@link #build(KDPoint[], int, int)} produces for the same array.
+     * </p>
+     *
+     * @param points  The {@link KDPoint}s to build the tree from. The array is
+     *                <b>reordered</b> in place.
+     * @param currDim The dimension that the root of the produced tree splits on.
+     * @param dims    The total number of dimensions that the space considers.
+     * @param pool    The {@link ForkJoinPool} that will run the build.
+     * @return The root of the produced tree, or null if {@code points} is empty.
+     */
+    public static KDTreeNode buildParallel(KDPoint[] points, int currDim, int dims, ForkJoinPool pool) {
+        return pool.invoke(new BuildTask(points, 0, points.length, currDim, dims));
+    }
+
+    /**
+     * Ranges of at most this many {@link KDPoint}s are not split into further tasks by
+     * {@link #buildParallel(KDPoint[], int, int, ForkJoinPool)}.
+     */
+    public static final int PARALLEL_BUILD_CUTOFF = 1 << 13;
+
+    private static class BuildTask extends RecursiveTask<KDTreeNode> {
+        private static final long serialVersionUID = 1L;
+
+        private final KDPoint[] points;
+        private final int lo, hi, currDim, dims;
+
+        BuildTask(KDPoint[] points, int lo, int hi, int currDim, int dims) {
+            this.points = points;
+            this.lo = lo;
+            this.hi = hi;
+            this.currDim = currDim;
+            this.dims = dims;
+        }
+
+        @Override
+        protected KDTreeNode compute() {
+            // Small ranges aren't worth the task overhead
+            if (hi - lo <= PARALLEL_BUILD_CUTOFF) {
+                return build(points, lo, hi, currDim, dims);
+            }
+            var nextDim = (currDim + 1) % dims;
+            int split = splitAtMedian(points, lo, hi, currDim);
+            KDTreeNode node = new KDTreeNode(points[split]);
+            // The two halves of the array are disjoint, so they can be built concurrently
+            BuildTask leftTask = new BuildTask(points, lo, split, nextDim, dims);
+            leftTask.fork();
+            node.right = new BuildTask(points, split + 1, hi, nextDim, dims).compute();
+            node.left = leftTask.join();
+            update(node);
+            return node;
+        }
+    }
+
+    private static int splitAtMedian(KDPoint[] points, int lo, int hi, int currDim) {
+        // Bring the median into the middle of the range, smaller values to its left
+        int mid = (lo + hi) >>> 1;
+        select(points, lo, hi - 1, mid, currDim);
+        // Values equal to the median must go right, so split at the first of them
+        int split = partitionBelow(points, lo, mid, points[mid].coords[currDim], currDim);
+        swap(points, split, mid);
+        return split;
+    }
+
+    /**
+     * Reorders {@code points[lo..hi]} so that the point at index nth holds the value of
+     * dimension dim that it would hold if the range were sorted on it, every point before it
+     * has a value no larger and every point after it a value no smaller. Expected linear time.
+     *
+     * @param points The array to reorder in place.
+     * @param lo     The first index of the range, inclusive.
+     * @param hi     The last index of the range, <b>inclusive</b>.
+     * @param nth    The index to select, between lo and hi.
+     * @param dim    The dimension to order the points by.
+     */
+    public static void select(KDPoint[] points, int lo, int hi, int nth, int dim) {
+        // Quickselect with a three-way partition, so that runs of equal values don't
+        // degrade it to quadratic time.
+        while (lo < hi) {
+            int pivot = medianOfThree(points, lo, (lo + hi) >>> 1, hi, dim);
+            int lt = lo, gt = hi, i = lo;
+            while (i <= gt) {
+                int c = points[i].coords[dim];
+                if (c < pivot) {
+                    swap(points, lt++, i++);
+                } else if (c > pivot) {
+                    swap(points, i, gt--);
+                } else {
+                    i++;
+                }
+            }
+            // Now [lo, lt) < pivot, [lt, gt] == pivot and (gt, hi] > pivot
+            if (nth < lt) {
+                hi = lt - 1;
+            } else if (nth > gt) {
+                lo = gt + 1;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private static int medianOfThree(KDPoint[] points, int a, int b, int c, int dim) {
+        int x = points[a].coords[dim], y = points[b].coords[dim], z = points[c].coords[dim];
+        if (x < y) {
+            return y < z ? y : Math.max(x, z);
+        }
+        return x < z ? x : Math.max(y, z);
+    }
+
+    private static int partitionBelow(KDPoint[] points, int lo, int hi, int value, int dim) {
+        // Moves every point of [lo, hi) that is strictly below value to the front of
+        // the range and returns the index of the first point that isn't.
+        int store = lo;
+        for (int i = lo; i < hi; i++) {
+            if (points[i].coords[dim] < value) {
+                swap(points, store++, i);
+            }
+        }
+        return store;
+    }
+
+    private static void swap(KDPoint[] points, int i, int j) {
+        KDPoint tmp = points[i];
+        points[i] = points[j];
+        points[j] = tmp;
+    }
+
     /**
      * <p>
      * Inserts the provided {@link KDPoint} in the tree rooted at this. To select
@@ -100,10 +300,8 @@ public class KDTreeNode {
         } else {
             node.right = insert(node.right, pIn, nextDim, dims);
         }
-        // Update height after insertion
-        int lHeight = node.left == null ? -1 : node.left.height;
-        int rHeight = node.right == null ? -1 : node.right.height;
-        node.height = (Math.max(lHeight, rHeight)) + 1;
+        // Update height and size after insertion
+        update(node);
 
         return node;
     }
@@ -137,7 +335,8 @@ public class KDTreeNode {
      * @param dims    The total number of dimensions that the space considers.
      * @param pIn     The {@link KDPoint} to delete from the node.
      * @see #insert(KDPoint, int, int)
-     * @return A reference to this after the deletion takes place.
+     * @return A reference to this after the deletion takes place. If pIn is not in the subtree, the subtree is left
+     *         as is, so the deletion succeeded iff the returned subtree is null or has a smaller {@link #size()}.
      */
     public KDTreeNode delete(KDPoint pIn, int currDim, int dims) {
         return delete(this, pIn, currDim, dims);
@@ -179,10 +378,69 @@ public class KDTreeNode {
             // Otherwise recurse right
             node.right = delete(node.right, pIn, nextDim, dims);
         }
-        // Update height after deletion
-        int lHeight = node.left == null ? -1 : node.left.height;
-        int rHeight = node.right == null ? -1 : node.right.height;
-        node.height = (Math.max(lHeight, rHeight)) + 1;
+        // Update height and size after deletion
+        update(node);
+        return node;
+    }
+
+    /**
+     * <p>
+     * Deletes every provided {@link KDPoint} from the tree rooted at this, in a
+     * single traversal that the whole batch shares. At every node, the batch is
+     * partitioned around the node's {@link KDPoint} on currDim, exactly like
+     * {@link #delete(KDPoint, int, int)} would route each of them, and each part
+     * only descends into the subtree that could hold it. Subtrees that no part
+     * descends into are never visited.
+     * </p>
+     *
+     * <p>
+     * Every element of points deletes at most one copy of an equal
+     * {@link KDPoint}, so that a batch holding a point twice deletes two copies of
+     * it. If alpha is positive, every visited node whose children are no longer
+     * weight-balanced is {@link #rebuild(int, int) rebuilt}, as in
+     * {@link #rebalance(KDPoint, int, int, double)}.
+     * </p>
+     *
+     * @param points  The {@link KDPoint}s to delete. The array is reordered.
+     * @param currDim The current dimension to consider.
+     * @param dims    The total number of dimensions that the space considers.
+     * @param alpha   The weight balance threshold, strictly between 0.5 and 1, or 0
+     *                to never rebuild anything.
+     * @return A reference to the subtree rooted at this after the deletions,
+     *         which can be null or a new node.
+     * @see #delete(KDPoint, int, int)
+     */
+    public KDTreeNode deleteAll(KDPoint[] points, int currDim, int dims, double alpha) {
+        return deleteAll(this, points, 0, points.length, currDim, dims, alpha);
+    }
+
+    private static KDTreeNode deleteAll(KDTreeNode node, KDPoint[] points, int lo, int hi, int currDim, int dims,
+            double alpha) {
+        if (node == null || lo >= hi) {
+            return node;
+        }
+        var nextDim = (currDim + 1) % dims;
+        // Points strictly below this one on currDim go left, and the rest right, except for
+        // a single copy of this node's point, which is set aside at index mid
+        int mid = partitionBelow(points, lo, hi, node.p.coords[currDim], currDim);
+        boolean here = false;
+        for (int i = mid; i < hi; i++) {
+            if (points[i].equals(node.p)) {
+                swap(points, mid, i);
+                here = true;
+                break;
+            }
+        }
+        node.left = deleteAll(node.left, points, lo, mid, nextDim, dims, alpha);
+        node.right = deleteAll(node.right, points, here ? mid + 1 : mid, hi, nextDim, dims, alpha);
+        update(node);
+        // Only delete this node's point once its subtrees are final, since its replacement comes from them
+        if (here) {
+            node = delete(node, node.p, currDim, dims);
+        }
+        if (node != null && alpha > 0 && Math.max(size(node.left), size(node.right)) > alpha * node.size) {
+            node = node.rebuild(currDim, dims);
+        }
         return node;
     }
 
@@ -193,6 +451,11 @@ public class KDTreeNode {
         }
         var nextDim = (currDim + 1) % dims;
         var lowest = node.p;
+        // Nodes that split on targetDim keep everything lower than themselves on their
+        // left, so the right subtree can't hold anything lower and is skipped
+        if (currDim == targetDim) {
+            return node.left == null ? lowest : inOrder(node.left, targetDim, nextDim, dims);
+        }
         // Check left subtree for lower value
         if (node.left != null) {
             var l = inOrder(node.left, targetDim, nextDim, dims);
@@ -210,40 +473,298 @@ public class KDTreeNode {
         return lowest;
     }
 
+    private static void update(KDTreeNode node) {
+        // Recompute the height and size of node from those of its children
+        int lHeight = node.left == null ? -1 : node.left.height;
+        int rHeight = node.right == null ? -1 : node.right.height;
+        node.height = (Math.max(lHeight, rHeight)) + 1;
+        node.size = 1 + size(node.left) + size(node.right);
+    }
+
+    private static int size(KDTreeNode node) {
+        return node == null ? 0 : node.size;
+    }
+
     /**
-     * Searches the subtree rooted at the current node for the provided
-     * {@link KDPoint}.
-     * 
-     * @param pIn     The {@link KDPoint} to search for.
-     * @param currDim The current dimension considered.
-     * @param dims    The total number of dimensions considered.
-     * @return true iff pIn was found in the subtree rooted at this, false
-     *         otherwise.
+     * <p>
+     * Restores weight balance along the search path of the provided
+     * {@link KDPoint}, scapegoat-style. The path is walked from this downwards,
+     * and the <b>first</b> node found to have a child holding more than
+     * {@code alpha} times its own size is {@link #rebuild(int, int) rebuilt} into
+     * a perfectly balanced subtree. Rebuilding the highest such node leaves every
+     * node on the path weight-balanced, which bounds the depth of the path by
+     * log_{1/alpha}(n).
+     * </p>
+     *
+     * <p>
+     * This is meant to be called right after {@link #insert(KDPoint, int, int)}
+     * or {@link #delete(KDPoint, int, int)} of pIn, since those only change the
+     * sizes of the nodes along its path. The cost of a rebuild is linear in the
+     * size of the rebuilt subtree, which amortizes to O(log n) per update.
+     * </p>
+     *
+     * @param pIn     The {@link KDPoint} whose search path should be checked.
+     * @param currDim The current dimension to consider.
+     * @param dims    The total number of dimensions that the space considers.
+     * @param alpha   The weight balance threshold, strictly between 0.5 and 1.
+     * @return A reference to the subtree rooted at this after rebalancing, which
+     *         is a new node if this itself had to be rebuilt.
+     * @see spatial.trees.KDTree#KDTree(int, double)
      */
-    public boolean search(KDPoint pIn, int currDim, int dims) {
-    // Delegate to static search helper
-    return search(this, pIn, currDim, dims);
+    public KDTreeNode rebalance(KDPoint pIn, int currDim, int dims, double alpha) {
+        return rebalance(this, pIn, currDim, dims, alpha);
     }
 
-    private boolean search(KDTreeNode node, KDPoint pIn, int currDim, int dims) {
-        // If node is null, not found
+    private static KDTreeNode rebalance(KDTreeNode node, KDPoint pIn, int currDim, int dims, double alpha) {
         if (node == null) {
-            return false;
+            return null;
+        }
+        // The highest unbalanced node is our scapegoat; rebuilding it fixes everything below
+        if (Math.max(size(node.left), size(node.right)) > alpha * node.size) {
+            return node.rebuild(currDim, dims);
         }
+        var nextDim = (currDim + 1) % dims;
+        if (pIn.coords[currDim] < node.p.coords[currDim]) {
+            node.left = rebalance(node.left, pIn, nextDim, dims, alpha);
+        } else {
+            node.right = rebalance(node.right, pIn, nextDim, dims, alpha);
+        }
+        // A rebuild below might have made the path shorter
+        update(node);
+        return node;
+    }
+
+    /**
+     * Rebuilds the subtree rooted at this into a balanced subtree holding the same
+     * {@link KDPoint}s.
+     *
+     * @param currDim The dimension that this splits on.
+     * @param dims    The total number of dimensions that the space considers.
+     * @return The root of the rebuilt subtree.
+     * @see #build(KDPoint[], int, int)
+     */
+    public KDTreeNode rebuild(int currDim, int dims) {
+        KDPoint[] points = new KDPoint[size];
+        collect(this, points, 0);
+        return build(points, currDim, dims);
+    }
+
+    private static int collect(KDTreeNode node, KDPoint[] points, int next) {
+        // Copies the points of the subtree into points, starting at index next
+        if (node == null) {
+            return next;
+        }
+        points[next++] = node.p;
+        next = collect(node.left, points, next);
+        return collect(node.right, points, next);
+    }
 
+    /**
+     * <p>
+     * <b>Persistent</b> version of {@link #insert(KDPoint, int, int)}: returns the
+     * root of a tree that holds every {@link KDPoint} of the subtree rooted at
+     * this, plus pIn, and leaves this subtree untouched. Only the nodes on the
+     * search path of pIn are copied; the returned tree shares every other subtree
+     * with this one, so an insertion costs O(height) new nodes.
+     * </p>
+     *
+     * <p>
+     * The persistent operations never modify a node that is reachable from a
+     * root that they were given, so any number of threads may query older roots
+     * while newer ones are being derived from them.
+     * </p>
+     *
+     * @param pIn     The {@link KDPoint} to insert.
+     * @param currDim The current dimension to consider.
+     * @param dims    The total number of dimensions that the space considers.
+     * @return The root of the new tree.
+     * @see #deleted(KDPoint, int, int)
+     */
+    public KDTreeNode inserted(KDPoint pIn, int currDim, int dims) {
+        return inserted(this, pIn, currDim, dims);
+    }
+
+    private static KDTreeNode inserted(KDTreeNode node, KDPoint pIn, int currDim, int dims) {
+        if (node == null) {
+            return new KDTreeNode(pIn);
+        }
         var nextDim = (currDim + 1) % dims;
+        KDTreeNode copy = new KDTreeNode(node);
+        if (pIn.coords[currDim] < node.p.coords[currDim]) {
+            copy.left = inserted(node.left, pIn, nextDim, dims);
+        } else {
+            copy.right = inserted(node.right, pIn, nextDim, dims);
+        }
+        update(copy);
+        return copy;
+    }
 
-        // If current node matches, found
+    /**
+     * <b>Persistent</b> version of {@link #delete(KDPoint, int, int)}: returns the
+     * root of a tree that holds every {@link KDPoint} of the subtree rooted at
+     * this but one copy of pIn, and leaves this subtree untouched. Only the nodes
+     * on the search paths of pIn and of its replacement are copied.
+     *
+     * @param pIn     The {@link KDPoint} to delete.
+     * @param currDim The current dimension to consider.
+     * @param dims    The total number of dimensions that the space considers.
+     * @return The root of the new tree, which can be null, or this itself if pIn is
+     *         not in the subtree.
+     * @see #inserted(KDPoint, int, int)
+     */
+    public KDTreeNode deleted(KDPoint pIn, int currDim, int dims) {
+        return deleted(this, pIn, currDim, dims);
+    }
+
+    private static KDTreeNode deleted(KDTreeNode node, KDPoint pIn, int currDim, int dims) {
+        if (node == null) {
+            return null;
+        }
+        var nextDim = (currDim + 1) % dims;
+        KDTreeNode copy;
         if (node.p.equals(pIn)) {
-            return true;
+            if (node.left == null && node.right == null) {
+                return null;
+            }
+            copy = new KDTreeNode(node);
+            if (node.right == null) {
+                // Like delete(), replace the point with the minimum of the left subtree, which moves right
+                copy.right = node.left;
+                copy.left = null;
+            }
+            copy.p = inOrder(copy.right, currDim, nextDim, dims);
+            copy.right = deleted(copy.right, copy.p, nextDim, dims);
+        } else {
+            boolean goLeft = pIn.coords[currDim] < node.p.coords[currDim];
+            KDTreeNode child = goLeft ? node.left : node.right;
+            KDTreeNode result = deleted(child, pIn, nextDim, dims);
+            if (result == child) {
+                return node; // pIn is not in this subtree, so share it as is
+            }
+            copy = new KDTreeNode(node);
+            if (goLeft) {
+                copy.left = result;
+            } else {
+                copy.right = result;
+            }
         }
+        update(copy);
+        return copy;
+    }
 
-        // Decide to search left or right based on current dimension
-        if (pIn.coords[currDim] < node.p.coords[currDim]) {
-            return search(node.left, pIn, nextDim, dims);
+    /**
+     * <b>Persistent</b> version of {@link #rebalance(KDPoint, int, int, double)}:
+     * the scapegoat subtree is rebuilt into new nodes, and only the nodes above it
+     * are copied. If no subtree along the path needs rebuilding, this is returned
+     * as is.
+     *
+     * @param pIn     The {@link KDPoint} whose search path should be checked.
+     * @param currDim The current dimension to consider.
+     * @param dims    The total number of dimensions that the space considers.
+     * @param alpha   The weight balance threshold, strictly between 0.5 and 1.
+     * @return The root of the rebalanced tree.
+     */
+    public KDTreeNode rebalanced(KDPoint pIn, int currDim, int dims, double alpha) {
+        return rebalanced(this, pIn, currDim, dims, alpha);
+    }
+
+    private static KDTreeNode rebalanced(KDTreeNode node, KDPoint pIn, int currDim, int dims, double alpha) {
+        if (node == null) {
+            return null;
+        }
+        if (Math.max(size(node.left), size(node.right)) > alpha * node.size) {
+            return node.rebuild(currDim, dims); // Only reads the old nodes
+        }
+        var nextDim = (currDim + 1) % dims;
+        boolean goLeft = pIn.coords[currDim] < node.p.coords[currDim];
+        KDTreeNode child = goLeft ? node.left : node.right;
+        KDTreeNode result = rebalanced(child, pIn, nextDim, dims, alpha);
+        if (result == child) {
+            return node;
+        }
+        KDTreeNode copy = new KDTreeNode(node);
+        if (goLeft) {
+            copy.left = result;
         } else {
-            return search(node.right, pIn, nextDim, dims);
+            copy.right = result;
         }
+        update(copy);
+        return copy;
+    }
+
+    /**
+     * <p>
+     * Writes the subtree rooted at this in preorder. Every node is written as a
+     * byte whose bits 0 and 1 tell whether it has a left and a right child,
+     * followed by the coordinates of its {@link KDPoint}. The dimension that a
+     * node splits on follows from its depth, so it is not written.
+     * </p>
+     *
+     * @param out The {@link SnapshotWriter} to write to.
+     * @throws IOException if the snapshot cannot be written.
+     * @see #readFrom(SnapshotReader, int)
+     */
+    public void writeTo(SnapshotWriter out) throws IOException {
+        out.writeByte((left == null ? 0 : HAS_LEFT) | (right == null ? 0 : HAS_RIGHT));
+        out.writePoint(p);
+        if (left != null) {
+            left.writeTo(out);
+        }
+        if (right != null) {
+            right.writeTo(out);
+        }
+    }
+
+    /**
+     * Reads back a subtree written by {@link #writeTo(SnapshotWriter)}, with the
+     * exact same structure, in a single pass. Heights and sizes are recomputed on
+     * the way back up, and no insertion logic runs.
+     *
+     * @param in   The {@link SnapshotReader} to read from.
+     * @param dims The total number of dimensions that the space considers.
+     * @return The root of the subtree read.
+     * @throws IOException if the snapshot cannot be read or is corrupted.
+     */
+    public static KDTreeNode readFrom(SnapshotReader in, int dims) throws IOException {
+        int flags = in.readByte();
+        if ((flags & ~(HAS_LEFT | HAS_RIGHT)) != 0) {
+            throw new StreamCorruptedException("Invalid KD-Tree node flags: " + flags + ".");
+        }
+        KDTreeNode node = new KDTreeNode(in.readPoint(dims));
+        if ((flags & HAS_LEFT) != 0) {
+            node.left = readFrom(in, dims);
+        }
+        if ((flags & HAS_RIGHT) != 0) {
+            node.right = readFrom(in, dims);
+        }
+        update(node);
+        return node;
+    }
+
+    /**
+     * Searches the subtree rooted at the current node for the provided
+     * {@link KDPoint}.
+     * 
+     * @param pIn     The {@link KDPoint} to search for.
+     * @param currDim The current dimension considered.
+     * @param dims    The total number of dimensions considered.
+     * @return true iff pIn was found in the subtree rooted at this, false
+     *         otherwise.
+     */
+    public boolean search(KDPoint pIn, int currDim, int dims) {
+        // A search only ever follows a single path, so walk it in a loop rather than recursing
+        KDTreeNode node = this;
+        while (node != null) {
+            // If current node matches, found
+            if (node.p.equals(pIn)) {
+                return true;
+            }
+            // Decide to search left or right based on current dimension
+            node = (pIn.coords[currDim] < node.p.coords[currDim]) ? node.left : node.right;
+            currDim = (currDim + 1) % dims;
+        }
+        // Fell off the tree, not found
+        return false;
     }
 
     /**
@@ -278,11 +799,15 @@ public class KDTreeNode {
      */
     public void range(KDPoint anchor, Collection<KDPoint> results,
             double range, int currDim, int dims) {
-        range(this, anchor, results, range, currDim, dims);
+        // A negative range contains nothing, but its square would be positive
+        if (range < 0) {
+            return;
+        }
+        range(this, anchor, results, range, range * range, currDim, dims);
     }
 
     private static void range(KDTreeNode node, KDPoint anchor, Collection<KDPoint> results,
-            double range, int currDim, int dims) {
+            double range, double rangeSquared, int currDim, int dims) {
         // If node is null, nothing to check
         if (node == null) {
             return;
@@ -292,19 +817,108 @@ public class KDTreeNode {
 
         // If left subtree could contain points in range, recurse left
         if ((anchor.coords[currDim] - range) <= node.p.coords[currDim]) {
-            range(node.left, anchor, results, range, nextDim, dims);
+            range(node.left, anchor, results, range, rangeSquared, nextDim, dims);
         }
         // If right subtree could contain points in range, recurse right
         if ((anchor.coords[currDim] + range) >= node.p.coords[currDim]) {
-            range(node.right, anchor, results, range, nextDim, dims);
+            range(node.right, anchor, results, range, rangeSquared, nextDim, dims);
         }
         // If current point is in range and not the anchor, add to results
-        if (node.p.euclideanDistance(anchor) <= range && !node.p.equals(anchor)) {
+        if (node.p.distanceSquared(anchor) <= rangeSquared && !node.p.equals(anchor)) {
             results.add(node.p);
         }
 
     }
 
+    /**
+     * <p>
+     * Executes a box range query: every {@link KDPoint} of the subtree that lies
+     * in the axis-aligned box [min, max], <b>INCLUSIVE</b> in every dimension, is
+     * inserted into the {@link Collection} that is passed. Unlike
+     * {@link #range(KDPoint, Collection, double, int, int)}, there is no anchor to
+     * leave out.
+     * </p>
+     *
+     * <p>
+     * The query tracks the region that every node of the subtree spans, which the
+     * splits of its ancestors bound. Subtrees whose region misses the box are
+     * pruned, and subtrees whose region lies inside the box are reported
+     * wholesale, without testing any of their points.
+     * </p>
+     *
+     * @param min     The corner of the box with the smallest coordinates.
+     * @param max     The corner of the box with the largest coordinates.
+     * @param results A {@link Collection} that accumulates the {@link KDPoint}s in
+     *                the box.
+     * @param currDim The current dimension examined by the {@link KDTreeNode}.
+     * @param dims    The total number of dimensions of our {@link KDPoint}s.
+     */
+    public void rangeBox(KDPoint min, KDPoint max, Collection<KDPoint> results, int currDim, int dims) {
+        // The region is a box, lower bounds in [0, dims) and upper bounds in [dims, 2*dims)
+        long[] region = new long[2 * dims];
+        Arrays.fill(region, 0, dims, Long.MIN_VALUE);
+        Arrays.fill(region, dims, 2 * dims, Long.MAX_VALUE);
+        rangeBox(this, min, max, results, region, currDim, dims);
+    }
+
+    private static void rangeBox(KDTreeNode node, KDPoint min, KDPoint max, Collection<KDPoint> results,
+            long[] region, int currDim, int dims) {
+        if (node == null) {
+            return;
+        }
+        if (within(region, min, max, dims)) {
+            collect(node, results);
+            return;
+        }
+        if (inBox(node.p, min, max, dims)) {
+            results.add(node.p);
+        }
+        var nextDim = (currDim + 1) % dims;
+        int split = node.p.coords[currDim];
+        // Both sides include the splitting plane, so that regions cover their subtrees whichever side ties went to.
+        // The region is narrowed in place for each child, then restored.
+        if (node.left != null && min.coords[currDim] <= split) {
+            long upper = region[dims + currDim];
+            region[dims + currDim] = Math.min(upper, split);
+            rangeBox(node.left, min, max, results, region, nextDim, dims);
+            region[dims + currDim] = upper;
+        }
+        if (node.right != null && max.coords[currDim] >= split) {
+            long lower = region[currDim];
+            region[currDim] = Math.max(lower, split);
+            rangeBox(node.right, min, max, results, region, nextDim, dims);
+            region[currDim] = lower;
+        }
+    }
+
+    private static boolean within(long[] region, KDPoint min, KDPoint max, int dims) {
+        for (int d = 0; d < dims; d++) {
+            if (region[d] < min.coords[d] || region[dims + d] > max.coords[d]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean inBox(KDPoint p, KDPoint min, KDPoint max, int dims) {
+        for (int d = 0; d < dims; d++) {
+            if (p.coords[d] < min.coords[d] || p.coords[d] > max.coords[d]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void collect(KDTreeNode node, Collection<KDPoint> results) {
+        // Reports every point of the subtree
+        if (node == null) {
+            return;
+        }
+        results.add(node.p);
+        collect(node.left, results);
+        collect(node.right, results);
+    }
+
     /**
      * <p>
      * Executes a nearest neighbor query, which returns the nearest neighbor, in
@@ -345,11 +959,18 @@ public class KDTreeNode {
      *                * where NN is the nearest neighbor found.
      *
      * @see NNData
-     * @see #kNearestNeighbors(int, KDPoint, BoundedPriorityQueue, int, int)
+     * @see #kNearestNeighbors(int, KDPoint, BoundedQueue, int, int)
      */
     public NNData<KDPoint> nearestNeighbor(KDPoint anchor, int currDim,
             NNData<KDPoint> n, int dims) {
+        // Search with squared distances, and only take the square root of the winner
+        if (n.getBestDist() >= 0) {
+            n.update(n.getBestGuess(), n.getBestDist() * n.getBestDist());
+        }
         nearestNeighbor(this, anchor, currDim, n, dims);
+        if (n.getBestDist() >= 0) {
+            n.update(n.getBestGuess(), Math.sqrt(n.getBestDist()));
+        }
         return n;
     }
 
@@ -360,9 +981,10 @@ public class KDTreeNode {
             return;
         }
         var nextDim = (currDim + 1) % dims;
-        // Distance between anchor and current node's point
-        double diff = Math.abs(anchor.coords[currDim] - node.p.coords[currDim]);
-        double dist = node.p.euclideanDistance(anchor);
+        // Squared distances between anchor and current node's point and splitting plane
+        double diff = (double) anchor.coords[currDim] - node.p.coords[currDim];
+        double diffSquared = diff * diff;
+        double dist = node.p.distanceSquared(anchor);
 
         // If this point is closer than current best and not anchor, update best
         if ((dist < n.getBestDist() || n.getBestDist() < 0) && !node.p.equals(anchor)) {
@@ -373,12 +995,12 @@ public class KDTreeNode {
         if (anchor.coords[currDim] < node.p.coords[currDim]) {
             nearestNeighbor(node.left, anchor, nextDim, n, dims);
             // If splitting plane is close enough, check other side
-            if (diff < n.getBestDist()) {
+            if (diffSquared < n.getBestDist() || n.getBestDist() < 0) {
                 nearestNeighbor(node.right, anchor, nextDim, n, dims);
             }
         } else {
             nearestNeighbor(node.right, anchor, nextDim, n, dims);
-            if (diff < n.getBestDist()) {
+            if (diffSquared < n.getBestDist() || n.getBestDist() < 0) {
                 nearestNeighbor(node.left, anchor, nextDim, n, dims);
             }
         }
@@ -399,7 +1021,7 @@ public class KDTreeNode {
      * implicitly
      * <b>bounds</b> the acceptable solutions under the current <b>worst
      * solution</b>, which is maintained as the
-     * last element of the provided {@link BoundedPriorityQueue}. This is another
+     * last element of the provided {@link BoundedQueue}. This is another
      * instance of &quot;branch-and-bound&quot;
      * Remember that when we want to determine if we need to recurse to a different
      * subtree, it is <b>necessary</b>
@@ -414,7 +1036,7 @@ public class KDTreeNode {
      * implementation of
      * {@link #nearestNeighbor(KDPoint, int, NNData, int)} is the necessity of using
      * the class
-     * {@link BoundedPriorityQueue} effectively. Consult your various resources
+     * {@link BoundedQueue} effectively. Consult your various resources
      * to understand how you should be using this class.
      * </p>
      *
@@ -425,30 +1047,32 @@ public class KDTreeNode {
      *                query.
      * @param currDim The current dimension considered.
      * @param dims    The total number of dimensions considered.
-     * @param queue   A {@link BoundedPriorityQueue} that will maintain at most k
+     * @param queue   A {@link BoundedQueue} that will maintain at most k
      *                nearest neighbors of
      *                the anchor point at all times, sorted by euclideanDistance to
      *                the point.
      *
-     * @see BoundedPriorityQueue
+     * @see BoundedQueue
      */
-    public void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue, int currDim, int dims) {
+    public void kNearestNeighbors(int k, KDPoint anchor, BoundedQueue<KDPoint> queue, int currDim, int dims) {
         kNearestNeighbors(this, k, anchor, queue, currDim, dims);
     }
 
-    private static void kNearestNeighbors(KDTreeNode node, int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue,
+    private static void kNearestNeighbors(KDTreeNode node, int k, KDPoint anchor, BoundedQueue<KDPoint> queue,
             int currDim, int dims) {
         // If node is null, nothing to check
         if (node == null) {
             return;
         }
         var nextDim = (currDim + 1) % dims;
-        // Distance between anchor and current node's point
-        double diff = Math.abs(anchor.coords[currDim] - node.p.coords[currDim]);
-        double dist = node.p.euclideanDistance(anchor);
+        // Squared distances between anchor and current node's point and splitting plane.
+        // The queue is ordered by squared distance, which orders points exactly like distance.
+        double diff = (double) anchor.coords[currDim] - node.p.coords[currDim];
+        double diffSquared = diff * diff;
+        double dist = node.p.distanceSquared(anchor);
 
         // If this point is closer than the farthest in queue and not anchor, enqueue
-        if (dist < calcDistance(anchor, queue, k) && !node.p.equals(anchor)) {
+        if (dist < calcDistance(queue, k) && !node.p.equals(anchor)) {
             queue.enqueue(node.p, dist);
         }
 
@@ -456,24 +1080,24 @@ public class KDTreeNode {
         if (anchor.coords[currDim] < node.p.coords[currDim]) {
             kNearestNeighbors(node.left, k, anchor, queue, nextDim, dims);
             // If splitting plane is close enough, check other side
-            if (diff < calcDistance(anchor, queue, k)) {
+            if (diffSquared < calcDistance(queue, k)) {
                 kNearestNeighbors(node.right, k, anchor, queue, nextDim, dims);
             }
         } else {
             kNearestNeighbors(node.right, k, anchor, queue, nextDim, dims);
-            if (diff < calcDistance(anchor, queue, k)) {
+            if (diffSquared < calcDistance(queue, k)) {
                 kNearestNeighbors(node.left, k, anchor, queue, nextDim, dims);
             }
         }
     }
 
-    private static double calcDistance(KDPoint anchor, BoundedPriorityQueue<KDPoint> queue, int k) {
+    private static double calcDistance(BoundedQueue<KDPoint> queue, int k) {
         // If queue isn't full, treat as infinite distance (so we always add)
         if (queue.size() < k) {
             return Double.POSITIVE_INFINITY;
         }
-        // Otherwise, return distance to farthest neighbor in queue
-        return queue.last().euclideanDistance(anchor);
+        // Otherwise, return squared distance to farthest neighbor in queue, which is its priority
+        return queue.worstPriority();
     }
 
     /**
@@ -491,6 +1115,16 @@ public class KDTreeNode {
         return height;
     }
 
+    /**
+     * Returns the number of {@link KDPoint}s held by the subtree rooted at the
+     * current node, this one's included.
+     *
+     * @return the size of the subtree rooted at the current node.
+     */
+    public int size() {
+        return size;
+    }
+
     /**
      * A simple getter for the {@link KDPoint} held by the current node. Remember:
      * {@link KDPoint}s ARE
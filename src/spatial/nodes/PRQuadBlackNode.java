@@ -2,11 +2,15 @@ package spatial.nodes;
 
 import spatial.exceptions.UnimplementedMethodException;
 import spatial.kdpoint.KDPoint;
-import spatial.knnutils.BoundedPriorityQueue;
+import spatial.knnutils.BoundedQueue;
 import spatial.knnutils.NNData;
 import spatial.trees.CentroidAccuracyException;
 import spatial.trees.PRQuadTree;
+import spatial.trees.SnapshotReader;
+import spatial.trees.SnapshotWriter;
 
+import java.io.IOException;
+import java.io.StreamCorruptedException;
 import java.util.ArrayList;
 import java.util.Collection;
 
@@ -158,6 +162,21 @@ public class PRQuadBlackNode extends PRQuadNode {
         }
     }
 
+    /**
+     * Inserts p into this node like {@link #insert(KDPoint, int)}, unless the bucket already holds it, in which case
+     * the node is returned unchanged.
+     *
+     * @param p A {@link KDPoint} to insert into the subtree rooted at the current node.
+     * @param k The side length of the quadrant spanned by the <b>current</b> node, as in
+     *          {@link #insert(KDPoint, int)}.
+     * @return The subtree rooted at the current node, potentially adjusted after insertion.
+     */
+    @Override
+    public PRQuadNode insertIfAbsent(KDPoint p, int k) {
+        // A duplicate is detected by the caller through our unchanged count
+        return this.list.contains(p) ? this : insert(p, k);
+    }
+
     /**
      * <p>
      * <b>Successfully</b> deleting a {@link KDPoint} from a {@link PRQuadBlackNode}
@@ -178,21 +197,50 @@ public class PRQuadBlackNode extends PRQuadNode {
      */
     @Override
     public PRQuadNode delete(KDPoint p) {
-        // If the point exists in this node, remove it.
-        if (this.list.contains(p)) {
-            if (this.list.size() > 1) {
-                // If there are still points left after removal, just remove and return this node.
-                list.remove(p);
-                return this;
-            } else {
-                // If this was the last point, return null to indicate the node should be deleted (turned into a white node).
-                return null;
-            }
-        } else {
-            // If the point isn't found, do nothing and return this node unchanged.
-            return this;
+        if (this.list.size() == 1) {
+            // If this is the last point, return null to indicate the node should be deleted (turned into a white node).
+            return this.list.get(0).equals(p) ? null : this;
         }
+        // Otherwise remove the point if it exists in this node; if it isn't found, the node is unchanged.
+        this.list.remove(p);
+        return this;
+    }
+
+    @Override
+    public void writeTo(SnapshotWriter out) throws IOException {
+        out.writeByte(BLACK);
+        out.writeInt(this.list.size());
+        for (KDPoint point : this.list) {
+            out.writePoint(point);
+        }
+    }
+
+    static PRQuadBlackNode readBucket(SnapshotReader in, KDPoint centroid, int k, int bucketingParam)
+            throws IOException {
+        // The bucket of a black node is never empty, and never holds more than bucketingParam points
+        int size = in.readInt();
+        if (size < 1 || size > bucketingParam) {
+            throw new StreamCorruptedException("Invalid PR-QuadTree bucket size: " + size + ".");
+        }
+        PRQuadBlackNode node = new PRQuadBlackNode(centroid, k, bucketingParam);
+        node.list.ensureCapacity(size);
+        for (int i = 0; i < size; i++) {
+            node.list.add(in.readPoint(centroid.coords.length));
+        }
+        return node;
+    }
+
+    @Override
+    public PRQuadNode grow() {
+        return enlarge(this.centroid);
+    }
 
+    @Override
+    PRQuadNode enlarge(KDPoint centroid) {
+        // A leaf has no orthants to preserve, so the same points simply move into the bigger space
+        PRQuadBlackNode enlarged = new PRQuadBlackNode(centroid, this.k + 1, this.bucketingParam);
+        enlarged.list.addAll(this.list);
+        return enlarged;
     }
 
     @Override
@@ -234,43 +282,81 @@ public class PRQuadBlackNode extends PRQuadNode {
             double range) {
         // For each point in this node, check if it's within the specified range from the anchor.
         // If so, and it's not the anchor itself, add it to the results.
+        // A negative range contains nothing, but its square would be positive.
+        if (range < 0) {
+            return;
+        }
+        double rangeSquared = range * range;
         for (KDPoint point : this.list) {
-            if (point.euclideanDistance(anchor) <= range && !point.equals(anchor)) {
+            if (point.distanceSquared(anchor) <= rangeSquared && !point.equals(anchor)) {
                 results.add(point);
             }
         }
     }
 
+    @Override
+    public void rangeBox(KDPoint min, KDPoint max, Collection<KDPoint> results) {
+        if (spannedBy(min, max)) {
+            results.addAll(this.list);
+            return;
+        }
+        for (KDPoint point : this.list) {
+            if (inBox(point, min, max)) {
+                results.add(point);
+            }
+        }
+    }
+
+    private static boolean inBox(KDPoint p, KDPoint min, KDPoint max) {
+        for (int d = 0; d < p.coords.length; d++) {
+            if (p.coords[d] < min.coords[d] || p.coords[d] > max.coords[d]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    void collect(Collection<KDPoint> results) {
+        results.addAll(this.list);
+    }
+
     @Override
     public NNData<KDPoint> nearestNeighbor(KDPoint anchor, NNData<KDPoint> n) {
+        return nearestNeighborBySquaredDistance(anchor, n);
+    }
+
+    @Override
+    void nearestNeighborSquared(KDPoint anchor, NNData<KDPoint> n) {
         // For each point, check if it's closer to the anchor than the current best.
         // If so, update the nearest neighbor data.
         for (KDPoint point : this.list) {
-            if ((point.euclideanDistance(anchor) < n.getBestDist() || n.getBestDist() < 0) && !point.equals(anchor)) {
-                n.update(point, point.euclideanDistance(anchor));
+            double dist = point.distanceSquared(anchor);
+            if ((dist < n.getBestDist() || n.getBestDist() < 0) && !point.equals(anchor)) {
+                n.update(point, dist);
             }
         }
-        return n;
     }
 
     @Override
-    public void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue) {
+    public void kNearestNeighbors(int k, KDPoint anchor, BoundedQueue<KDPoint> queue) {
         // For each point, check if it's closer than the farthest point currently in the queue.
-        // If so, and it's not the anchor, enqueue it with its distance.
+        // If so, and it's not the anchor, enqueue it with its squared distance.
         for (KDPoint point : this.list) {
-            double dist = point.euclideanDistance(anchor);
-            if (dist < calcDistance(anchor, queue, k) && !point.equals(anchor)) {
+            double dist = point.distanceSquared(anchor);
+            if (dist < calcDistance(queue, k) && !point.equals(anchor)) {
                 queue.enqueue(point, dist);
             }
         }
     }
 
-    private static double calcDistance(KDPoint anchor, BoundedPriorityQueue<KDPoint> queue, int k) {
+    private static double calcDistance(BoundedQueue<KDPoint> queue, int k) {
         // If the queue isn't full, return infinity so any point will be added.
         if (queue.size() < k) {
             return Double.POSITIVE_INFINITY;
         }
-        // Otherwise, return the distance from the anchor to the farthest point in the queue.
-        return queue.last().euclideanDistance(anchor);
+        // Otherwise, return the squared distance from the anchor to the farthest point in the queue,
+        // which is its priority.
+        return queue.worstPriority();
     }
 }
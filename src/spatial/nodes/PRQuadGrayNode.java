@@ -1,10 +1,14 @@
 package spatial.nodes;
 
+import java.io.IOException;
+import java.io.StreamCorruptedException;
 import java.util.Collection;
 import spatial.kdpoint.KDPoint;
-import spatial.knnutils.BoundedPriorityQueue;
+import spatial.knnutils.BoundedQueue;
 import spatial.knnutils.NNData;
 import spatial.trees.PRQuadTree;
+import spatial.trees.SnapshotReader;
+import spatial.trees.SnapshotWriter;
 
 /**
  * <p>
@@ -12,7 +16,9 @@ import spatial.trees.PRQuadTree;
  * maintains the following invariants:
  * </p>
  * <ul>
- * <li>Its children pointer buffer is non-null and has a length of 4.</li>
+ * <li>Its children pointer buffer is non-null and has a length of 2^d, where d is
+ * the dimensionality of its centroid: 4 in 2D (a quadtree), 8 in 3D (an octree)
+ * and so on.</li>
  * <li>If there is at least one black node child, the total number of
  * {@link KDPoint}s stored
  * by <b>all</b> of the children is greater than the bucketing parameter
@@ -31,9 +37,19 @@ public class PRQuadGrayNode extends PRQuadNode {
     /* ******************************************************************** */
     /* ************* PLACE ANY PRIVATE FIELDS AND METHODS HERE: ************ */
     /* ********************************************************************** */
-    // 2x2 array representing the four quadrants: NW, NE, SW, SE
+    // One child per orthant of the centroid, indexed by childIndex(). In 2D, the
+    // indices 0..3 are the NW, NE, SW and SE quadrants, in that order.
     // Each entry can be null (white node), PRQuadBlackNode, or PRQuadGrayNode
-    private PRQuadNode[][] list;
+    private PRQuadNode[] list;
+
+    // The bit of a child index that is set for the lower, rather than the upper, half of
+    // dimension 1, so that 2D children come in the NW, NE, SW, SE order of getChildren()
+    private final int southBit;
+
+    // Cached number of points and height of the subtree rooted at this node, kept up to date by
+    // every insertion and deletion below it, so that count() and height() take constant time
+    private int count;
+    private int height;
 
     /* *********************************************************************** */
     /* *************** IMPLEMENT THE FOLLOWING PUBLIC METHODS: ************ */
@@ -54,8 +70,10 @@ public class PRQuadGrayNode extends PRQuadNode {
      */
     public PRQuadGrayNode(KDPoint centroid, int k, int bucketingParam) {
     super(centroid, k, bucketingParam); // Initialize centroid, dimension, and bucketing param
-    // Create empty 2x2 grid for children (NW, NE, SW, SE)
-    list = new PRQuadNode[2][2];
+    // Create one empty slot per orthant: 2^d of them
+    list = new PRQuadNode[1 << centroid.coords.length];
+    southBit = (centroid.coords.length > 1) ? 2 : 0;
+    count = height = 0;
     }
 
     /**
@@ -85,69 +103,104 @@ public class PRQuadGrayNode extends PRQuadNode {
      */
     @Override
     public PRQuadNode insert(KDPoint p, int k) {
-        // Determine which quadrant the point belongs to and insert recursively
-        if (p.coords[0] < this.centroid.coords[0]) { // point is left of centroid
-            if (p.coords[1] >= this.centroid.coords[1]) { // NW quadrant
-                if (this.list[0][0] == null) { // If child is white, create new black node
-                    this.list[0][0] = new PRQuadBlackNode(newCentroid(this.centroid, k, "NW"), k - 1,
-                            this.bucketingParam, p);
-                    return this;
-                } else { // If child exists, recurse
-                    this.list[0][0] = this.list[0][0].insert(p, k - 1);
-                }
-            } else { // SW quadrant
-                if (this.list[1][0] == null) {
-                    this.list[1][0] = new PRQuadBlackNode(newCentroid(this.centroid, k, "SW"), k - 1,
-                            this.bucketingParam, p);
-                    return this;
-                } else {
-                    this.list[1][0] = this.list[1][0].insert(p, k - 1);
-                }
-            }
-        } else { // point is right of centroid
-            if (p.coords[1] >= this.centroid.coords[1]) { // NE quadrant
-                if (this.list[0][1] == null) {
-                    this.list[0][1] = new PRQuadBlackNode(newCentroid(this.centroid, k, "NE"), k - 1,
-                            this.bucketingParam, p);
-                    return this;
-                } else {
-                    this.list[0][1] = this.list[0][1].insert(p, k - 1);
-                }
-            } else { // SE quadrant
-                if (this.list[1][1] == null) {
-                    this.list[1][1] = new PRQuadBlackNode(newCentroid(this.centroid, k, "SE"), k - 1,
-                            this.bucketingParam, p);
-                    return this;
-                } else {
-                    this.list[1][1] = this.list[1][1].insert(p, k - 1);
-                }
-            }
+        // Determine which orthant the point belongs to and insert recursively
+        int i = childIndex(p);
+        if (this.list[i] == null) { // If child is white, create new black node
+            this.list[i] = new PRQuadBlackNode(newCentroid(i, k), k - 1, this.bucketingParam, p);
+        } else { // If child exists, recurse
+            this.list[i] = this.list[i].insert(p, k - 1);
         }
+        inserted(i);
         // Always return this node (gray) after insertion
         return this;
     }
 
-    private KDPoint newCentroid(KDPoint currCentroid, int k, String quadrant) {
-        // Helper to calculate the centroid for a child quadrant
-        KDPoint newCentroid = new KDPoint();
-        int offset = (int) (Math.pow(2, k - 2));
-        if (quadrant.equals("NW")) {
-            newCentroid.coords[0] = currCentroid.coords[0] - offset;
-            newCentroid.coords[1] = currCentroid.coords[1] + offset;
-        } else if (quadrant.equals("NE")) {
-            newCentroid.coords[0] = currCentroid.coords[0] + offset;
-            newCentroid.coords[1] = currCentroid.coords[1] + offset;
-        } else if (quadrant.equals("SW")) {
-            newCentroid.coords[0] = currCentroid.coords[0] - offset;
-            newCentroid.coords[1] = currCentroid.coords[1] - offset;
-        } else if (quadrant.equals("SE")) {
-            newCentroid.coords[0] = currCentroid.coords[0] + offset;
-            newCentroid.coords[1] = currCentroid.coords[1] - offset;
+    @Override
+    public PRQuadNode insertIfAbsent(KDPoint p, int k) {
+        // Same as insert(), except that an existing child may already hold the point,
+        // which we can tell from its count without searching it first
+        int i = childIndex(p);
+        if (this.list[i] == null) {
+            this.list[i] = new PRQuadBlackNode(newCentroid(i, k), k - 1, this.bucketingParam, p);
         } else {
-            // Invalid quadrant string
-            return null;
+            int before = this.list[i].count();
+            this.list[i] = this.list[i].insertIfAbsent(p, k - 1);
+            if (this.list[i].count() == before) {
+                return this;
+            }
+        }
+        inserted(i);
+        return this;
+    }
+
+    private void inserted(int i) {
+        // Insertion can only deepen the subtree, and only through the child we just updated
+        this.count++;
+        this.height = Math.max(this.height, this.list[i].height() + 1);
+    }
+
+    private KDPoint newCentroid(int index, int k) {
+        // Helper to calculate the centroid of a child orthant: a quarter of this node's side
+        // away from the centroid, towards the child's half of every dimension
+        int[] coords = new int[this.centroid.coords.length];
+        int offset = (k >= 2) ? 1 << (k - 2) : 0;
+        for (int d = 0; d < coords.length; d++) {
+            coords[d] = this.centroid.coords[d] + (isUpper(index, d) ? offset : -offset);
         }
-        return newCentroid;
+        return new KDPoint(coords);
+    }
+
+    @Override
+    public void writeTo(SnapshotWriter out) throws IOException {
+        out.writeByte(GRAY);
+        for (PRQuadNode child : this.list) {
+            if (child == null) {
+                out.writeByte(WHITE);
+            } else {
+                child.writeTo(out);
+            }
+        }
+    }
+
+    static PRQuadGrayNode readChildren(SnapshotReader in, KDPoint centroid, int k, int bucketingParam)
+            throws IOException {
+        // Children come in index order, so their centroids follow from ours, like in insert()
+        PRQuadGrayNode node = new PRQuadGrayNode(centroid, k, bucketingParam);
+        for (int i = 0; i < node.list.length; i++) {
+            node.list[i] = readFrom(in, node.newCentroid(i, k), k - 1, bucketingParam);
+            if (node.list[i] != null) {
+                node.count += node.list[i].count();
+            }
+        }
+        if (node.count == 0) {
+            throw new StreamCorruptedException("A PR-QuadTree gray node has no children.");
+        }
+        node.updateHeight();
+        return node;
+    }
+
+    @Override
+    public PRQuadNode grow() {
+        // Every child moves one level down, into the inner orthant of a twice as big child
+        PRQuadGrayNode grown = new PRQuadGrayNode(this.centroid, this.k + 1, this.bucketingParam);
+        for (int i = 0; i < this.list.length; i++) {
+            if (this.list[i] != null) {
+                grown.list[i] = this.list[i].enlarge(grown.newCentroid(i, grown.k));
+            }
+        }
+        grown.count = this.count;
+        grown.updateHeight();
+        return grown;
+    }
+
+    @Override
+    PRQuadNode enlarge(KDPoint centroid) {
+        // Adopt this node as the child whose orthant it spans in the enlarged space
+        PRQuadGrayNode enlarged = new PRQuadGrayNode(centroid, this.k + 1, this.bucketingParam);
+        enlarged.list[enlarged.childIndex(this.centroid)] = this;
+        enlarged.count = this.count;
+        enlarged.height = this.height + 1;
+        return enlarged;
     }
 
     /**
@@ -191,62 +244,36 @@ public class PRQuadGrayNode extends PRQuadNode {
      */
     @Override
     public PRQuadNode delete(KDPoint p) {
-        // If point is not found, do nothing
-        if (this.search(p) == false) {
-            return this;
-        }
-        // Recursively delete from the correct quadrant
+        // Recursively delete from the correct orthant. If point is not found there, do nothing:
+        // the child is then still there, with the same count, so no search is needed beforehand.
         // If after deletion all children are null, collapse this node
         // Otherwise, check if all points fit in a black node and merge if possible
-        if (p.coords[0] < this.centroid.coords[0]) {
-            if (p.coords[1] >= this.centroid.coords[1]) { // NW
-                if (this.list[0][0] == null) {
-                    return null;
-                } else {
-                    this.list[0][0] = this.list[0][0].delete(p);
-                    if (this.list[0][0] == null && this.list[0][1] == null && this.list[1][0] == null
-                            && this.list[1][1] == null) {
-                        return null;
-                    }
-                    return newBlackMerge(this);
-                }
-            } else { // SW
-                if (this.list[1][0] == null) {
-                    return null;
-                } else {
-                    this.list[1][0] = this.list[1][0].delete(p);
-                    if (this.list[0][0] == null && this.list[0][1] == null && this.list[1][0] == null
-                            && this.list[1][1] == null) {
-                        return null;
-                    }
-                    return newBlackMerge(this);
-                }
-            }
-        } else {
-            if (p.coords[1] >= this.centroid.coords[1]) { // NE
-                if (this.list[0][1] == null) {
-                    return null;
-                } else {
-                    this.list[0][1] = this.list[0][1].delete(p);
-                    if (this.list[0][0] == null && this.list[0][1] == null && this.list[1][0] == null
-                            && this.list[1][1] == null) {
-                        return null;
-                    }
-                    return newBlackMerge(this);
-                }
-            } else { // SE
-                if (this.list[1][1] == null) {
-                    return null;
-                } else {
-                    this.list[1][1] = this.list[1][1].delete(p);
-                    if (this.list[0][0] == null && this.list[0][1] == null && this.list[1][0] == null
-                            && this.list[1][1] == null) {
-                        return null;
-                    }
-                    return newBlackMerge(this);
-                }
+        int i = childIndex(p);
+        if (this.list[i] == null) {
+            return this;
+        }
+        int before = this.list[i].count();
+        this.list[i] = this.list[i].delete(p);
+        if (this.list[i] != null && this.list[i].count() == before) {
+            return this;
+        }
+        this.count--;
+        if (this.count == 0) {
+            return null;
+        }
+        updateHeight();
+        return newBlackMerge(this);
+    }
+
+    private void updateHeight() {
+        // Every child's height is cached too, so this only looks at the children themselves
+        int max = -1;
+        for (PRQuadNode child : this.list) {
+            if (child != null) {
+                max = Math.max(max, child.height());
             }
         }
+        this.height = max + 1;
     }
 
     private static PRQuadNode newBlackMerge(PRQuadGrayNode node) {
@@ -254,22 +281,19 @@ public class PRQuadGrayNode extends PRQuadNode {
         if (node.count() <= node.bucketingParam) {
             PRQuadBlackNode n = new PRQuadBlackNode(node.centroid, node.k,
                     node.bucketingParam);
-            for (int x = 0; x < 2; x++) {
-                for (int y = 0; y < 2; y++) {
-                    // Only merge if child is black or null
-                    if ((node.list[x][y] != null && node.list[x][y] instanceof PRQuadBlackNode)
-                            || node.list[x][y] == null) {
-                        if (node.list[x][y] == null) {
-                            continue;
-                        }
-                        PRQuadBlackNode black = (PRQuadBlackNode) node.list[x][y];
-                        for (KDPoint blackP : (black.getPoints())) {
-                            n.insert(blackP, n.k);
-                        }
-                    } else {
-                        // If any child is gray, cannot merge
-                        return node;
+            for (PRQuadNode child : node.list) {
+                // Only merge if child is black or null
+                if (child == null) {
+                    continue;
+                }
+                if (child instanceof PRQuadBlackNode) {
+                    PRQuadBlackNode black = (PRQuadBlackNode) child;
+                    for (KDPoint blackP : (black.getPoints())) {
+                        n.insert(blackP, n.k);
                     }
+                } else {
+                    // If any child is gray, cannot merge
+                    return node;
                 }
             }
             return n;
@@ -278,90 +302,23 @@ public class PRQuadGrayNode extends PRQuadNode {
         return node;
     }
 
-    // private static PRQuadNode newBlackMerge(PRQuadGrayNode node) {
-    // if (node.count() <= node.bucketingParam) {
-    // PRQuadBlackNode n = new PRQuadBlackNode(node.centroid, node.k,
-    // node.bucketingParam);
-    // for (int x = 0; x < 2; x++) {
-    // for (int y = 0; y < 2; y++) {
-    // if ((node.list[x][y] != null && node.list[x][y] instanceof PRQuadBlackNode)
-    // || node.list[x][y] == null) {
-    // if (node.list[x][y] == null) {
-    // // do nothing
-    // continue;
-    // }
-    // PRQuadBlackNode black = (PRQuadBlackNode) node.list[x][y];
-    // for (KDPoint blackP : (black.list)) {
-    // n.insert(blackP, n.k);
-    // }
-    // } else {
-    // return node;
-    // }
-    // }
-    // }
-    // return n;
-    // }
-    // return node;
-    // }
-
     @Override
     public boolean search(KDPoint p) {
-        // Recursively search for the point in the correct quadrant
-        if (p.coords[0] < this.centroid.coords[0]) {
-            if (p.coords[1] >= this.centroid.coords[1]) { // NW
-                if (this.list[0][0] == null) {
-                    return false;
-                } else {
-                    return this.list[0][0].search(p);
-                }
-            } else { // SW
-                if (this.list[1][0] == null) {
-                    return false;
-                } else {
-                    return this.list[1][0].search(p);
-                }
-            }
-        } else {
-            if (p.coords[1] >= this.centroid.coords[1]) { // NE
-                if (this.list[0][1] == null) {
-                    return false;
-                } else {
-                    return this.list[0][1].search(p);
-                }
-            } else { // SE
-                if (this.list[1][1] == null) {
-                    return false;
-                } else {
-                    return this.list[1][1].search(p);
-                }
-            }
-        }
+        // Recursively search for the point in the correct orthant
+        PRQuadNode child = this.list[childIndex(p)];
+        return child != null && child.search(p);
     }
 
     @Override
     public int height() {
-    // Height is the max height among all children, plus one for this node
-    int nwCount = (this.list[0][0] == null) ? -1 : this.list[0][0].height();
-    int neCount = (this.list[0][1] == null) ? -1 : this.list[0][1].height();
-    int swCount = (this.list[1][0] == null) ? -1 : this.list[1][0].height();
-    int seCount = (this.list[1][1] == null) ? -1 : this.list[1][1].height();
-
-    int max1 = Math.max(nwCount, neCount);
-    int max2 = Math.max(swCount, seCount);
-    int max = Math.max(max1, max2);
-    return max + 1;
-
+    // Height is the max height among all children, plus one for this node, cached by insert() and delete()
+    return this.height;
     }
 
     @Override
     public int count() {
-    // Count is the sum of all points in all children
-    int nwCount = (this.list[0][0] == null) ? 0 : this.list[0][0].count();
-    int neCount = (this.list[0][1] == null) ? 0 : this.list[0][1].count();
-    int swCount = (this.list[1][0] == null) ? 0 : this.list[1][0].count();
-    int seCount = (this.list[1][1] == null) ? 0 : this.list[1][1].count();
-
-    return nwCount + neCount + swCount + seCount;
+    // Count is the sum of all points in all children, cached by insert() and delete()
+    return this.count;
     }
 
     /**
@@ -376,302 +333,136 @@ public class PRQuadGrayNode extends PRQuadNode {
      *         <li>2 is SW</li>
      *         <li>3 is SE</li>
      *         </ol>
+     *         In d dimensions, the array has 2^d entries, and bit i of an entry's
+     *         index is set iff the child covers the upper half of dimension i, except
+     *         for dimension 1, where it is set iff the child covers the lower half.
      */
     public PRQuadNode[] getChildren() {
-    // Return children in Morton (Z) order: NW, NE, SW, SE
-    PRQuadNode[] children = new PRQuadNode[4];
-    children[0] = this.list[0][0]; // NW
-    children[1] = this.list[0][1]; // NE
-    children[2] = this.list[1][0]; // SW
-    children[3] = this.list[1][1]; // SE
-    return children;
+    // Children are stored in Morton (Z) order already: NW, NE, SW, SE in 2D
+    return this.list.clone();
     }
 
     @Override
     public void range(KDPoint anchor, Collection<KDPoint> results,
             double range) {
-    // Calculate distance from anchor to each quadrant's bounding box
-    double nwDist = (this.list[0][0] == null) ? Double.MAX_VALUE
-        : nearestPointOnSquare(k, this.list[0][0].centroid, anchor).euclideanDistance(anchor);
-    double neDist = (this.list[0][1] == null) ? Double.MAX_VALUE
-        : nearestPointOnSquare(k, this.list[0][1].centroid, anchor).euclideanDistance(anchor);
-    double swDist = (this.list[1][0] == null) ? Double.MAX_VALUE
-        : nearestPointOnSquare(k, this.list[1][0].centroid, anchor).euclideanDistance(anchor);
-    double seDist = (this.list[1][1] == null) ? Double.MAX_VALUE
-        : nearestPointOnSquare(k, this.list[1][1].centroid, anchor).euclideanDistance(anchor);
-
-        // Recursively visit quadrants that may contain points in range
-        if (anchor.coords[0] < this.centroid.coords[0]) {
-            if (anchor.coords[1] >= this.centroid.coords[1]) { // NW
-                if (this.list[0][0] != null) {
-                    this.list[0][0].range(anchor, results, range);
-                }
-                // Visit other quadrants if their bounding box is within range
-                if (neDist <= range && this.list[0][1] != null) {
-                    this.list[0][1].range(anchor, results, range);
-                }
-                if (swDist <= range && this.list[1][0] != null) {
-                    this.list[1][0].range(anchor, results, range);
-                }
-                if (seDist <= range && this.list[1][1] != null) {
-                    this.list[1][1].range(anchor, results, range);
-                }
-            } else { // SW
-                if (this.list[1][0] != null) {
-                    this.list[1][0].range(anchor, results, range);
-                }
-                if (nwDist <= range && this.list[0][0] != null) {
-                    this.list[0][0].range(anchor, results, range);
-                }
-                if (neDist <= range && this.list[0][1] != null) {
-                    this.list[0][1].range(anchor, results, range);
-                }
-                if (seDist <= range && this.list[1][1] != null) {
-                    this.list[1][1].range(anchor, results, range);
-                }
+        // A negative range contains nothing, but its square would be positive
+        if (range < 0) {
+            return;
+        }
+        double rangeSquared = range * range;
+        // Visit the anchor's own orthant first, then every other orthant whose box is within range.
+        // Box distances are only computed for orthants that exist.
+        int home = childIndex(anchor);
+        if (this.list[home] != null) {
+            this.list[home].range(anchor, results, range);
+        }
+        for (int i = 0; i < this.list.length; i++) {
+            if (i != home && this.list[i] != null && childDistanceSquared(i, anchor) <= rangeSquared) {
+                this.list[i].range(anchor, results, range);
             }
-        } else {
-            if (anchor.coords[1] >= this.centroid.coords[1]) { // NE
-                if (this.list[0][1] != null) {
-                    this.list[0][1].range(anchor, results, range);
-                }
-                if (nwDist <= range && this.list[0][0] != null) {
-                    this.list[0][0].range(anchor, results, range);
-                }
-                if (swDist <= range && this.list[1][0] != null) {
-                    this.list[1][0].range(anchor, results, range);
-                }
-                if (seDist <= range && this.list[1][1] != null) {
-                    this.list[1][1].range(anchor, results, range);
-                }
-            } else { // SE
-                if (this.list[1][1] != null) {
-                    this.list[1][1].range(anchor, results, range);
-                }
-                if (nwDist <= range && this.list[0][0] != null) {
-                    this.list[0][0].range(anchor, results, range);
-                }
-                if (neDist <= range && this.list[0][1] != null) {
-                    this.list[0][1].range(anchor, results, range);
-                }
-                if (swDist <= range && this.list[1][0] != null) {
-                    this.list[1][0].range(anchor, results, range);
-                }
+        }
+    }
+
+    @Override
+    public void rangeBox(KDPoint min, KDPoint max, Collection<KDPoint> results) {
+        if (spannedBy(min, max)) {
+            collect(results);
+            return;
+        }
+        for (PRQuadNode child : this.list) {
+            if (child != null && child.meets(min, max)) {
+                child.rangeBox(min, max, results);
             }
         }
     }
 
     @Override
-    public NNData<KDPoint> nearestNeighbor(KDPoint anchor, NNData<KDPoint> n) {
-    // Recursively search for nearest neighbor in relevant quadrants
-        double nwDist = (this.list[0][0] == null) ? Double.MAX_VALUE
-                : nearestPointOnSquare(k, this.list[0][0].centroid, anchor).euclideanDistance(anchor);
-        double neDist = (this.list[0][1] == null) ? Double.MAX_VALUE
-                : nearestPointOnSquare(k, this.list[0][1].centroid, anchor).euclideanDistance(anchor);
-        double swDist = (this.list[1][0] == null) ? Double.MAX_VALUE
-                : nearestPointOnSquare(k, this.list[1][0].centroid, anchor).euclideanDistance(anchor);
-        double seDist = (this.list[1][1] == null) ? Double.MAX_VALUE
-                : nearestPointOnSquare(k, this.list[1][1].centroid, anchor).euclideanDistance(anchor);
-
-        if (anchor.coords[0] < this.centroid.coords[0]) { // point is left of centroid
-            if (anchor.coords[1] >= this.centroid.coords[1]) { // point is above centroid [0][0] NW
-                if (this.list[0][0] == null) { // white
-                    // do nothing
-                } else { // gray or black
-                    this.list[0][0].nearestNeighbor(anchor, n);
-                }
-                // check if other three are in range
-                if (this.list[0][1] != null && (neDist <= n.getBestDist() || n.getBestDist() == PRQuadTree.INFTY)) {
-                    // visit
-                    this.list[0][1].nearestNeighbor(anchor, n);
-                }
-                if (this.list[1][0] != null && (swDist <= n.getBestDist() || n.getBestDist() == PRQuadTree.INFTY)) {
-                    // visit
-                    this.list[1][0].nearestNeighbor(anchor, n);
-                }
-                if (this.list[1][1] != null && (seDist <= n.getBestDist() || n.getBestDist() == PRQuadTree.INFTY)) {
-                    // visit
-                    this.list[1][1].nearestNeighbor(anchor, n);
-                }
-            } else { // point is below centroid [1][0] SW
-                if (this.list[1][0] == null) { // white
-                    // do nothing
-                } else { // gray or black
-                    this.list[1][0].nearestNeighbor(anchor, n);
-                }
-                // check if other three are in range
-                if (this.list[0][0] != null && (nwDist <= n.getBestDist() || n.getBestDist() == PRQuadTree.INFTY)) {
-                    // visit
-                    this.list[0][0].nearestNeighbor(anchor, n);
-                }
-                if (this.list[0][1] != null && (neDist <= n.getBestDist() || n.getBestDist() == PRQuadTree.INFTY)) {
-                    // visit
-                    this.list[0][1].nearestNeighbor(anchor, n);
-                }
-                if (this.list[1][1] != null && (seDist <= n.getBestDist() || n.getBestDist() == PRQuadTree.INFTY)) {
-                    // visit
-                    this.list[1][1].nearestNeighbor(anchor, n);
-                }
+    void collect(Collection<KDPoint> results) {
+        for (PRQuadNode child : this.list) {
+            if (child != null) {
+                child.collect(results);
             }
-        } else { // point is right of centroid
-            if (anchor.coords[1] >= this.centroid.coords[1]) { // point is above [0][1] NE
-                if (this.list[0][1] == null) { // white
-                    // do nothing
-                } else { // gray or black
-                    this.list[0][1].nearestNeighbor(anchor, n);
-                }
-                // check if other three are in range
-                if (this.list[0][0] != null && (nwDist <= n.getBestDist() || n.getBestDist() == PRQuadTree.INFTY)) {
-                    this.list[0][0].nearestNeighbor(anchor, n);
-                }
-                if (this.list[1][0] != null && (swDist <= n.getBestDist() || n.getBestDist() == PRQuadTree.INFTY)) {
-                    this.list[1][0].nearestNeighbor(anchor, n);
-                }
-                if (this.list[1][1] != null && (seDist <= n.getBestDist() || n.getBestDist() == PRQuadTree.INFTY)) {
-                    this.list[1][1].nearestNeighbor(anchor, n);
-                }
-            } else { // point is below [1][1] SE
-                if (this.list[1][1] == null) { // white
-                    // do nothing
-                } else { // gray or black
-                    this.list[1][1].nearestNeighbor(anchor, n);
-                }
-                // check if other three are in range
-                if (this.list[0][0] != null && (nwDist <= n.getBestDist() || n.getBestDist() == PRQuadTree.INFTY)) {
-                    this.list[0][0].nearestNeighbor(anchor, n);
-                }
-                if (this.list[0][1] != null && (neDist <= n.getBestDist() || n.getBestDist() == PRQuadTree.INFTY)) {
-                    this.list[0][1].nearestNeighbor(anchor, n);
-                }
-                if (this.list[1][0] != null && (swDist <= n.getBestDist() || n.getBestDist() == PRQuadTree.INFTY)) {
-                    this.list[1][0].nearestNeighbor(anchor, n);
-                }
+        }
+    }
+
+    @Override
+    public NNData<KDPoint> nearestNeighbor(KDPoint anchor, NNData<KDPoint> n) {
+        return nearestNeighborBySquaredDistance(anchor, n);
+    }
+
+    @Override
+    void nearestNeighborSquared(KDPoint anchor, NNData<KDPoint> n) {
+        // Greedily search the anchor's own orthant first, which tightens the best distance,
+        // then every other orthant whose box could still hold something closer
+        int home = childIndex(anchor);
+        if (this.list[home] != null) {
+            this.list[home].nearestNeighborSquared(anchor, n);
+        }
+        for (int i = 0; i < this.list.length; i++) {
+            if (i != home && this.list[i] != null && (n.getBestDist() == PRQuadTree.INFTY
+                    || childDistanceSquared(i, anchor) <= n.getBestDist())) {
+                this.list[i].nearestNeighborSquared(anchor, n);
             }
         }
-        return n;
     }
 
     @Override
-    public void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue) {
-    // Recursively search for k nearest neighbors in relevant quadrants
-        double nwDist = (this.list[0][0] == null) ? Double.MAX_VALUE
-                : nearestPointOnSquare(k, this.list[0][0].centroid, anchor).euclideanDistance(anchor);
-        double neDist = (this.list[0][1] == null) ? Double.MAX_VALUE
-                : nearestPointOnSquare(k, this.list[0][1].centroid, anchor).euclideanDistance(anchor);
-        double swDist = (this.list[1][0] == null) ? Double.MAX_VALUE
-                : nearestPointOnSquare(k, this.list[1][0].centroid, anchor).euclideanDistance(anchor);
-        double seDist = (this.list[1][1] == null) ? Double.MAX_VALUE
-                : nearestPointOnSquare(k, this.list[1][1].centroid, anchor).euclideanDistance(anchor);
-        double qDist = calcDistance(anchor, queue, k);
-
-        if (anchor.coords[0] < this.centroid.coords[0]) { // point is left of centroid
-            if (anchor.coords[1] >= this.centroid.coords[1]) { // point is above centroid [0][0] NW
-                if (this.list[0][0] == null) { // white
-                    // do nothing
-                } else { // gray or black
-                    this.list[0][0].kNearestNeighbors(k, anchor, queue);
-                    qDist = calcDistance(anchor, queue, k);
-                }
-                // check if other three are in range
-                if (this.list[0][1] != null && (neDist <= qDist || qDist == PRQuadTree.INFTY)) {
-                    this.list[0][1].kNearestNeighbors(k, anchor, queue);
-                }
-                if (this.list[1][0] != null && (swDist <= qDist || qDist == PRQuadTree.INFTY)) {
-                    this.list[1][0].kNearestNeighbors(k, anchor, queue);
-                }
-                if (this.list[1][1] != null && (seDist <= qDist || qDist == PRQuadTree.INFTY)) {
-                    this.list[1][1].kNearestNeighbors(k, anchor, queue);
-                }
-            } else { // point is below centroid [1][0] SW
-                if (this.list[1][0] == null) { // white
-                    // do nothing
-                } else { // gray or black
-                    this.list[1][0].kNearestNeighbors(k, anchor, queue);
-                    qDist = calcDistance(anchor, queue, k);
-                }
-                // check if other three are in range
-                if (this.list[0][0] != null && (nwDist <= qDist || qDist == PRQuadTree.INFTY)) {
-                    this.list[0][0].kNearestNeighbors(k, anchor, queue);
-                }
-                if (this.list[0][1] != null && (neDist <= qDist || qDist == PRQuadTree.INFTY)) {
-                    this.list[0][1].kNearestNeighbors(k, anchor, queue);
-                }
-                if (this.list[1][1] != null && (seDist <= qDist || qDist == PRQuadTree.INFTY)) {
-                    this.list[1][1].kNearestNeighbors(k, anchor, queue);
-                }
+    public void kNearestNeighbors(int k, KDPoint anchor, BoundedQueue<KDPoint> queue) {
+        // Same as nearestNeighbor, but bounded by the farthest of the (up to) k neighbors found so far
+        int home = childIndex(anchor);
+        if (this.list[home] != null) {
+            this.list[home].kNearestNeighbors(k, anchor, queue);
+        }
+        for (int i = 0; i < this.list.length; i++) {
+            if (i != home && this.list[i] != null && childDistanceSquared(i, anchor) <= calcDistance(queue, k)) {
+                this.list[i].kNearestNeighbors(k, anchor, queue);
             }
-        } else { // point is right of centroid
-            if (anchor.coords[1] >= this.centroid.coords[1]) { // point is above [0][1] NE
-                if (this.list[0][1] == null) { // white
-                    // do nothing
-                } else { // gray or black
-                    this.list[0][1].kNearestNeighbors(k, anchor, queue);
-                    qDist = calcDistance(anchor, queue, k);
-                }
-                // check if other three are in range
-                if (this.list[0][0] != null && (nwDist <= qDist || qDist == PRQuadTree.INFTY)) {
-                    this.list[0][0].kNearestNeighbors(k, anchor, queue);
-                }
-                if (this.list[1][0] != null && (swDist <= qDist || qDist == PRQuadTree.INFTY)) {
-                    this.list[1][0].kNearestNeighbors(k, anchor, queue);
-                }
-                if (this.list[1][1] != null && (seDist <= qDist || qDist == PRQuadTree.INFTY)) {
-                    this.list[1][1].kNearestNeighbors(k, anchor, queue);
-                }
-            } else { // point is below [1][1] SE
-                if (this.list[1][1] == null) { // white
-                    // do nothing
-                } else { // gray or black
-                    this.list[1][1].kNearestNeighbors(k, anchor, queue);
-                    qDist = calcDistance(anchor, queue, k);
-                }
-                // check if other three are in range
-                if (this.list[0][0] != null && (nwDist <= qDist || qDist == PRQuadTree.INFTY)) {
-                    this.list[0][0].kNearestNeighbors(k, anchor, queue);
-                }
-                if (this.list[0][1] != null && (neDist <= qDist || qDist == PRQuadTree.INFTY)) {
-                    this.list[0][1].kNearestNeighbors(k, anchor, queue);
-                }
-                if (this.list[1][0] != null && (swDist <= qDist || qDist == PRQuadTree.INFTY)) {
-                    this.list[1][0].kNearestNeighbors(k, anchor, queue);
-                }
+        }
+    }
+
+    // Index of the child that p falls into: bit i is set iff p lies in the upper half of
+    // dimension i, except for dimension 1, whose bit is set iff p lies in its lower half
+    private int childIndex(KDPoint p) {
+        int index = 0;
+        for (int d = 0; d < this.centroid.coords.length; d++) {
+            if (p.coords[d] >= this.centroid.coords[d]) {
+                index |= 1 << d;
             }
         }
+        return index ^ this.southBit;
     }
 
-    private KDPoint nearestPointOnSquare(int k, KDPoint centroid, KDPoint anchor) {
-    // Find the closest point on the bounding box of a quadrant to the anchor
-        if (centroid == null) {
-            return null;
+    // Whether the child with the provided index covers the upper half of dimension d
+    private boolean isUpper(int index, int d) {
+        return (((index ^ this.southBit) >> d) & 1) == 1;
+    }
+
+    private double childDistanceSquared(int index, KDPoint anchor) {
+        // Squared distance from the anchor to the closest point of a child's box. This node spans
+        // centroid +/- 2^(k-1), so every child is a box of side 2^(k-1) with one corner at the centroid.
+        // Uses the node's own k, not the number of neighbors that shadows it in kNearestNeighbors.
+        // The sum is accumulated in double, like KDPoint.distanceSquared(), since a gap of 2^32 would overflow a long.
+        long half = 1L << Math.max(this.k - 1, 0);
+        double sum = 0;
+        for (int d = 0; d < this.centroid.coords.length; d++) {
+            long c = this.centroid.coords[d];
+            double diff = isUpper(index, d) ? axisDistance(anchor.coords[d], c, c + half)
+                    : axisDistance(anchor.coords[d], c - half, c);
+            sum += diff * diff;
         }
-        double length = Math.pow(2, k - 1);
-
-        double left = centroid.coords[0] - length;
-        double right = centroid.coords[0] + length;
-        double top = centroid.coords[1] + length;
-        double bottom = centroid.coords[1] - length;
-
-        double closestX = Math.max(left, Math.min(right, anchor.coords[0]));
-        double closestY = Math.max(bottom, Math.min(top, anchor.coords[1]));
-
-        // // Determine if the anchor is closer to vertical or horizontal sides
-        // if (closestX == anchor.coords[0]) {
-        // // Anchor vertically aligns with the square, adjust y
-        // closestY = (anchor.coords[1] < centroid.coords[1]) ? bottom : top;
-        // } else if (closestY == anchor.coords[1]) {
-        // // Anchor horizontally aligns with the square, adjust x
-        // closestX = (anchor.coords[0] < centroid.coords[0]) ? left : right;
-        // }
-
-        // Create the closest point on the perimeter
-        return new KDPoint((int) closestX, (int) closestY);
+        return sum;
+    }
+
+    private static long axisDistance(long coord, long low, long high) {
+        // Distance from coord to the interval [low, high], 0 if it lies inside
+        return (coord < low) ? low - coord : (coord > high) ? coord - high : 0;
     }
 
-    private static double calcDistance(KDPoint anchor, BoundedPriorityQueue<KDPoint> queue, int k) {
-    // Helper to get the current farthest distance in the k-NN queue
+    private static double calcDistance(BoundedQueue<KDPoint> queue, int k) {
+    // Helper to get the current farthest squared distance in the k-NN queue
         if (queue.size() < k) {
             return Double.POSITIVE_INFINITY;
         }
-        return queue.last().euclideanDistance(anchor);
+        return queue.worstPriority();
     }
 }
@@ -1,11 +1,15 @@
 package spatial.nodes;
 
 import spatial.kdpoint.KDPoint;
-import spatial.knnutils.BoundedPriorityQueue;
+import spatial.knnutils.BoundedQueue;
 import spatial.knnutils.NNData;
 import spatial.trees.CentroidAccuracyException;
 import spatial.trees.PRQuadTree;
+import spatial.trees.SnapshotReader;
+import spatial.trees.SnapshotWriter;
 
+import java.io.IOException;
+import java.io.StreamCorruptedException;
 import java.util.Collection;
 
 /**
@@ -51,6 +55,11 @@ public abstract class PRQuadNode {
      */
     protected int k;
 
+    /**
+     * The tags that precede every node in a snapshot: see {@link #writeTo(SnapshotWriter)}.
+     */
+    static final int WHITE = 0, BLACK = 1, GRAY = 2;
+
     /**
      * The bucketing parameter of the {@link PRQuadTree}. Necessary for all derived classes
      * such that merges and splits can be determined on the fly.
@@ -94,9 +103,25 @@ public abstract class PRQuadNode {
      */
     public abstract PRQuadNode insert(KDPoint p, int k) throws CentroidAccuracyException;
 
+    /**
+     * Inserts the given point in the subtree rooted at the current node, unless the subtree already contains it. This
+     * takes a single pass down the tree, and the caller can tell whether the point was inserted by comparing the
+     * {@link #count()} of the returned subtree to the count of {@code this} before the call.
+     *
+     * @param p A {@link KDPoint} to insert into the subtree rooted at the current node.
+     * @param k The side length of the quadrant spanned by the current {@link PRQuadNode}, as in
+     *          {@link #insert(KDPoint, int)}.
+     * @return The subtree rooted at the current node, potentially adjusted after insertion.
+     * @throws CentroidAccuracyException if the insertion causes a decomposition of the
+     *      subtree that is too &quot; fine &quot; for {@code int} coordinate {@link KDPoint}s can handle.
+     * @see #insert(KDPoint, int)
+     */
+    public abstract PRQuadNode insertIfAbsent(KDPoint p, int k) throws CentroidAccuracyException;
+
     /**
      * Deletes the given point from the subtree rooted at the current node. If the
-     * point is <b>not</b> in the subtree, <b>no changes</b>  should be performed in the subtree.
+     * point is <b>not</b> in the subtree, <b>no changes</b>  should be performed in the subtree. Deletion takes a single
+     * pass down the tree: the point was deleted iff the returned subtree is null or has a smaller {@link #count()}.
      *
      * @param p A {@link KDPoint} to delete from the tree rooted at the current node.
      * @return The subtree rooted at the current node, potentially adjusted after deletion.
@@ -132,6 +157,104 @@ public abstract class PRQuadNode {
      */
     public abstract int count();
 
+    /**
+     * Checks whether the provided {@link KDPoint} lies in the space spanned by the current node, which is the
+     * half-open hypercube [centroid - 2^(k-1), centroid + 2^(k-1)) in every dimension.
+     * @param p The {@link KDPoint} to check.
+     * @return true if p lies in the space spanned by {@code this}, false otherwise.
+     */
+    public boolean spans(KDPoint p) {
+        long half = 1L << Math.max(k - 1, 0);
+        for (int d = 0; d < centroid.coords.length; d++) {
+            long diff = (long) p.coords[d] - centroid.coords[d];
+            if (diff < -half || diff >= half)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the squared Euclidean distance from the provided {@link KDPoint} to the nearest {@code int} point of
+     * the space spanned by the current node, which is a lower bound on its distance to every {@link KDPoint} of the
+     * subtree.
+     * @param p The {@link KDPoint} to measure the distance from.
+     * @return The squared distance from p to the space spanned by {@code this}, 0 if it {@link #spans(KDPoint) spans}
+     * p.
+     */
+    public double distanceSquaredTo(KDPoint p) {
+        // Accumulated in double like KDPoint.distanceSquared(), since a single gap may square past Long.MAX_VALUE
+        long half = 1L << Math.max(k - 1, 0);
+        double dist = 0;
+        for (int d = 0; d < centroid.coords.length; d++) {
+            long diff = (long) p.coords[d] - centroid.coords[d];
+            double gap = (diff < -half) ? -half - diff : (diff >= half) ? diff - half + 1 : 0;
+            dist += gap * gap;
+        }
+        return dist;
+    }
+
+    /**
+     * <p>Doubles the side of the space spanned by the subtree rooted at the current node, around the same centroid.
+     * The returned node has parameter k+1 and holds the same {@link KDPoint}s. Every child of {@code this} becomes
+     * the inner orthant of a new child that spans twice its side, so no {@link KDPoint} moves to a different
+     * subtree.</p>
+     *
+     * <p>{@link PRQuadTree} calls this on its root until the root {@link #spans(KDPoint) spans} a {@link KDPoint}
+     * that is about to be inserted. Since the root stays centered at the origin, it spans every {@code int}
+     * coordinate by k=32, and no centroid ever falls outside of the {@code int} range.</p>
+     *
+     * @return A {@link PRQuadNode} that spans twice the side of {@code this} and holds the same {@link KDPoint}s.
+     * @see #enlarge(KDPoint)
+     */
+    public abstract PRQuadNode grow();
+
+    /**
+     * Returns a node that spans twice the side of {@code this}, around the provided centroid, and of which the space
+     * spanned by {@code this} is exactly one orthant.
+     * @param centroid The centroid of the enlarged space, 2^(k-1) away from the current centroid in every dimension.
+     * @return A {@link PRQuadNode} with parameter k+1 that holds the same {@link KDPoint}s as {@code this}.
+     * @see #grow()
+     */
+    abstract PRQuadNode enlarge(KDPoint centroid);
+
+    /**
+     * <p>Writes the subtree rooted at the current node in preorder. Every node starts with a tag byte that tells
+     * whether it is black or gray. A black node follows it with the number of {@link KDPoint}s in its bucket and their
+     * coordinates, and a gray node with its 2^d children, in the order of {@link PRQuadGrayNode#getChildren()}, where
+     * a white child is just a tag. Centroids and side lengths follow from those of the root and from the position of
+     * every node among its siblings, so they are not written.</p>
+     *
+     * @param out The {@link SnapshotWriter} to write to.
+     * @throws IOException if the snapshot cannot be written.
+     * @see #readFrom(SnapshotReader, KDPoint, int, int)
+     */
+    public abstract void writeTo(SnapshotWriter out) throws IOException;
+
+    /**
+     * Reads back a subtree written by {@link #writeTo(SnapshotWriter)}, with the exact same structure, in a single
+     * pass. Counts and heights are recomputed on the way back up, and no insertion logic runs.
+     * @param in The {@link SnapshotReader} to read from.
+     * @param centroid The centroid of the subtree's root.
+     * @param k The exponent of 2 that defines the side length of the space spanned by the subtree's root.
+     * @param bucketingParam The bucketing parameter of the tree.
+     * @return The root of the subtree read, which is null for a white node.
+     * @throws IOException if the snapshot cannot be read or is corrupted.
+     */
+    public static PRQuadNode readFrom(SnapshotReader in, KDPoint centroid, int k, int bucketingParam)
+            throws IOException {
+        int tag = in.readByte();
+        switch (tag) {
+            case WHITE:
+                return null;
+            case BLACK:
+                return PRQuadBlackNode.readBucket(in, centroid, k, bucketingParam);
+            case GRAY:
+                return PRQuadGrayNode.readChildren(in, centroid, k, bucketingParam);
+            default:
+                throw new StreamCorruptedException("Invalid PR-QuadTree node tag: " + tag + ".");
+        }
+    }
+
     /**
      * A getter for the centroid of {@code this}.
      * @return A deep copy of the centroid of the current node.
@@ -191,6 +314,56 @@ public abstract class PRQuadNode {
     public abstract void range(KDPoint anchor, Collection<KDPoint> results,
                                double range);
 
+    /**
+     * <p>Executes a box range query: every {@link KDPoint} of the subtree that lies in the axis-aligned box
+     * [min, max], <b>INCLUSIVE</b> in every dimension, is inserted into the {@link Collection} that is passed. Unlike
+     * {@link #range(KDPoint, Collection, double)}, there is no anchor to leave out.</p>
+     *
+     * <p>Children whose space misses the box are pruned, and subtrees whose space lies inside the box are reported
+     * wholesale, without testing any of their points.</p>
+     *
+     * @param min The corner of the box with the smallest coordinates.
+     * @param max The corner of the box with the largest coordinates.
+     * @param results A {@link Collection} that accumulates the {@link KDPoint}s in the box.
+     */
+    public abstract void rangeBox(KDPoint min, KDPoint max, Collection<KDPoint> results);
+
+    /**
+     * Inserts every {@link KDPoint} of the subtree into the {@link Collection} that is passed.
+     * @param results A {@link Collection} that accumulates the {@link KDPoint}s.
+     */
+    abstract void collect(Collection<KDPoint> results);
+
+    /**
+     * Checks whether the space spanned by the current node lies inside the box [min, max].
+     * @param min The corner of the box with the smallest coordinates.
+     * @param max The corner of the box with the largest coordinates.
+     * @return true iff every {@code int} point that {@code this} {@link #spans(KDPoint) spans} is in the box.
+     */
+    boolean spannedBy(KDPoint min, KDPoint max) {
+        long half = 1L << Math.max(k - 1, 0);
+        for (int d = 0; d < centroid.coords.length; d++) {
+            if (centroid.coords[d] - half < min.coords[d] || centroid.coords[d] + half - 1 > max.coords[d])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether the space spanned by the current node meets the box [min, max].
+     * @param min The corner of the box with the smallest coordinates.
+     * @param max The corner of the box with the largest coordinates.
+     * @return true iff some {@code int} point that {@code this} {@link #spans(KDPoint) spans} is in the box.
+     */
+    boolean meets(KDPoint min, KDPoint max) {
+        long half = 1L << Math.max(k - 1, 0);
+        for (int d = 0; d < centroid.coords.length; d++) {
+            if (centroid.coords[d] - half > max.coords[d] || centroid.coords[d] + half - 1 < min.coords[d])
+                return false;
+        }
+        return true;
+    }
+
     /**
      * <p>Executes a nearest neighbor query, which returns the nearest neighbor, in terms of
      * {@link KDPoint#euclideanDistance(KDPoint)}, from the &quot;anchor&quot; point.</p>
@@ -212,10 +385,39 @@ public abstract class PRQuadNode {
      *      * where NN is the nearest neighbor found.
      *
      * @see NNData
-     * @see #kNearestNeighbors(int, KDPoint, BoundedPriorityQueue)
+     * @see #kNearestNeighbors(int, KDPoint, BoundedQueue)
      */
     public abstract NNData<KDPoint> nearestNeighbor(KDPoint anchor, NNData<KDPoint> n);
 
+    /**
+     * <p>Works exactly like {@link #nearestNeighbor(KDPoint, NNData)}, except that the best distance maintained by n
+     * is the <b>squared</b> Euclidean distance, as reported by {@link KDPoint#distanceSquared(KDPoint)}. Nodes call
+     * this on each other, so that a whole query compares squared distances and only takes a single square root at the
+     * end.</p>
+     *
+     * @param anchor The &quot;anchor&quot; {@link KDPoint} of the nearest neighbor query.
+     * @param n An object of type {@link NNData} whose best distance, if non-negative, is squared.
+     * @see #nearestNeighborBySquaredDistance(KDPoint, NNData)
+     */
+    abstract void nearestNeighborSquared(KDPoint anchor, NNData<KDPoint> n);
+
+    /**
+     * Implements {@link #nearestNeighbor(KDPoint, NNData)} on top of {@link #nearestNeighborSquared(KDPoint, NNData)},
+     * by squaring the best distance in n on the way in and taking the square root of the result on the way out.
+     * @param anchor The &quot;anchor&quot; {@link KDPoint} of the nearest neighbor query.
+     * @param n An object of type {@link NNData}, as described in {@link #nearestNeighbor(KDPoint, NNData)}.
+     * @return n, updated with the nearest neighbor found.
+     */
+    protected NNData<KDPoint> nearestNeighborBySquaredDistance(KDPoint anchor, NNData<KDPoint> n) {
+        // Converts n in place, so that a query allocates nothing beyond n itself
+        if (n.getBestDist() >= 0)
+            n.update(n.getBestGuess(), n.getBestDist() * n.getBestDist());
+        nearestNeighborSquared(anchor, n);
+        if (n.getBestDist() >= 0)
+            n.update(n.getBestGuess(), Math.sqrt(n.getBestDist()));
+        return n;
+    }
+
     /**
      * <p>Executes a nearest neighbor query, which returns the nearest neighbor, in terms of
      * {@link KDPoint#euclideanDistance(KDPoint)}, from the &quot;anchor&quot; point.</p>
@@ -223,25 +425,25 @@ public abstract class PRQuadNode {
      * <p>Recall that, in the descending phase, a NN query behaves <em>greedily</em>, approaching our
      * &quot;anchor&quot; point as fast as currDim allows. While doing so, it implicitly
      * <b>bounds</b> the acceptable solutions under the current <b>worst solution</b>, which is maintained as the
-     * last element of the provided {@link BoundedPriorityQueue}. This is another instance of &quot;branch-and-bound&quot;
+     * last element of the provided {@link BoundedQueue}. This is another instance of &quot;branch-and-bound&quot;
      * Remember that when we want to determine if we need to recurse to a different subtree, it is <b>necessary</b>
      * to compare the euclideanDistance reported by* {@link KDPoint#euclideanDistance(KDPoint)} and coordinate differences!
      * Those are comparable with each other because they are the same data type ({@link Double}).</p>
      *
      * <p>The main difference of the implementation of this method and the implementation of
      * {@link #nearestNeighbor(KDPoint, NNData)} is the necessity of using the class
-     * {@link BoundedPriorityQueue} effectively. Consult your various resources
+     * {@link BoundedQueue} effectively. Consult your various resources
      * to understand how you should be using this class.</p>
      *
      * @param k The total number of neighbors to retrieve. It is better if this quantity is an odd number, to
      *          avoid ties in Binary Classification tasks.
      * @param anchor The &quot;anchor&quot; {@link KDPoint} of the nearest neighbor query.
-     * @param queue A {@link BoundedPriorityQueue} that will maintain at most k nearest neighbors of
+     * @param queue A {@link BoundedQueue} that will maintain at most k nearest neighbors of
      *              the anchor point at all times, sorted by euclideanDistance to the point.
      *
-     * @see BoundedPriorityQueue
+     * @see BoundedQueue
      */
-    public abstract void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue);
+    public abstract void kNearestNeighbors(int k, KDPoint anchor, BoundedQueue<KDPoint> queue);
 }
 
 
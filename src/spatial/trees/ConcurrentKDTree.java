@@ -0,0 +1,159 @@
+package spatial.trees;
+
+import spatial.kdpoint.KDPoint;
+import spatial.knnutils.BoundedQueue;
+
+import java.util.Collection;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+
+/**
+ * <p>{@link ConcurrentKDTree} is a thread-safe {@link KDTree} for read-mostly workloads. Mutations hold the write
+ * lock of a {@link StampedLock}, one at a time, while queries hold its read lock, which any number of them share, so
+ * queries never block each other.</p>
+ *
+ * <p>{@link #count()}, {@link #height()} and {@link #isEmpty()}, which only read a field or two of the tree and of its
+ * root, start out as <em>optimistic reads</em> instead, which take no lock at all: their result is only returned if the
+ * lock's stamp shows that no mutation started in the meantime, and they run again under the read lock otherwise. The
+ * queries that walk down the tree always take the read lock, since a mutation that races with them may rebuild the
+ * very subtree that they walk, and they could then see nodes whose fields are not set yet, with no bound on what that
+ * would make them do before the stamp is validated.</p>
+ *
+ * <p>Every operation is linearizable: a mutation takes effect at some point while it holds the write lock, and a
+ * query that returns answers for a tree that no mutation touched while it ran.</p>
+ *
+ * @see KDTree
+ * @see StampedLock
+ */
+public class ConcurrentKDTree implements SpatialDictionary, SpatialQuerySolver {
+
+    private final KDTree tree;
+    private final StampedLock lock = new StampedLock();
+
+    /**
+     * Constructs an empty {@link ConcurrentKDTree} over a {@link KDTree#KDTree(int) plain} <em>K</em>-D Tree.
+     * @param k The dimensionality of the tree.
+     * @throws RuntimeException if k&lt;=0.
+     */
+    public ConcurrentKDTree(int k) {
+        this(new KDTree(k));
+    }
+
+    /**
+     * Constructs an empty {@link ConcurrentKDTree} over a {@link KDTree#KDTree(int, double) balanced} <em>K</em>-D
+     * Tree, which keeps queries fast however the points arrive.
+     * @param k The dimensionality of the tree.
+     * @param alpha The weight balance threshold of the tree.
+     * @throws RuntimeException if k&lt;=0 or alpha is not strictly between 0.5 and 1.
+     */
+    public ConcurrentKDTree(int k, double alpha) {
+        this(new KDTree(k, alpha));
+    }
+
+    /**
+     * Makes the provided tree thread-safe, for instance after a {@link KDTree#bulkLoad(int, Collection) bulk load}.
+     * The tree must not be used directly anymore.
+     * @param tree The tree to wrap.
+     */
+    public ConcurrentKDTree(KDTree tree) {
+        this.tree = tree;
+    }
+
+    @Override
+    public void insert(KDPoint p) {
+        long stamp = lock.writeLock();
+        try {
+            tree.insert(p);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void delete(KDPoint p) {
+        long stamp = lock.writeLock();
+        try {
+            tree.delete(p);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Deletes p from the tree, if it is there.
+     * @param p The {@link KDPoint} to delete.
+     * @return true iff the tree held p.
+     * @see KDTree#deleteIfPresent(KDPoint)
+     */
+    public boolean deleteIfPresent(KDPoint p) {
+        long stamp = lock.writeLock();
+        try {
+            return tree.deleteIfPresent(p);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean search(KDPoint p) {
+        return locked(() -> tree.search(p));
+    }
+
+    @Override
+    public Collection<KDPoint> range(KDPoint p, double range) {
+        return locked(() -> tree.range(p, range));
+    }
+
+    @Override
+    public KDPoint nearestNeighbor(KDPoint p) {
+        return locked(() -> tree.nearestNeighbor(p));
+    }
+
+    @Override
+    public BoundedQueue<KDPoint> kNearestNeighbors(int k, KDPoint p) {
+        if (k <= 0)
+            throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+        return locked(() -> tree.kNearestNeighbors(k, p));
+    }
+
+    @Override
+    public int height() {
+        return read(tree::height);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return read(tree::isEmpty);
+    }
+
+    @Override
+    public int count() {
+        return read(tree::count);
+    }
+
+    private <T> T read(Supplier<T> query) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            // Only for queries that read the count of the tree, its root and the root's height: a racing mutation
+            // may at worst replace the root between two reads of it, and leave the query with a null one
+            try {
+                T result = query.get();
+                if (lock.validate(stamp))
+                    return result;
+            } catch (RuntimeException raced) {
+                if (lock.validate(stamp))
+                    throw raced; // A genuine failure, which would happen under the lock as well
+            }
+        }
+        return locked(query);
+    }
+
+    private <T> T locked(Supplier<T> query) {
+        long stamp = lock.readLock();
+        try {
+            return query.get();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+}
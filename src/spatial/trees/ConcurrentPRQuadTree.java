@@ -0,0 +1,374 @@
+package spatial.trees;
+
+import spatial.kdpoint.KDPoint;
+import spatial.knnutils.BoundedQueue;
+import spatial.knnutils.HeapBoundedPriorityQueue;
+import spatial.knnutils.NNData;
+import spatial.nodes.PRQuadBlackNode;
+import spatial.nodes.PRQuadNode;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <p>{@link ConcurrentPRQuadTree} is a thread-safe PR-tree whose <em>stripes</em> are locked separately. The top
+ * {@code stripeLevels} levels of the tree, which split its space into 2^(d &#42; stripeLevels) cells of equal size,
+ * are fixed in advance, and the subtree of every cell, its stripe, is an ordinary tree of {@link PRQuadNode}s guarded
+ * by a lock of its own. An insertion or deletion only locks the stripe of its {@link KDPoint}, so threads that ingest
+ * points in different regions of the space never wait for each other. Queries lock the stripes they visit one at
+ * a time, for reading, so they run in parallel with each other and with the updates of the other stripes.</p>
+ *
+ * <p>Apart from that, the tree behaves exactly like a {@link PRQuadTree} with the same k, bucketing parameter and
+ * dimensionality, and has the same {@link #height() height}. Since its top levels are fixed, however, it cannot grow
+ * its root: every {@link KDPoint} must lie in the hypercube [-2^(k-1), 2^(k-1)) that the root spans. k is at most
+ * {@link #MAX_K}, the side of the largest root that a {@link PRQuadTree} grows, which already spans every {@code int}
+ * coordinate.</p>
+ *
+ * <p>Every single operation on a {@link KDPoint} is atomic. Queries that span several stripes are <em>weakly
+ * consistent</em>: they reflect every update that completed before they started, and may or may not reflect updates
+ * that run concurrently with them in stripes that they have not visited yet.</p>
+ *
+ * @see PRQuadTree
+ * @see ConcurrentKDTree
+ */
+public class ConcurrentPRQuadTree implements SpatialDictionary, SpatialQuerySolver {
+
+    /**
+     * The number of levels of stripes of a 2D {@link ConcurrentPRQuadTree}, which splits its space into 64 stripes.
+     * @see #ConcurrentPRQuadTree(int, int)
+     */
+    public static final int DEFAULT_STRIPE_LEVELS = 3;
+
+    /**
+     * The largest number of stripes that a {@link ConcurrentPRQuadTree} can split its space into: 2^MAX_STRIPE_BITS.
+     */
+    public static final int MAX_STRIPE_BITS = 16;
+
+    /**
+     * The largest k of a {@link ConcurrentPRQuadTree}, whose root spans every {@code int} coordinate. The centroids of
+     * the stripes of a larger root would not fit in an {@code int}.
+     */
+    public static final int MAX_K = 32;
+
+    private final int k, bucketingParam, dims, stripeLevels;
+    // The root of every stripe, or null if it is empty, and the lock that guards it
+    private final PRQuadNode[] stripes;
+    private final ReentrantReadWriteLock[] locks;
+    // The centroid of every stripe, whose side is 2^(k - stripeLevels)
+    private final KDPoint[] centroids;
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * Constructs an empty 2D {@link ConcurrentPRQuadTree} with {@link #DEFAULT_STRIPE_LEVELS} levels of stripes.
+     * @param k The exponent of 2 that defines the side of the space spanned by the tree, as in
+     *          {@link PRQuadTree#PRQuadTree(int, int)}. At least {@link #DEFAULT_STRIPE_LEVELS} + 1, and at most
+     *          {@link #MAX_K}.
+     * @param bucketingParam The "bucketing" parameter of the tree.
+     * @throws RuntimeException if any of the parameters is invalid.
+     */
+    public ConcurrentPRQuadTree(int k, int bucketingParam) {
+        this(k, bucketingParam, 2, DEFAULT_STRIPE_LEVELS);
+    }
+
+    /**
+     * Constructs an empty {@link ConcurrentPRQuadTree}.
+     * @param k The exponent of 2 that defines the side of the space spanned by the tree, as in
+     *          {@link PRQuadTree#PRQuadTree(int, int, int)}. At most {@link #MAX_K}.
+     * @param bucketingParam The "bucketing" parameter of the tree.
+     * @param dims The dimensionality of the {@link KDPoint}s that the tree will hold.
+     * @param stripeLevels The number of levels of the tree that are split into stripes, which must be smaller
+     *                     than k. The space is split into 2^(dims &#42; stripeLevels) stripes, which can be at most
+     *                     2^{@link #MAX_STRIPE_BITS}.
+     * @throws RuntimeException if any of the parameters is invalid.
+     */
+    public ConcurrentPRQuadTree(int k, int bucketingParam, int dims, int stripeLevels) {
+        if (k < 1 || k > MAX_K || bucketingParam < 1)
+            throw new RuntimeException("k should be between 1 and " + MAX_K + ", and bucketingParam 1 and above. " +
+                    "Provided: k=" + k + ", bucketingParam=" + bucketingParam + ".");
+        if (dims < 1 || dims > PRQuadTree.MAX_DIMS)
+            throw new RuntimeException("The value of dims provided, " + dims + ", is invalid: Please provide an " +
+                    "integer between 1 and " + PRQuadTree.MAX_DIMS + ".");
+        if (stripeLevels < 0 || stripeLevels >= k || dims * stripeLevels > MAX_STRIPE_BITS)
+            throw new RuntimeException("The value of stripeLevels provided, " + stripeLevels + ", is invalid: Please " +
+                    "provide an integer between 0 and " + Math.min(k - 1, MAX_STRIPE_BITS / dims) + ".");
+        this.k = k;
+        this.bucketingParam = bucketingParam;
+        this.dims = dims;
+        this.stripeLevels = stripeLevels;
+        int n = 1 << (dims * stripeLevels);
+        stripes = new PRQuadNode[n];
+        locks = new ReentrantReadWriteLock[n];
+        centroids = new KDPoint[n];
+        for (int s = 0; s < n; s++) {
+            locks[s] = new ReentrantReadWriteLock();
+            centroids[s] = stripeCentroid(s);
+        }
+    }
+
+    private KDPoint stripeCentroid(int stripe) {
+        // Walks down from the root at the origin, like stripeOf(), one level of stripe bits at a time
+        long[] c = new long[dims];
+        for (int level = 0; level < stripeLevels; level++) {
+            long offset = 1L << (k - level - 2); // A quarter of the side of the parent
+            int bits = stripe >>> (dims * (stripeLevels - level - 1));
+            for (int d = 0; d < dims; d++)
+                c[d] += ((bits >>> (dims - 1 - d)) & 1) == 1 ? offset : -offset;
+        }
+        int[] coords = new int[dims];
+        for (int d = 0; d < dims; d++)
+            coords[d] = (int) c[d];
+        return new KDPoint(coords);
+    }
+
+    private int stripeOf(KDPoint p) {
+        // The index of the stripe that spans p: for every level, one bit per dimension, set for the upper half
+        if (p.coords.length != dims)
+            throw new RuntimeException("Cannot store a " + p.coords.length + "-D KDPoint in a " + dims +
+                    "-D ConcurrentPRQuadTree.");
+        long half = 1L << (k - 1);
+        long[] c = new long[dims];
+        for (int d = 0; d < dims; d++)
+            if (p.coords[d] < -half || p.coords[d] >= half)
+                throw new RuntimeException(p + " lies outside of the space spanned by this ConcurrentPRQuadTree, " +
+                        "[" + (-half) + ", " + half + ") in every dimension.");
+        int stripe = 0;
+        for (int level = 0; level < stripeLevels; level++) {
+            long offset = 1L << (k - level - 2);
+            for (int d = 0; d < dims; d++) {
+                boolean upper = p.coords[d] >= c[d];
+                stripe = (stripe << 1) | (upper ? 1 : 0);
+                c[d] += upper ? offset : -offset;
+            }
+        }
+        return stripe;
+    }
+
+    /* *********************************************************************************************** */
+    /* ************************************** MUTATIONS ********************************************** */
+    /* *********************************************************************************************** */
+
+    /**
+     * Inserts p into the tree, unless it is already there. Only the stripe of p is locked.
+     * @param p The {@link KDPoint} to insert.
+     * @throws CentroidAccuracyException if the insertion splits the space further than {@code int} coordinates allow.
+     * @throws RuntimeException if p lies outside of the space spanned by the tree.
+     */
+    @Override
+    public void insert(KDPoint p) throws CentroidAccuracyException {
+        int s = stripeOf(p);
+        ReentrantReadWriteLock.WriteLock lock = locks[s].writeLock();
+        lock.lock();
+        try {
+            PRQuadNode node = stripes[s];
+            if (node == null) {
+                stripes[s] = new PRQuadBlackNode(centroids[s], k - stripeLevels, bucketingParam, p);
+            } else {
+                int before = node.count();
+                stripes[s] = node.insertIfAbsent(p, k - stripeLevels);
+                if (stripes[s].count() == before)
+                    return;
+            }
+            count.incrementAndGet();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes p from the tree, if it is there. Only the stripe of p is locked.
+     * @param p The {@link KDPoint} to delete.
+     */
+    @Override
+    public void delete(KDPoint p) {
+        int s;
+        try {
+            s = stripeOf(p);
+        } catch (RuntimeException outside) {
+            return; // Not in the tree, so nothing to delete
+        }
+        ReentrantReadWriteLock.WriteLock lock = locks[s].writeLock();
+        lock.lock();
+        try {
+            PRQuadNode node = stripes[s];
+            if (node == null)
+                return;
+            int before = node.count();
+            stripes[s] = node.delete(p);
+            if (stripes[s] == null || stripes[s].count() < before)
+                count.decrementAndGet();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* *********************************************************************************************** */
+    /* *************************************** QUERIES *********************************************** */
+    /* *********************************************************************************************** */
+
+    @Override
+    public boolean search(KDPoint p) {
+        int s;
+        try {
+            s = stripeOf(p);
+        } catch (RuntimeException outside) {
+            return false;
+        }
+        ReentrantReadWriteLock.ReadLock lock = locks[s].readLock();
+        lock.lock();
+        try {
+            return stripes[s] != null && stripes[s].search(p);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Collection<KDPoint> range(KDPoint p, double range) {
+        LinkedList<KDPoint> pts = new LinkedList<>();
+        if (range < 0)
+            return pts;
+        for (int s = 0; s < stripes.length; s++) {
+            if (stripeDistanceSquared(s, p) > range * range)
+                continue;
+            ReentrantReadWriteLock.ReadLock lock = locks[s].readLock();
+            lock.lock();
+            try {
+                if (stripes[s] != null)
+                    stripes[s].range(p, pts, range);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return pts;
+    }
+
+    @Override
+    public KDPoint nearestNeighbor(KDPoint p) {
+        NNData<KDPoint> n = new NNData<>(null, PRQuadTree.INFTY);
+        for (int s : stripesByDistance(p)) {
+            double best = n.getBestDist();
+            if (best >= 0 && stripeDistanceSquared(s, p) > best * best)
+                break; // Every other stripe is at least as far
+            ReentrantReadWriteLock.ReadLock lock = locks[s].readLock();
+            lock.lock();
+            try {
+                if (stripes[s] != null)
+                    n = stripes[s].nearestNeighbor(p, n);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return n.getBestGuess();
+    }
+
+    @Override
+    public BoundedQueue<KDPoint> kNearestNeighbors(int k, KDPoint p) {
+        if (k <= 0)
+            throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+        BoundedQueue<KDPoint> queue = new HeapBoundedPriorityQueue<>(k);
+        for (int s : stripesByDistance(p)) {
+            if (queue.size() == k && stripeDistanceSquared(s, p) > queue.worstPriority())
+                break;
+            ReentrantReadWriteLock.ReadLock lock = locks[s].readLock();
+            lock.lock();
+            try {
+                if (stripes[s] != null)
+                    stripes[s].kNearestNeighbors(k, p, queue);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return queue;
+    }
+
+    private Integer[] stripesByDistance(KDPoint anchor) {
+        Integer[] order = new Integer[stripes.length];
+        double[] distances = new double[stripes.length];
+        for (int s = 0; s < stripes.length; s++) {
+            order[s] = s;
+            distances[s] = stripeDistanceSquared(s, anchor);
+        }
+        Arrays.sort(order, (s1, s2) -> Double.compare(distances[s1], distances[s2]));
+        return order;
+    }
+
+    private double stripeDistanceSquared(int stripe, KDPoint anchor) {
+        // Squared distance from the anchor to the closest point of the stripe's box, which spans
+        // [centroid - half, centroid + half) in every dimension
+        long half = 1L << (k - stripeLevels - 1);
+        double sum = 0;
+        for (int d = 0; d < dims; d++) {
+            long low = centroids[stripe].coords[d] - half, high = centroids[stripe].coords[d] + half - 1;
+            long diff = (anchor.coords[d] < low) ? low - anchor.coords[d]
+                    : (anchor.coords[d] > high) ? anchor.coords[d] - high : 0;
+            sum += (double) diff * diff;
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the height of the equivalent {@link PRQuadTree}. Above the stripes, that tree has a gray node wherever
+     * a cell holds more than bucketingParam points, and a black node otherwise.
+     * @return The height of the tree, -1 if it is empty.
+     */
+    @Override
+    public int height() {
+        // Read every stripe once, then work on the copy
+        int[] counts = new int[stripes.length], heights = new int[stripes.length];
+        for (int s = 0; s < stripes.length; s++) {
+            ReentrantReadWriteLock.ReadLock lock = locks[s].readLock();
+            lock.lock();
+            try {
+                counts[s] = (stripes[s] == null) ? 0 : stripes[s].count();
+                heights[s] = (stripes[s] == null) ? -1 : stripes[s].height();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return height(0, stripes.length, counts, heights);
+    }
+
+    private int height(int from, int to, int[] counts, int[] heights) {
+        // The stripes of a cell are a contiguous run of indices, and those of its children split it evenly
+        if (to - from == 1)
+            return heights[from];
+        int total = 0;
+        for (int s = from; s < to; s++)
+            total += counts[s];
+        if (total <= bucketingParam)
+            return (total == 0) ? -1 : 0;
+        int step = (to - from) >>> dims, tallest = -1;
+        for (int c = from; c < to; c += step)
+            tallest = Math.max(tallest, height(c, c + step, counts, heights));
+        return tallest + 1;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return count.get() == 0;
+    }
+
+    @Override
+    public int count() {
+        return count.get();
+    }
+
+    /**
+     * A simple accessor for the bucket size of the current {@link ConcurrentPRQuadTree}.
+     * @return The bucket size of the current {@link ConcurrentPRQuadTree}.
+     */
+    public int getBucketSize() {
+        return bucketingParam;
+    }
+
+    /**
+     * Returns the number of stripes that the tree locks separately.
+     * @return 2^(dims &#42; stripeLevels).
+     */
+    public int getStripeCount() {
+        return stripes.length;
+    }
+}
@@ -1,13 +1,25 @@
 package spatial.trees;
 
 import spatial.kdpoint.KDPoint;
-import spatial.knnutils.BoundedPriorityQueue;
+import spatial.knnutils.BoundedQueue;
+import spatial.knnutils.HeapBoundedPriorityQueue;
 import spatial.knnutils.NNData;
 import spatial.nodes.KDTreeNode;
 
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
 
 /**
  * <p>{@link KDTree} implements <em>K</em>-D Trees, where  <em>K</em> is a positive integer
@@ -48,6 +60,18 @@ public class KDTree implements SpatialDictionary, SpatialQuerySolver {
 	 */
 	public static final double INFTY = -1.0;
 
+	/**
+	 * A reasonable weight balance threshold for {@link #KDTree(int, double) balanced} KD-Trees. Smaller values
+	 * keep the tree shorter at the price of more frequent rebuilds.
+	 */
+	public static final double DEFAULT_ALPHA = 0.7;
+
+	/**
+	 * The first four bytes of every snapshot of a {@link KDTree}: &quot;KDT&quot; followed by the version of the format.
+	 * @see #writeSnapshot(WritableByteChannel)
+	 */
+	public static final int SNAPSHOT_MAGIC = ('K' << 24) | ('D' << 16) | ('T' << 8) | 1;
+
 	/* ************************************************************************** */
 	/* ************************* PRIVATE FIELDS ********************************* */
 	/* *********  JAVADOC STILL GENERATABLE, FOR EDUCATIONAL PURPOSES ************* */
@@ -74,6 +98,18 @@ public class KDTree implements SpatialDictionary, SpatialQuerySolver {
 	 */
 	private int count;
 
+	/**
+	 * The weight balance threshold of a balanced tree, or 0 if the tree never rebalances itself.
+	 * @see #KDTree(int, double)
+	 */
+	private double alpha;
+
+	/**
+	 * The largest value that {@link #count} reached since the last time the entire tree was rebuilt. Only maintained
+	 * by balanced trees.
+	 */
+	private int maxCount;
+
 
 	/* *********************************************************************************************** */
 	/* *************************** PUBLIC METHOD IMPLEMENTATION ************************************* */
@@ -99,25 +135,162 @@ public class KDTree implements SpatialDictionary, SpatialQuerySolver {
 		dims = k;
 		root = null;
 		count = 0;
+		alpha = 0;
+	}
+
+	/**
+	 * <p>Constructs a <b>balanced</b> KD-Tree. Balanced trees track the size of every subtree, and after every
+	 * insertion or deletion they rebuild the highest subtree on the affected path in which a child holds more than
+	 * {@code alpha} times the points of its parent (a &quot;scapegoat&quot;). When deletions shrink the tree to
+	 * {@code alpha} times the largest size it has had since its last full rebuild, the entire tree is rebuilt.</p>
+	 *
+	 * <p>This keeps the height of the tree logarithmic even under sorted or otherwise adversarial insertion orders,
+	 * while insertions and deletions cost amortized O(log n) extra work.</p>
+	 * @param k The dimensionality of this.
+	 * @param alpha The weight balance threshold, strictly between 0.5 and 1.
+	 * @throws RuntimeException if k&lt;=0 or alpha is out of range.
+	 * @see #DEFAULT_ALPHA
+	 * @see KDTreeNode#rebalance(KDPoint, int, int, double)
+	 */
+	public KDTree(int k, double alpha){
+		this(k);
+		if(!(alpha > 0.5 && alpha < 1))
+			throw new RuntimeException("The value of alpha provided, " + alpha + ", is invalid: Please provide a value strictly between 0.5 and 1.");
+		this.alpha = alpha;
+		maxCount = 0;
+	}
+
+	/**
+	 * Builds a balanced KD-Tree with <em>k=2</em> over the provided {@link KDPoint}s.
+	 * @param points The {@link KDPoint}s to store in the tree.
+	 * @return A {@link KDTree} containing all of {@code points}.
+	 * @see #bulkLoad(int, Collection)
+	 */
+	public static KDTree bulkLoad(Collection<KDPoint> points){
+		return bulkLoad(DEFAULT_DIMS, points);
+	}
+
+	/**
+	 * Builds a balanced KD-Tree over the provided {@link KDPoint}s in O(n log n) time. Unlike calling
+	 * {@link #insert(KDPoint)} once per point, the shape of the produced tree does not depend on the order
+	 * of {@code points}: sorted or otherwise adversarial inputs still yield a height of about log2(n).
+	 * @param k The dimensionality of the tree.
+	 * @param points The {@link KDPoint}s to store in the tree.
+	 * @return A {@link KDTree} containing all of {@code points}.
+	 * @throws RuntimeException if k&lt;=0.
+	 * @see KDTreeNode#build(KDPoint[], int, int)
+	 */
+	public static KDTree bulkLoad(int k, Collection<KDPoint> points){
+		KDTree tree = new KDTree(k);
+		KDPoint[] pts = points.toArray(new KDPoint[0]);
+		tree.root = KDTreeNode.build(pts, 0, k);
+		tree.count = tree.maxCount = pts.length;
+		return tree;
+	}
+
+	/**
+	 * Same as {@link #bulkLoad(int, Collection)}, but builds independent subtrees concurrently in the
+	 * {@link ForkJoinPool#commonPool() common pool}.
+	 * @param k The dimensionality of the tree.
+	 * @param points The {@link KDPoint}s to store in the tree.
+	 * @return A {@link KDTree} containing all of {@code points}.
+	 * @throws RuntimeException if k&lt;=0.
+	 * @see #parallelBulkLoad(int, Collection, ForkJoinPool)
+	 */
+	public static KDTree parallelBulkLoad(int k, Collection<KDPoint> points){
+		return parallelBulkLoad(k, points, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Same as {@link #bulkLoad(int, Collection)}, but builds independent subtrees concurrently in the
+	 * provided {@link ForkJoinPool}. The produced tree is the same as the one that the sequential
+	 * bulk load produces.
+	 * @param k The dimensionality of the tree.
+	 * @param points The {@link KDPoint}s to store in the tree.
+	 * @param pool The {@link ForkJoinPool} that runs the build.
+	 * @return A {@link KDTree} containing all of {@code points}.
+	 * @throws RuntimeException if k&lt;=0.
+	 * @see KDTreeNode#buildParallel(KDPoint[], int, int, ForkJoinPool)
+	 */
+	public static KDTree parallelBulkLoad(int k, Collection<KDPoint> points, ForkJoinPool pool){
+		KDTree tree = new KDTree(k);
+		KDPoint[] pts = points.toArray(new KDPoint[0]);
+		tree.root = KDTreeNode.buildParallel(pts, 0, k, pool);
+		tree.count = tree.maxCount = pts.length;
+		return tree;
 	}
 
 	@Override
 	public void insert(KDPoint p){
 		if(root == null)
 			root = new KDTreeNode(p);
-		else
+		else {
 			root.insert(p, 0, dims);
+			if(isBalanced())
+				root = root.rebalance(p, 0, dims, alpha);
+		}
 		count++;
+		maxCount = Math.max(maxCount, count);
 	}
 
 	@Override
 	public void delete(KDPoint p){
-		if (root != null) {
-			if(search(p)) {
-				root = root.delete(p, 0, dims);
-				count--; // Guaranteed successful deletion.
-			}
+		deleteIfPresent(p);
+	}
+
+	/**
+	 * Deletes {@code p} from the tree, if it is there, in a single traversal of the tree.
+	 * @param p The {@link KDPoint} to delete.
+	 * @return true if {@code p} was deleted, false if the tree did not contain it.
+	 * @see #delete(KDPoint)
+	 */
+	public boolean deleteIfPresent(KDPoint p){
+		if (root == null)
+			return false;
+		int before = root.size();
+		root = root.delete(p, 0, dims);
+		if(root != null && root.size() == before)
+			return false; // The subtree sizes only change if p was found
+		count--;
+		if(isBalanced() && root != null) {
+			if(count <= alpha * maxCount) {
+				root = root.rebuild(0, dims);
+				maxCount = count;
+			} else
+				root = root.rebalance(p, 0, dims, alpha);
 		}
+		return true;
+	}
+
+	/**
+	 * Deletes every provided {@link KDPoint} from the tree. The whole batch shares a single traversal of the tree,
+	 * which only visits the subtrees that some of the {@link KDPoint}s could be in, so deleting many points at once
+	 * is much cheaper than deleting them one by one. Every element of {@code points} deletes at most one copy of
+	 * an equal {@link KDPoint}, just like {@link #delete(KDPoint)}.
+	 * @param points The {@link KDPoint}s to delete.
+	 * @return The number of {@link KDPoint}s that were deleted.
+	 * @see KDTreeNode#deleteAll(KDPoint[], int, int, double)
+	 */
+	public int deleteAll(Collection<KDPoint> points){
+		if(root == null || points.isEmpty())
+			return 0;
+		int before = root.size();
+		root = root.deleteAll(points.toArray(new KDPoint[0]), 0, dims, alpha);
+		int deleted = before - ((root == null) ? 0 : root.size());
+		count -= deleted;
+		if(isBalanced() && root != null && count <= alpha * maxCount) {
+			root = root.rebuild(0, dims);
+			maxCount = count;
+		}
+		return deleted;
+	}
+
+	/**
+	 * Reports whether this is a balanced KD-Tree.
+	 * @return true iff this was constructed with {@link #KDTree(int, double)}.
+	 */
+	public boolean isBalanced(){
+		return alpha > 0;
 	}
 
 	@Override
@@ -136,6 +309,29 @@ public class KDTree implements SpatialDictionary, SpatialQuerySolver {
 		return pts;
 	}
 
+	/**
+	 * <p>Executes a box range query, which reports every {@link KDPoint} of the tree that lies in the axis-aligned box
+	 * [min, max], <b>INCLUSIVE</b> in every dimension. Rectangular viewports are answered directly, rather than with
+	 * a {@link #range(KDPoint, double) range query} around their center and a filter: subtrees outside the box are
+	 * pruned, and subtrees inside of it are reported wholesale.</p>
+	 *
+	 * <p>Unlike {@link #range(KDPoint, double)}, there is no anchor, so no point in the box is left out. The box is
+	 * empty if min exceeds max in any dimension.</p>
+	 * @param min The corner of the box with the smallest coordinates.
+	 * @param max The corner of the box with the largest coordinates.
+	 * @return A {@link Collection} of all the {@link KDPoint}s of the tree in the box.
+	 * @throws RuntimeException if min or max does not have the dimensionality of the tree.
+	 */
+	public Collection<KDPoint> rangeBox(KDPoint min, KDPoint max){
+		if(min.coords.length != dims || max.coords.length != dims)
+			throw new RuntimeException("The corners of the box provided, " + min + " and " + max + ", are invalid: " +
+					"Please provide " + dims + "-dimensional points.");
+		LinkedList<KDPoint> pts = new LinkedList<>();
+		if(root != null)
+			root.rangeBox(min, max, pts, 0, dims);
+		return pts;
+	}
+
 	@Override
 	public KDPoint nearestNeighbor(KDPoint p){
 		NNData<KDPoint> n = new NNData<>(null, INFTY);
@@ -145,14 +341,76 @@ public class KDTree implements SpatialDictionary, SpatialQuerySolver {
 	}
 
 	@Override
-	public BoundedPriorityQueue<KDPoint> kNearestNeighbors(int k, KDPoint p){
+	public BoundedQueue<KDPoint> kNearestNeighbors(int k, KDPoint p){
 		if(k <= 0)
 			throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
-		BoundedPriorityQueue<KDPoint> queue = new BoundedPriorityQueue<>(k);
+		BoundedQueue<KDPoint> queue = new HeapBoundedPriorityQueue<>(k);
 		if(root != null)
 			root.kNearestNeighbors(k, p, queue, 0, dims);
 		return queue; // Might be empty; that's not a problem.
 	}
+
+	/**
+	 * <p>Browses the {@link KDPoint}s of the tree by increasing distance from p, lazily: every call to
+	 * {@link Iterator#next()} only explores as much of the tree as it takes to find the next neighbor, so callers that
+	 * filter the neighbors or stop at some distance need not guess a k for {@link #kNearestNeighbors(int, KDPoint)}
+	 * up front.</p>
+	 *
+	 * <p>Like the other queries, the iterator skips p itself. The tree must not be modified while it is in use.</p>
+	 * @param p The anchor of the query.
+	 * @return An {@link Iterator} over all the {@link KDPoint}s of the tree but p, nearest first.
+	 * @see #nearestNeighborStream(KDPoint)
+	 */
+	public Iterator<KDPoint> nearestNeighbors(KDPoint p){
+		return NeighborIterator.of(root, p, dims);
+	}
+
+	/**
+	 * Browses the {@link KDPoint}s of the tree by increasing distance from p, as a lazy, sequential {@link Stream}.
+	 * @param p The anchor of the query.
+	 * @return A {@link Stream} of all the {@link KDPoint}s of the tree but p, nearest first.
+	 * @see #nearestNeighbors(KDPoint)
+	 */
+	public Stream<KDPoint> nearestNeighborStream(KDPoint p){
+		return NeighborIterator.stream(nearestNeighbors(p));
+	}
+
+	/**
+	 * Answers a kNN query for every one of the provided anchors, in parallel on the
+	 * {@link ForkJoinPool#commonPool() common pool}.
+	 * @param k The number of neighbors to retrieve per anchor.
+	 * @param anchors The anchors of the queries.
+	 * @return A list whose i-th element lists the neighbors that {@link #kNearestNeighbors(int, KDPoint)} finds for
+	 * the i-th anchor, nearest first.
+	 * @throws RuntimeException if k&lt;=0.
+	 * @see #kNearestNeighborsBatch(int, List, ForkJoinPool)
+	 */
+	public List<List<KDPoint>> kNearestNeighborsBatch(int k, List<KDPoint> anchors){
+		return kNearestNeighborsBatch(k, anchors, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * <p>Answers a kNN query for every one of the provided anchors, in parallel on the provided {@link ForkJoinPool}.
+	 * Every worker reuses a single priority queue across the queries that it answers, so a batch allocates little more
+	 * than its results.</p>
+	 *
+	 * <p>Queries only read the tree, so any number of them can run at once, but the tree must not be modified while a
+	 * batch runs.</p>
+	 * @param k The number of neighbors to retrieve per anchor.
+	 * @param anchors The anchors of the queries.
+	 * @param pool The pool to run the queries on.
+	 * @return A list whose i-th element lists the neighbors that {@link #kNearestNeighbors(int, KDPoint)} finds for
+	 * the i-th anchor, nearest first.
+	 * @throws RuntimeException if k&lt;=0.
+	 */
+	public List<List<KDPoint>> kNearestNeighborsBatch(int k, List<KDPoint> anchors, ForkJoinPool pool){
+		KDTreeNode r = root;
+		return KNNBatch.run(k, anchors, pool, (anchor, queue) -> {
+			if(r != null)
+				r.kNearestNeighbors(k, anchor, queue, 0, dims);
+		});
+	}
+
 	@Override
 	public int height(){
 		return root == null ? -1 : root.height();
@@ -168,6 +426,15 @@ public class KDTree implements SpatialDictionary, SpatialQuerySolver {
 		return count;
 	}
 
+	/**
+	 * A simple accessor for the dimensionality of the current {@link KDTree}.
+	 * @return The dimensionality of the {@link KDPoint}s held by the {@link KDTree}.
+	 * @see #KDTree(int)
+	 */
+	public int getDims(){
+		return dims;
+	}
+
 	/**
 	 * Returns the {@link KDPoint} located at the <b>root</b>of the KDTree.
 	 * Only non-interface method! Added primarily for debugging purposes.
@@ -178,6 +445,82 @@ public class KDTree implements SpatialDictionary, SpatialQuerySolver {
 		return root == null ? null : new KDPoint(root.getPoint());
 	}
 
+	/**
+	 * <p>Writes a binary snapshot of the tree to the provided channel, which {@link #readSnapshot(ReadableByteChannel)}
+	 * restores with the exact same structure. The snapshot holds a header with the {@link #SNAPSHOT_MAGIC magic number},
+	 * the dimensionality, the balancing parameters and the number of points, followed by the nodes in preorder, as
+	 * written by {@link KDTreeNode#writeTo(SnapshotWriter)}: a byte of child flags and the coordinates of the point of
+	 * every node, so a point costs 4k+1 bytes.</p>
+	 *
+	 * <p>The tree must not be modified while it is being written.</p>
+	 * @param channel The channel to write to, which is left open.
+	 * @throws IOException if the channel cannot be written to.
+	 */
+	public void writeSnapshot(WritableByteChannel channel) throws IOException {
+		SnapshotWriter out = new SnapshotWriter(channel);
+		out.writeInt(SNAPSHOT_MAGIC);
+		out.writeInt(dims);
+		out.writeDouble(alpha);
+		out.writeInt(count);
+		out.writeInt(maxCount);
+		if(root != null)
+			root.writeTo(out);
+		out.flush();
+	}
+
+	/**
+	 * Writes a binary snapshot of the tree to the provided file, replacing it if it exists.
+	 * @param path The file to write to.
+	 * @throws IOException if the file cannot be written to.
+	 * @see #writeSnapshot(WritableByteChannel)
+	 */
+	public void writeSnapshot(Path path) throws IOException {
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			writeSnapshot(channel);
+		}
+	}
+
+	/**
+	 * Restores a {@link KDTree} from a snapshot written by {@link #writeSnapshot(WritableByteChannel)}, in a single
+	 * streaming pass that rebuilds every node in place rather than inserting the points again.
+	 * @param channel The channel to read from, which is left open.
+	 * @return A {@link KDTree} with the same structure and the same points as the one that was written.
+	 * @throws IOException if the channel cannot be read from, or does not hold a valid snapshot.
+	 */
+	public static KDTree readSnapshot(ReadableByteChannel channel) throws IOException {
+		SnapshotReader in = new SnapshotReader(channel);
+		if(in.readInt() != SNAPSHOT_MAGIC)
+			throw new StreamCorruptedException("Not a KD-Tree snapshot, or an unsupported version of one.");
+		int dims = in.readInt();
+		double alpha = in.readDouble();
+		int count = in.readInt(), maxCount = in.readInt();
+		if(dims <= 0 || count < 0 || !(alpha == 0 || (alpha > 0.5 && alpha < 1)))
+			throw new StreamCorruptedException("Invalid KD-Tree snapshot header.");
+		KDTree tree = (alpha == 0) ? new KDTree(dims) : new KDTree(dims, alpha);
+		if(count > 0)
+			tree.root = KDTreeNode.readFrom(in, dims);
+		if(tree.root != null && tree.root.size() != count)
+			throw new StreamCorruptedException("The KD-Tree snapshot holds " + tree.root.size() + " points instead of " +
+					count + ".");
+		tree.count = count;
+		tree.maxCount = maxCount;
+		return tree;
+	}
+
+	/**
+	 * Restores a {@link KDTree} from a snapshot file written by {@link #writeSnapshot(Path)}.
+	 * @param path The file to read from.
+	 * @return A {@link KDTree} with the same structure and the same points as the one that was written.
+	 * @throws IOException if the file cannot be read from, or does not hold a valid snapshot.
+	 * @see #readSnapshot(ReadableByteChannel)
+	 */
+	public static KDTree readSnapshot(Path path) throws IOException {
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			return readSnapshot(channel);
+		}
+	}
+
 	/**
 	 * A simple tree description generator for VizTree/CompactVizTree. It returns a string representation for the KD-Tree.
 	 * This tree representation follows jimblackler style(http://jimblackler.net/treefun/index.html).
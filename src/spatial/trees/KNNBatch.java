@@ -0,0 +1,104 @@
+package spatial.trees;
+
+import spatial.kdpoint.KDPoint;
+import spatial.knnutils.BoundedQueue;
+import spatial.knnutils.HeapBoundedPriorityQueue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
+
+/**
+ * <p>{@link KNNBatch} answers many kNN queries against the same tree in parallel, on behalf of
+ * {@link KDTree#kNearestNeighborsBatch(int, List, ForkJoinPool)} and
+ * {@link PRQuadTree#kNearestNeighborsBatch(int, List, ForkJoinPool)}. The anchors are split into contiguous chunks
+ * that the {@link ForkJoinPool} runs in parallel. Every chunk allocates a single {@link HeapBoundedPriorityQueue} and
+ * {@link HeapBoundedPriorityQueue#clear() clears} it between its queries, and writes its answers straight into the
+ * slots of its own anchors, so the results come back in input order without any merging.</p>
+ *
+ * <p>The tree must not be modified while a batch runs.</p>
+ */
+final class KNNBatch {
+
+    /**
+     * Chunks never hold fewer anchors than this, so that the cost of a task is amortized over many queries.
+     */
+    static final int MIN_CHUNK = 64;
+
+    /**
+     * How many chunks every worker of the pool gets on average, so that workers that finish early can steal.
+     */
+    private static final int CHUNKS_PER_WORKER = 4;
+
+    private KNNBatch() {
+    }
+
+    /**
+     * Runs a kNN query for every anchor.
+     * @param k The number of neighbors to retrieve per anchor.
+     * @param anchors The anchors of the queries.
+     * @param pool The pool to run the queries on.
+     * @param search Fills the provided, empty queue with the k nearest neighbors of the provided anchor.
+     * @return A list whose i-th element lists the neighbors of the i-th anchor, nearest first.
+     * @throws RuntimeException if k&lt;=0.
+     */
+    static List<List<KDPoint>> run(int k, List<KDPoint> anchors, ForkJoinPool pool,
+                                   BiConsumer<KDPoint, BoundedQueue<KDPoint>> search) {
+        if (k <= 0)
+            throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+        KDPoint[] in = anchors.toArray(new KDPoint[0]);
+        // Pre-sized with nulls, so that every chunk can set the slots of its own anchors
+        List<List<KDPoint>> out = new ArrayList<>(Collections.nCopies(in.length, null));
+        int chunk = Math.max(MIN_CHUNK, in.length / (CHUNKS_PER_WORKER * pool.getParallelism()));
+        Chunk root = new Chunk(k, in, out, 0, in.length, chunk, search);
+        if (in.length <= chunk)
+            root.compute(); // Not worth a trip through the pool
+        else
+            pool.invoke(root);
+        return out;
+    }
+
+    private static class Chunk extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int k;
+        private final KDPoint[] in;
+        private final List<List<KDPoint>> out;
+        private final int lo, hi, chunk;
+        private final BiConsumer<KDPoint, BoundedQueue<KDPoint>> search;
+
+        Chunk(int k, KDPoint[] in, List<List<KDPoint>> out, int lo, int hi, int chunk,
+              BiConsumer<KDPoint, BoundedQueue<KDPoint>> search) {
+            this.k = k;
+            this.in = in;
+            this.out = out;
+            this.lo = lo;
+            this.hi = hi;
+            this.chunk = chunk;
+            this.search = search;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > chunk) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new Chunk(k, in, out, lo, mid, chunk, search),
+                        new Chunk(k, in, out, mid, hi, chunk, search));
+                return;
+            }
+            HeapBoundedPriorityQueue<KDPoint> queue = new HeapBoundedPriorityQueue<>(k);
+            for (int i = lo; i < hi; i++) {
+                queue.clear();
+                search.accept(in[i], queue);
+                List<KDPoint> neighbors = new ArrayList<>(queue.size());
+                for (KDPoint p : queue)
+                    neighbors.add(p);
+                out.set(i, neighbors);
+            }
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package spatial.trees;
+
+import spatial.kdpoint.KDPoint;
+import spatial.kdpoint.MortonCode;
+import spatial.knnutils.BoundedQueue;
+import spatial.knnutils.HeapBoundedPriorityQueue;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+
+/**
+ * <p>{@link LinearQuadTree} is a <em>linear</em>, or pointerless, PR-QuadTree over 2D {@link KDPoint}s. Instead of
+ * a graph of {@link spatial.nodes.PRQuadGrayNode}s and {@link spatial.nodes.PRQuadBlackNode}s, it stores a single
+ * sorted {@code long[]} of the {@link MortonCode Morton (Z-order) keys} of its points, which interleave the bits of
+ * their coordinates. A point costs 8 bytes, and no object is allocated per point or per node.</p>
+ *
+ * <p>The keys of the points in any quadrant of the tree share a prefix, so every quadrant is a contiguous run of the
+ * array, and its four sub-quadrants are four consecutive sub-runs whose boundaries a binary search finds. Queries walk
+ * this implicit tree exactly like they walk a {@link PRQuadTree}: a quadrant whose run holds at most
+ * {@link #getBucketSize() bucketingParam} keys is a leaf (a black node), and its keys are scanned sequentially.
+ * The implicit root spans every {@code int} coordinate, with its centroid at the origin, so the tree behaves like a
+ * {@link PRQuadTree} with k=32 and has no bounds to outgrow.</p>
+ *
+ * <p>Like the {@link PRQuadTree}, a {@link LinearQuadTree} ignores duplicate insertions. Keeping the keys in a single
+ * sorted array makes {@link #insert(KDPoint)} and {@link #delete(KDPoint)} shift the keys after the affected one, so
+ * large trees are best built with {@link #bulkLoad(int, Collection)}, which sorts the keys once.</p>
+ *
+ * @see PRQuadTree
+ * @see MortonCode
+ */
+public class LinearQuadTree implements SpatialDictionary, SpatialQuerySolver {
+
+    private static final int DIMS = 2;
+    // Keys hold 32 levels of 2 bits each: one bit per coordinate per level
+    private static final int LEVELS = 32;
+
+    private final int bucketingParam;
+    // The Morton keys of the points, with their top bit flipped so that signed comparisons sort them in Z-order
+    private long[] keys;
+    private int count;
+
+    /**
+     * Constructs an empty {@link LinearQuadTree}.
+     * @param bucketingParam The "bucketing" parameter: how many {@link KDPoint}s a quadrant can hold before it
+     *                       splits, exactly like in {@link PRQuadTree#PRQuadTree(int, int)}.
+     * @throws RuntimeException if {@code bucketingParam} &lt; 1.
+     */
+    public LinearQuadTree(int bucketingParam) {
+        if (bucketingParam < 1)
+            throw new RuntimeException("The value of bucketingParam provided, " + bucketingParam + ", is invalid: " +
+                    "Please provide a positive integer.");
+        this.bucketingParam = bucketingParam;
+        keys = new long[0];
+        count = 0;
+    }
+
+    /**
+     * Builds a {@link LinearQuadTree} over the provided {@link KDPoint}s by sorting their keys once, which takes
+     * O(n log n) time instead of the O(n^2) of successive insertions.
+     * @param bucketingParam The "bucketing" parameter, as in {@link #LinearQuadTree(int)}.
+     * @param points The 2D {@link KDPoint}s to store in the tree. Duplicates are only stored once.
+     * @return A {@link LinearQuadTree} holding the provided {@link KDPoint}s.
+     * @throws RuntimeException if {@code bucketingParam} &lt; 1 or any of the points is not 2D.
+     */
+    public static LinearQuadTree bulkLoad(int bucketingParam, Collection<KDPoint> points) {
+        LinearQuadTree tree = new LinearQuadTree(bucketingParam);
+        long[] sorted = new long[points.size()];
+        int n = 0;
+        for (KDPoint p : points)
+            sorted[n++] = encode(checkDims(p));
+        Arrays.sort(sorted);
+        // Drop the duplicates, which are now adjacent
+        int distinct = 0;
+        for (int i = 0; i < n; i++)
+            if (distinct == 0 || sorted[i] != sorted[distinct - 1])
+                sorted[distinct++] = sorted[i];
+        tree.keys = sorted;
+        tree.count = distinct;
+        return tree;
+    }
+
+    @Override
+    public void insert(KDPoint p) {
+        long key = encode(checkDims(p));
+        int i = lowerBound(key, 0, count);
+        if (i < count && keys[i] == key)
+            return; // Already there
+        if (count == keys.length)
+            keys = Arrays.copyOf(keys, Math.max(16, 2 * keys.length));
+        System.arraycopy(keys, i, keys, i + 1, count - i);
+        keys[i] = key;
+        count++;
+    }
+
+    @Override
+    public void delete(KDPoint p) {
+        if (p.coords.length != DIMS)
+            return;
+        long key = encode(p);
+        int i = lowerBound(key, 0, count);
+        if (i < count && keys[i] == key) {
+            System.arraycopy(keys, i + 1, keys, i, count - i - 1);
+            count--;
+        }
+    }
+
+    @Override
+    public boolean search(KDPoint p) {
+        if (p.coords.length != DIMS)
+            return false;
+        long key = encode(p);
+        int i = lowerBound(key, 0, count);
+        return i < count && keys[i] == key;
+    }
+
+    /**
+     * Returns the height of the implicit PR-QuadTree. Its deepest gray node is the deepest quadrant holding more than
+     * {@link #getBucketSize() bucketingParam} keys. Since quadrants are runs of the sorted keys, that is the longest
+     * common prefix, in levels, of two keys that are bucketingParam positions apart.
+     * @return The height of the tree, -1 if it is empty.
+     */
+    @Override
+    public int height() {
+        if (count == 0)
+            return -1;
+        int deepestGray = -1;
+        for (int i = 0; i + bucketingParam < count; i++)
+            deepestGray = Math.max(deepestGray, commonLevels(keys[i], keys[i + bucketingParam]));
+        return deepestGray + 1;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    @Override
+    public int count() {
+        return count;
+    }
+
+    /**
+     * A simple accessor for the bucket size of the current {@link LinearQuadTree}.
+     * @return The bucket size of the current {@link LinearQuadTree}.
+     */
+    public int getBucketSize() {
+        return bucketingParam;
+    }
+
+    @Override
+    public Collection<KDPoint> range(KDPoint p, double range) {
+        LinkedList<KDPoint> pts = new LinkedList<>();
+        if (range >= 0)
+            range(0, 0L, 0, count, p, pts, range * range);
+        return pts;
+    }
+
+    private void range(int level, long prefix, int from, int to, KDPoint anchor, Collection<KDPoint> results,
+                       double rangeSquared) {
+        // The quadrant with the provided key prefix holds the keys in [from, to)
+        if (from >= to || quadrantDistanceSquared(level, prefix, anchor) > rangeSquared)
+            return;
+        if (to - from <= bucketingParam) {
+            for (int i = from; i < to; i++) {
+                double dist = distanceSquared(keys[i], anchor);
+                if (dist <= rangeSquared && dist != 0)
+                    results.add(decode(keys[i]));
+            }
+            return;
+        }
+        int start = from;
+        for (int c = 0; c < 4; c++) {
+            int end = (c == 3) ? to : lowerBound(child(level, prefix, c + 1) ^ Long.MIN_VALUE, start, to);
+            range(level + 1, child(level, prefix, c), start, end, anchor, results, rangeSquared);
+            start = end;
+        }
+    }
+
+    @Override
+    public KDPoint nearestNeighbor(KDPoint p) {
+        return kNearestNeighbors(1, p).first();
+    }
+
+    @Override
+    public BoundedQueue<KDPoint> kNearestNeighbors(int k, KDPoint p) {
+        if (k <= 0)
+            throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+        BoundedQueue<KDPoint> queue = new HeapBoundedPriorityQueue<>(k);
+        kNearestNeighbors(0, 0L, 0, count, k, p, queue);
+        return queue;
+    }
+
+    private void kNearestNeighbors(int level, long prefix, int from, int to, int k, KDPoint anchor,
+                                   BoundedQueue<KDPoint> queue) {
+        if (from >= to || quadrantDistanceSquared(level, prefix, anchor) >= worstDistance(queue, k))
+            return;
+        if (to - from <= bucketingParam) {
+            // Points are only materialized once they make it into the queue, prioritized by squared distance
+            for (int i = from; i < to; i++) {
+                double dist = distanceSquared(keys[i], anchor);
+                if (dist < worstDistance(queue, k) && dist != 0)
+                    queue.enqueue(decode(keys[i]), dist);
+            }
+            return;
+        }
+        // Split the run into the four sub-quadrants, and visit them from the closest to the farthest
+        int[] bounds = new int[5];
+        double[] distances = new double[4];
+        int[] order = new int[4];
+        bounds[0] = from;
+        bounds[4] = to;
+        for (int c = 0; c < 4; c++) {
+            if (c > 0)
+                bounds[c] = lowerBound(child(level, prefix, c) ^ Long.MIN_VALUE, bounds[c - 1], to);
+            distances[c] = quadrantDistanceSquared(level + 1, child(level, prefix, c), anchor);
+            int j = c;
+            for (; j > 0 && distances[order[j - 1]] > distances[c]; j--)
+                order[j] = order[j - 1];
+            order[j] = c;
+        }
+        for (int c : order)
+            kNearestNeighbors(level + 1, child(level, prefix, c), bounds[c], bounds[c + 1], k, anchor, queue);
+    }
+
+    private static double worstDistance(BoundedQueue<KDPoint> queue, int k) {
+        // Squared distance of the farthest neighbor; infinite until the queue fills up, so that we always enqueue
+        if (queue.size() < k)
+            return Double.POSITIVE_INFINITY;
+        return queue.worstPriority();
+    }
+
+    /* *********************************************************************************************** */
+    /* ************************************* MORTON KEYS ********************************************* */
+    /* *********************************************************************************************** */
+
+    private int lowerBound(long key, int from, int to) {
+        // Index of the first key in [from, to) that is not smaller than key
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (keys[mid] < key)
+                from = mid + 1;
+            else
+                to = mid;
+        }
+        return from;
+    }
+
+    private static KDPoint checkDims(KDPoint p) {
+        if (p.coords.length != DIMS)
+            throw new RuntimeException("Cannot insert a " + p.coords.length + "-D KDPoint into a 2-D LinearQuadTree.");
+        return p;
+    }
+
+    // The (unflipped) key prefix of child c of the quadrant at the provided level
+    private static long child(int level, long prefix, int c) {
+        return prefix | ((long) c << (2 * (LEVELS - level - 1)));
+    }
+
+    private static int commonLevels(long key1, long key2) {
+        return Long.numberOfLeadingZeros(key1 ^ key2) / 2;
+    }
+
+    private static long encode(KDPoint p) {
+        // Flipping the top bit of the keys, which are unsigned, orders them as signed longs
+        return MortonCode.encode2D(p.coords[0], p.coords[1]) ^ Long.MIN_VALUE;
+    }
+
+    private static KDPoint decode(long key) {
+        return new KDPoint(x(key), y(key));
+    }
+
+    private static int x(long key) {
+        return MortonCode.decodeX2D(key);
+    }
+
+    private static int y(long key) {
+        return MortonCode.decodeY2D(key ^ Long.MIN_VALUE);
+    }
+
+    private static double distanceSquared(long key, KDPoint anchor) {
+        double dx = (double) x(key) - anchor.coords[0], dy = (double) y(key) - anchor.coords[1];
+        return dx * dx + dy * dy;
+    }
+
+    private static double quadrantDistanceSquared(int level, long prefix, KDPoint anchor) {
+        // Squared distance from the anchor to the closest point of the quadrant with the provided
+        // (unflipped) key prefix, whose lowest coordinates are those of the prefix itself
+        long side = 1L << (LEVELS - level);
+        long xLow = MortonCode.decodeX2D(prefix);
+        long yLow = MortonCode.decodeY2D(prefix);
+        double dx = axisDistance(anchor.coords[0], xLow, xLow + side - 1);
+        double dy = axisDistance(anchor.coords[1], yLow, yLow + side - 1);
+        return dx * dx + dy * dy;
+    }
+
+    private static long axisDistance(long coord, long low, long high) {
+        // Distance from coord to the interval [low, high], 0 if it lies inside
+        return (coord < low) ? low - coord : (coord > high) ? coord - high : 0;
+    }
+}
@@ -0,0 +1,574 @@
+package spatial.trees;
+
+import spatial.kdpoint.KDPoint;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * <p>{@link LoggedSpatialDictionary} makes the mutations of any {@link SpatialDictionary} durable. Every
+ * {@link #insert(KDPoint)} and {@link #delete(KDPoint)} is applied to the wrapped dictionary and appended to a
+ * write-ahead log in a directory of its own; {@link #open(Path, Supplier, SnapshotFormat, boolean) opening} that
+ * directory again replays the log, so the dictionary comes back exactly as it was after the last
+ * {@link #sync() synced} mutation, however the previous process ended.</p>
+ *
+ * <p>A log record costs 4k+9 bytes: a byte for the kind of mutation, the dimensionality and coordinates of the point,
+ * and a CRC-32 of all of them, so that replay stops at the first record that a crash left torn or half-written and
+ * drops everything after it. Records are buffered in memory and only written and forced to the disk by
+ * {@link #sync()}, which <em>group-commits</em> them: a single {@link FileChannel#force(boolean) fsync} makes every
+ * record appended so far durable, and threads that call {@link #sync()} while another one is syncing wait for it
+ * and then usually find their records already durable. A dictionary opened with {@code syncOnMutation} syncs before
+ * every mutation returns; otherwise, it is up to the caller to sync, after a batch of mutations for instance.</p>
+ *
+ * <p>A log that could not be written or forced is in an unknown state: some of the records may have reached the disk
+ * and others not, and a later fsync would not tell which. So once that happens, the dictionary <em>fails</em>: it
+ * still answers queries, but every later mutation, {@link #sync()} and {@link #compact()} throws, and only the
+ * mutations that were durable before the failure survive opening the directory again.</p>
+ *
+ * <p>{@link #compact()} bounds the log by writing a snapshot of the dictionary in its {@link SnapshotFormat} and then
+ * starting an empty log. The snapshot and log of every compaction carry its generation in their file names
+ * ({@code snapshot-<i>g</i>} and {@code log-<i>g</i>}), and files of older generations are only deleted once the
+ * directory, with the new files in it, has been forced to the disk as well. So a crash in the middle of a compaction
+ * leaves either the old or the new generation to replay from, never a mix of both.</p>
+ *
+ * <p>Mutations and the queries of {@link SpatialDictionary} are synchronized on the {@link LoggedSpatialDictionary},
+ * so it may be used from many threads even if the wrapped dictionary is not thread-safe.</p>
+ *
+ * @param <D> The type of the wrapped dictionary.
+ * @see KDTree#writeSnapshot(WritableByteChannel)
+ * @see PRQuadTree#writeSnapshot(WritableByteChannel)
+ */
+public class LoggedSpatialDictionary<D extends SpatialDictionary> implements SpatialDictionary, Closeable {
+
+    /**
+     * Writes and reads the snapshots of a dictionary that {@link #compact()} produces.
+     * @param <D> The type of the dictionary.
+     */
+    public interface SnapshotFormat<D> {
+
+        /**
+         * Writes a snapshot of the dictionary to the provided channel.
+         * @param dictionary The dictionary to write.
+         * @param channel The channel to write to, which should be left open.
+         * @throws IOException if the channel cannot be written to.
+         */
+        void write(D dictionary, WritableByteChannel channel) throws IOException;
+
+        /**
+         * Restores a dictionary from a snapshot written by {@link #write(Object, WritableByteChannel)}.
+         * @param channel The channel to read from, which should be left open.
+         * @return The restored dictionary.
+         * @throws IOException if the channel cannot be read from, or does not hold a valid snapshot.
+         */
+        D read(ReadableByteChannel channel) throws IOException;
+
+        /**
+         * Returns the dimensionality of the {@link KDPoint}s of the dictionary. Replay stops at the first record of
+         * any other dimensionality, like at a torn one.
+         * @param dictionary The dictionary.
+         * @return The dimensionality of the points that the dictionary holds.
+         */
+        int dims(D dictionary);
+    }
+
+    /**
+     * The {@link SnapshotFormat} of {@link KDTree#writeSnapshot(WritableByteChannel)}.
+     */
+    public static final SnapshotFormat<KDTree> KD_TREE = new SnapshotFormat<KDTree>() {
+        @Override
+        public void write(KDTree tree, WritableByteChannel channel) throws IOException {
+            tree.writeSnapshot(channel);
+        }
+
+        @Override
+        public KDTree read(ReadableByteChannel channel) throws IOException {
+            return KDTree.readSnapshot(channel);
+        }
+
+        @Override
+        public int dims(KDTree tree) {
+            return tree.getDims();
+        }
+    };
+
+    /**
+     * The {@link SnapshotFormat} of {@link PRQuadTree#writeSnapshot(WritableByteChannel)}.
+     */
+    public static final SnapshotFormat<PRQuadTree> PR_QUAD_TREE = new SnapshotFormat<PRQuadTree>() {
+        @Override
+        public void write(PRQuadTree tree, WritableByteChannel channel) throws IOException {
+            tree.writeSnapshot(channel);
+        }
+
+        @Override
+        public PRQuadTree read(ReadableByteChannel channel) throws IOException {
+            return PRQuadTree.readSnapshot(channel);
+        }
+
+        @Override
+        public int dims(PRQuadTree tree) {
+            return tree.getDims();
+        }
+    };
+
+    /**
+     * The first four bytes of every log: &quot;WAL&quot; followed by the version of the format.
+     */
+    public static final int LOG_MAGIC = ('W' << 24) | ('A' << 16) | ('L' << 8) | 1;
+
+    private static final byte INSERT = 1, DELETE = 2;
+    private static final Pattern GENERATION = Pattern.compile("(snapshot|log)-(\\d+)");
+
+    private final Path directory;
+    private final SnapshotFormat<D> format;
+    private final boolean syncOnMutation;
+    private final int dims;
+    private D dictionary;
+    private int generation;
+    private FileChannel log;
+    private boolean closed;
+    // What failed the dictionary, if anything; guarded by this
+    private Exception failure;
+
+    // Records appended since the last sync, and how many records were ever appended; both guarded by this
+    private ByteBuffer pending;
+    private long appended;
+    // Only one thread syncs at a time, while holding syncLock; it also owns the spare buffer
+    private final Object syncLock = new Object();
+    private ByteBuffer spare;
+    private volatile long durable;
+    private final CRC32 crc = new CRC32();
+
+    private LoggedSpatialDictionary(Path directory, SnapshotFormat<D> format, boolean syncOnMutation, D dictionary,
+                                    int generation, FileChannel log) {
+        this.directory = directory;
+        this.format = format;
+        this.syncOnMutation = syncOnMutation;
+        this.dims = format.dims(dictionary);
+        this.dictionary = dictionary;
+        this.generation = generation;
+        this.log = log;
+        pending = ByteBuffer.allocate(SnapshotWriter.BUFFER_SIZE);
+        spare = ByteBuffer.allocate(SnapshotWriter.BUFFER_SIZE);
+    }
+
+    /**
+     * Opens the durable dictionary stored in the provided directory, creating it if needed. The latest snapshot in
+     * the directory, if any, is restored and every intact record of its log is replayed onto it.
+     * @param directory The directory of the dictionary, which only it should use.
+     * @param empty Creates the dictionary to start from when the directory holds no snapshot.
+     * @param format The format of the snapshots of the dictionary.
+     * @param syncOnMutation Whether {@link #insert(KDPoint)} and {@link #delete(KDPoint)} only return once their
+     *                       mutation is durable.
+     * @param <D> The type of the dictionary.
+     * @return The dictionary, ready to be mutated.
+     * @throws IOException if the directory cannot be read from or written to, or holds an invalid snapshot or log.
+     */
+    public static <D extends SpatialDictionary> LoggedSpatialDictionary<D> open(Path directory, Supplier<D> empty,
+                                                                                SnapshotFormat<D> format,
+                                                                                boolean syncOnMutation) throws IOException {
+        Files.createDirectories(directory);
+        int generation = -1;
+        for (Path file : list(directory)) {
+            Matcher m = GENERATION.matcher(file.getFileName().toString());
+            if (m.matches() && m.group(1).equals("snapshot"))
+                generation = Math.max(generation, Integer.parseInt(m.group(2)));
+        }
+        D dictionary;
+        if (generation < 0) {
+            generation = 0;
+            dictionary = empty.get();
+        } else {
+            try (FileChannel channel = FileChannel.open(snapshotFile(directory, generation), StandardOpenOption.READ)) {
+                dictionary = format.read(channel);
+            }
+        }
+        FileChannel log = FileChannel.open(logFile(directory, generation), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long end = replay(log, dictionary, format.dims(dictionary));
+            // Drop whatever a crash left after the last intact record, and append after it
+            log.truncate(end);
+            log.position(end);
+            if (end == 0) {
+                ByteBuffer header = ByteBuffer.allocate(Integer.BYTES).putInt(LOG_MAGIC);
+                header.flip();
+                writeFully(log, header);
+                log.force(false);
+            }
+            // The files that replay relied on must keep their names before those of other generations are gone
+            forceDirectory(directory);
+        } catch (IOException | RuntimeException e) {
+            log.close();
+            throw e;
+        }
+        deleteOtherGenerations(directory, generation);
+        return new LoggedSpatialDictionary<>(directory, format, syncOnMutation, dictionary, generation, log);
+    }
+
+    private static long replay(FileChannel log, SpatialDictionary dictionary, int dims) throws IOException {
+        // Applies every intact record of the log and returns the offset right after the last one. Every record holds
+        // a point of the dictionary's dimensionality, so a record that claims any other one is garbage: checking that
+        // first also keeps its size from being computed out of whatever a crash left behind
+        long size = log.size();
+        if (size < Integer.BYTES)
+            return 0; // New, or the crash struck before the header was complete
+        SnapshotReader in = new SnapshotReader(log.position(0));
+        if (in.readInt() != LOG_MAGIC)
+            throw new StreamCorruptedException("Not a write-ahead log, or an unsupported version of one.");
+        long end = Integer.BYTES;
+        CRC32 crc = new CRC32();
+        while (end + recordBytes(dims) <= size) {
+            byte op = in.readByte();
+            if ((op != INSERT && op != DELETE) || in.readInt() != dims)
+                break;
+            KDPoint p = in.readPoint(dims);
+            if (in.readInt() != checksum(crc, op, p))
+                break;
+            if (op == INSERT)
+                dictionary.insert(p);
+            else
+                dictionary.delete(p);
+            end += recordBytes(dims);
+        }
+        return end;
+    }
+
+    /* *********************************************************************************************** */
+    /* ************************************** MUTATIONS ********************************************** */
+    /* *********************************************************************************************** */
+
+    /**
+     * Inserts p into the wrapped dictionary and logs the insertion.
+     * @param p The {@link KDPoint} to insert.
+     * @throws UncheckedIOException if the dictionary syncs on mutations and the log cannot be written to, or if the
+     * dictionary has failed.
+     * @throws RuntimeException if p does not have the dimensionality of the dictionary.
+     */
+    @Override
+    public void insert(KDPoint p) {
+        mutate(INSERT, p);
+    }
+
+    /**
+     * Deletes p from the wrapped dictionary and logs the deletion.
+     * @param p The {@link KDPoint} to delete.
+     * @throws UncheckedIOException if the dictionary syncs on mutations and the log cannot be written to, or if the
+     * dictionary has failed.
+     * @throws RuntimeException if p does not have the dimensionality of the dictionary.
+     */
+    @Override
+    public void delete(KDPoint p) {
+        mutate(DELETE, p);
+    }
+
+    private void mutate(byte op, KDPoint p) {
+        // Replay would stop at the record of a point of another dimensionality, so it must never be logged
+        if (p.coords.length != dims)
+            throw new RuntimeException("The point provided, " + p + ", is invalid: Please provide a " + dims +
+                    "-dimensional point.");
+        synchronized (this) {
+            checkOpen();
+            if (failure != null)
+                throw new UncheckedIOException(failed());
+            if (op == INSERT)
+                dictionary.insert(p);
+            else
+                dictionary.delete(p);
+            append(op, p);
+        }
+        if (syncOnMutation) {
+            try {
+                sync();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private void append(byte op, KDPoint p) {
+        int bytes = recordBytes(p.coords.length);
+        if (pending.remaining() < bytes) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(2 * pending.capacity(), pending.position() + bytes));
+            pending.flip();
+            pending = grown.put(pending);
+        }
+        pending.put(op).putInt(p.coords.length);
+        for (int coord : p.coords)
+            pending.putInt(coord);
+        pending.putInt(checksum(crc, op, p));
+        appended++;
+    }
+
+    /**
+     * Makes every mutation that returned before this call durable: writes the records that are still buffered to
+     * the log and forces them to the disk. Concurrent calls are group-committed, so one thread may force the records
+     * of many others.
+     * @throws IOException if the log cannot be written to, in which case the dictionary fails, or if it has already
+     * failed.
+     */
+    public void sync() throws IOException {
+        long target;
+        synchronized (this) {
+            target = appended;
+        }
+        if (durable >= target)
+            return;
+        synchronized (syncLock) {
+            // The thread that held the lock before us may have synced our records as well
+            if (durable >= target)
+                return;
+            ByteBuffer batch;
+            long upTo;
+            synchronized (this) {
+                checkWritable();
+                batch = pending;
+                pending = spare;
+                upTo = appended;
+            }
+            // Mutations keep appending to the other buffer while this batch is written and forced
+            batch.flip();
+            try {
+                writeFully(log, batch);
+                log.force(false);
+            } catch (IOException | RuntimeException e) {
+                // The batch may be partly on the disk, and its records are not in either buffer any more
+                synchronized (this) {
+                    failure = e;
+                }
+                throw e;
+            }
+            batch.clear();
+            spare = batch;
+            durable = upTo;
+        }
+    }
+
+    /**
+     * Bounds the log: writes a snapshot of the wrapped dictionary, forces it to the disk, and replaces the log with
+     * an empty one. Mutations wait until the compaction is over.
+     * @throws IOException if the snapshot cannot be written, in which case the dictionary keeps using the old
+     * snapshot and log; if the old or the new log cannot be written, in which case the dictionary fails; or if it has
+     * already failed.
+     */
+    public void compact() throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                checkWritable();
+                // Nothing may be pending, or it would be lost with the old log
+                pending.flip();
+                try {
+                    writeFully(log, pending);
+                } catch (IOException | RuntimeException e) {
+                    failure = e;
+                    throw e;
+                }
+                pending.clear();
+                int next = generation + 1;
+                Path tmp = directory.resolve("snapshot-" + next + ".tmp");
+                try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    format.write(dictionary, channel);
+                    channel.force(true);
+                }
+                // Once the snapshot has its final name, the next open() replays from it
+                Files.move(tmp, snapshotFile(directory, next), StandardCopyOption.ATOMIC_MOVE);
+                // ...so from here on, records appended to the old log would be ignored
+                FileChannel nextLog = null;
+                try {
+                    nextLog = FileChannel.open(logFile(directory, next), StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                    ByteBuffer header = ByteBuffer.allocate(Integer.BYTES).putInt(LOG_MAGIC);
+                    header.flip();
+                    writeFully(nextLog, header);
+                    nextLog.force(false);
+                    // The rename and the new log must be durable before the old generation is deleted
+                    forceDirectory(directory);
+                } catch (IOException | RuntimeException e) {
+                    failure = e;
+                    if (nextLog != null) {
+                        try {
+                            nextLog.close();
+                        } catch (IOException suppressed) {
+                            e.addSuppressed(suppressed);
+                        }
+                    }
+                    throw e;
+                }
+                log.close();
+                log = nextLog;
+                generation = next;
+                durable = appended;
+                deleteOtherGenerations(directory, generation);
+            }
+        }
+    }
+
+    /**
+     * Syncs the log and closes it. The dictionary cannot be mutated afterwards.
+     * @throws IOException if the log cannot be written to, or if the dictionary has failed; it is closed either way.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                if (closed)
+                    return;
+                try {
+                    checkWritable();
+                    pending.flip();
+                    writeFully(log, pending);
+                    log.force(false);
+                    durable = appended;
+                } finally {
+                    closed = true;
+                    log.close();
+                }
+            }
+        }
+    }
+
+    /* *********************************************************************************************** */
+    /* *************************************** QUERIES *********************************************** */
+    /* *********************************************************************************************** */
+
+    @Override
+    public synchronized boolean search(KDPoint p) {
+        return dictionary.search(p);
+    }
+
+    @Override
+    public synchronized int height() {
+        return dictionary.height();
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return dictionary.isEmpty();
+    }
+
+    @Override
+    public synchronized int count() {
+        return dictionary.count();
+    }
+
+    /**
+     * Returns the wrapped dictionary, to run the queries that {@link SpatialDictionary} does not offer, like those of a
+     * {@link SpatialQuerySolver}. Mutating it directly bypasses the log, and querying it is not synchronized with the
+     * mutations of other threads.
+     * @return The wrapped dictionary.
+     */
+    public synchronized D dictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Returns the generation of the dictionary's snapshot and log, which every {@link #compact()} increments.
+     * @return The current generation; 0 until the first compaction.
+     */
+    public synchronized int generation() {
+        return generation;
+    }
+
+    /* *********************************************************************************************** */
+    /* *************************************** FILES ************************************************* */
+    /* *********************************************************************************************** */
+
+    private void checkOpen() {
+        if (closed)
+            throw new RuntimeException("This LoggedSpatialDictionary has been closed.");
+    }
+
+    private void checkWritable() throws IOException {
+        checkOpen();
+        if (failure != null)
+            throw failed();
+    }
+
+    private IOException failed() {
+        return new IOException("This LoggedSpatialDictionary could not write its log, and only its mutations that " +
+                "were synced before are durable.", failure);
+    }
+
+    private static int recordBytes(int dims) {
+        // Kind of mutation, dimensionality, coordinates and checksum
+        return Byte.BYTES + Integer.BYTES * (dims + 2);
+    }
+
+    private static int checksum(CRC32 crc, byte op, KDPoint p) {
+        crc.reset();
+        crc.update(op);
+        update(crc, p.coords.length);
+        for (int coord : p.coords)
+            update(crc, coord);
+        return (int) crc.getValue();
+    }
+
+    private static void update(CRC32 crc, int value) {
+        // Big-endian, like the int itself in the log
+        crc.update(value >>> 24);
+        crc.update(value >>> 16);
+        crc.update(value >>> 8);
+        crc.update(value);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    private static Path snapshotFile(Path directory, int generation) {
+        return directory.resolve("snapshot-" + generation);
+    }
+
+    private static Path logFile(Path directory, int generation) {
+        return directory.resolve("log-" + generation);
+    }
+
+    private static void forceDirectory(Path directory) throws IOException {
+        // Renaming, creating and deleting files only become durable once their directory is forced. Some platforms,
+        // Windows for instance, do not let a directory be opened at all, and there is nothing to force on those
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (AccessDeniedException e) {
+            return;
+        }
+        try (FileChannel dir = channel) {
+            dir.force(true);
+        }
+    }
+
+    private static List<Path> list(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.collect(Collectors.toList());
+        }
+    }
+
+    private static void deleteOtherGenerations(Path directory, int generation) throws IOException {
+        for (Path file : list(directory)) {
+            String name = file.getFileName().toString();
+            Matcher m = GENERATION.matcher(name);
+            if ((m.matches() && Integer.parseInt(m.group(2)) != generation) || name.endsWith(".tmp"))
+                Files.delete(file);
+        }
+    }
+}
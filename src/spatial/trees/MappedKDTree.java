@@ -0,0 +1,318 @@
+package spatial.trees;
+
+import spatial.kdpoint.KDPoint;
+import spatial.knnutils.BoundedQueue;
+import spatial.knnutils.HeapBoundedPriorityQueue;
+import spatial.knnutils.NNData;
+import spatial.nodes.KDTreeNode;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.LinkedList;
+
+/**
+ * <p>{@link MappedKDTree} is a read-only, perfectly balanced <em>K</em>-D Tree that answers queries straight from a
+ * memory-mapped file. The file is written once by {@link #write(Path, int, Collection)} and opened with
+ * {@link #open(Path)}, which maps it with {@link FileChannel#map(FileChannel.MapMode, long, long)} and reads nothing
+ * but its header: there is no deserialization and no per-node object, so a tree of any size is ready to answer
+ * queries as soon as it is opened, and pages of the file are only loaded as queries touch them. Since the mapping
+ * is backed by the page cache, every JVM on the host that opens the same file shares a single copy of it.</p>
+ *
+ * <p>The tree is <em>implicit</em>: the file holds nothing but the coordinates of the points, in the order of an
+ * in-order traversal of the tree. The subtree over the points [lo, hi) of that order is rooted at the point in the
+ * middle of the range, {@code mid = (lo + hi) / 2}, which splits on the dimension of its depth like a node of a
+ * {@link KDTree}; its left subtree covers [lo, mid) and its right one (mid, hi). Every subtree is thus a contiguous
+ * run of the file. Unlike in a {@link KDTree}, points equal to a split value on its dimension may lie on either
+ * side of it, so queries visit both subtrees on such ties.</p>
+ *
+ * <p>Queries behave exactly like those of a {@link KDTree} over the same points, and may run concurrently from any
+ * number of threads, since they only use absolute reads of the mapping.</p>
+ *
+ * @see KDTree
+ * @see PointStoreKDTree
+ */
+public class MappedKDTree implements SpatialQuerySolver {
+
+    /**
+     * The first four bytes of every file of a {@link MappedKDTree}: &quot;KDM&quot; followed by the version of the
+     * format.
+     * @see #write(Path, int, Collection)
+     */
+    public static final int MAGIC = ('K' << 24) | ('D' << 16) | ('M' << 8) | 1;
+
+    // The magic number, the dimensionality and the number of points
+    private static final int HEADER_BYTES = 3 * Integer.BYTES;
+
+    private final int dims;
+    private final int count;
+    // The coordinates of the points, dims at a time, in the in-order of the tree
+    private final IntBuffer coords;
+
+    private MappedKDTree(int dims, int count, IntBuffer coords) {
+        this.dims = dims;
+        this.count = count;
+        this.coords = coords;
+    }
+
+    /**
+     * Lays the provided {@link KDPoint}s out as a balanced <em>K</em>-D Tree and writes them to a file that
+     * {@link #open(Path)} can map, replacing the file if it exists. The file holds a header with the
+     * {@link #MAGIC magic number}, the dimensionality and the number of points, followed by 4k bytes of coordinates
+     * per point. Laying the points out takes O(n log n) time.
+     * @param path The file to write to.
+     * @param k The dimensionality of the tree.
+     * @param points The {@link KDPoint}s to store in the tree, all of dimensionality k.
+     * @throws IOException if the file cannot be written to.
+     * @throws RuntimeException if k&lt;=0, if any of the points is not k-dimensional, or if the file would be too
+     * large to be mapped.
+     */
+    public static void write(Path path, int k, Collection<KDPoint> points) throws IOException {
+        if (k <= 0)
+            throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+        KDPoint[] pts = points.toArray(new KDPoint[0]);
+        for (KDPoint p : pts)
+            if (p.coords.length != k)
+                throw new RuntimeException("Cannot store a " + p.coords.length + "-D KDPoint in a " + k +
+                        "-D MappedKDTree.");
+        if (HEADER_BYTES + (long) Integer.BYTES * k * pts.length > Integer.MAX_VALUE)
+            throw new RuntimeException("Cannot map " + pts.length + " " + k + "-D points into a single buffer.");
+        layOut(pts, 0, pts.length, 0, k);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            SnapshotWriter out = new SnapshotWriter(channel);
+            out.writeInt(MAGIC);
+            out.writeInt(k);
+            out.writeInt(pts.length);
+            for (KDPoint p : pts)
+                out.writePoint(p);
+            out.flush();
+        }
+    }
+
+    private static void layOut(KDPoint[] points, int lo, int hi, int currDim, int dims) {
+        // Moves the median of [lo, hi) into the middle of the range, and then lays out both halves around it
+        if (hi - lo <= 1)
+            return;
+        int mid = (lo + hi) >>> 1;
+        KDTreeNode.select(points, lo, hi - 1, mid, currDim);
+        int nextDim = (currDim + 1) % dims;
+        layOut(points, lo, mid, nextDim, dims);
+        layOut(points, mid + 1, hi, nextDim, dims);
+    }
+
+    /**
+     * Maps a file written by {@link #write(Path, int, Collection)} into memory, read-only. The mapping outlives the
+     * file's channel, which is closed before this method returns, and is released once the returned tree is
+     * garbage-collected.
+     * @param path The file to map.
+     * @return A {@link MappedKDTree} over the points in the file.
+     * @throws IOException if the file cannot be read from, or was not written by
+     * {@link #write(Path, int, Collection)}.
+     */
+    public static MappedKDTree open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES || size > Integer.MAX_VALUE)
+                throw new StreamCorruptedException("Not a MappedKDTree file: it holds " + size + " bytes.");
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            // Big-endian, like everything that SnapshotWriter writes
+            if (buffer.getInt(0) != MAGIC)
+                throw new StreamCorruptedException("Not a MappedKDTree file, or an unsupported version of one.");
+            int dims = buffer.getInt(Integer.BYTES), count = buffer.getInt(2 * Integer.BYTES);
+            if (dims <= 0 || count < 0 || size != HEADER_BYTES + (long) Integer.BYTES * dims * count)
+                throw new StreamCorruptedException("Invalid MappedKDTree header.");
+            ByteBuffer body = buffer.position(HEADER_BYTES).slice();
+            return new MappedKDTree(dims, count, body.asIntBuffer());
+        }
+    }
+
+    /* *********************************************************************************************** */
+    /* ******************************************* QUERIES ******************************************* */
+    /* *********************************************************************************************** */
+
+    /**
+     * Searches the tree for the provided {@link KDPoint}.
+     * @param p The {@link KDPoint} to search for.
+     * @return true iff p is in the tree.
+     */
+    public boolean search(KDPoint p) {
+        return p.coords.length == dims && search(0, count, p, 0);
+    }
+
+    private boolean search(int lo, int hi, KDPoint p, int currDim) {
+        if (lo >= hi)
+            return false;
+        int mid = (lo + hi) >>> 1;
+        if (matches(mid, p))
+            return true;
+        int nextDim = (currDim + 1) % dims;
+        int split = coord(mid, currDim);
+        // Ties may be on either side
+        return (p.coords[currDim] <= split && search(lo, mid, p, nextDim))
+                || (p.coords[currDim] >= split && search(mid + 1, hi, p, nextDim));
+    }
+
+    @Override
+    public Collection<KDPoint> range(KDPoint p, double range) {
+        LinkedList<KDPoint> pts = new LinkedList<>();
+        if (range >= 0)
+            range(0, count, p, pts, range, range * range, 0);
+        return pts;
+    }
+
+    private void range(int lo, int hi, KDPoint anchor, Collection<KDPoint> results, double range,
+                       double rangeSquared, int currDim) {
+        if (lo >= hi)
+            return;
+        int mid = (lo + hi) >>> 1;
+        int nextDim = (currDim + 1) % dims;
+        int split = coord(mid, currDim);
+        if (anchor.coords[currDim] - range <= split)
+            range(lo, mid, anchor, results, range, rangeSquared, nextDim);
+        if (anchor.coords[currDim] + range >= split)
+            range(mid + 1, hi, anchor, results, range, rangeSquared, nextDim);
+        if (distanceSquared(mid, anchor) <= rangeSquared && !matches(mid, anchor))
+            results.add(get(mid));
+    }
+
+    @Override
+    public KDPoint nearestNeighbor(KDPoint p) {
+        // Track the index of the best guess and its squared distance, and only materialize it at the very end
+        NNData<Integer> n = new NNData<>(-1, KDTree.INFTY);
+        nearestNeighbor(0, count, p, 0, n);
+        return n.getBestGuess() < 0 ? null : get(n.getBestGuess());
+    }
+
+    private void nearestNeighbor(int lo, int hi, KDPoint anchor, int currDim, NNData<Integer> n) {
+        if (lo >= hi)
+            return;
+        int mid = (lo + hi) >>> 1;
+        int nextDim = (currDim + 1) % dims;
+        double diff = (double) anchor.coords[currDim] - coord(mid, currDim);
+        double dist = distanceSquared(mid, anchor);
+        if ((dist < n.getBestDist() || n.getBestDist() < 0) && !matches(mid, anchor))
+            n.update(mid, dist);
+        boolean goLeft = anchor.coords[currDim] < coord(mid, currDim);
+        if (goLeft)
+            nearestNeighbor(lo, mid, anchor, nextDim, n);
+        else
+            nearestNeighbor(mid + 1, hi, anchor, nextDim, n);
+        // Ties on the split value may be on the far side too, at a distance of diff == 0
+        if (diff * diff < n.getBestDist() || n.getBestDist() < 0) {
+            if (goLeft)
+                nearestNeighbor(mid + 1, hi, anchor, nextDim, n);
+            else
+                nearestNeighbor(lo, mid, anchor, nextDim, n);
+        }
+    }
+
+    @Override
+    public BoundedQueue<KDPoint> kNearestNeighbors(int k, KDPoint p) {
+        if (k <= 0)
+            throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+        BoundedQueue<KDPoint> queue = new HeapBoundedPriorityQueue<>(k);
+        kNearestNeighbors(0, count, k, p, queue, 0);
+        return queue;
+    }
+
+    private void kNearestNeighbors(int lo, int hi, int k, KDPoint anchor, BoundedQueue<KDPoint> queue,
+                                   int currDim) {
+        if (lo >= hi)
+            return;
+        int mid = (lo + hi) >>> 1;
+        int nextDim = (currDim + 1) % dims;
+        double diff = (double) anchor.coords[currDim] - coord(mid, currDim);
+        double dist = distanceSquared(mid, anchor);
+        // Points are only materialized once they make it into the queue, prioritized by squared distance
+        if (dist < worstDistance(queue, k) && !matches(mid, anchor))
+            queue.enqueue(get(mid), dist);
+        boolean goLeft = anchor.coords[currDim] < coord(mid, currDim);
+        if (goLeft)
+            kNearestNeighbors(lo, mid, k, anchor, queue, nextDim);
+        else
+            kNearestNeighbors(mid + 1, hi, k, anchor, queue, nextDim);
+        if (diff * diff < worstDistance(queue, k)) {
+            if (goLeft)
+                kNearestNeighbors(mid + 1, hi, k, anchor, queue, nextDim);
+            else
+                kNearestNeighbors(lo, mid, k, anchor, queue, nextDim);
+        }
+    }
+
+    private static double worstDistance(BoundedQueue<KDPoint> queue, int k) {
+        // Squared distance of the farthest neighbor; infinite until the queue fills up, so that we always enqueue
+        if (queue.size() < k)
+            return Double.POSITIVE_INFINITY;
+        return queue.worstPriority();
+    }
+
+    /**
+     * Returns the height of the tree, which is perfectly balanced: floor(log2(n)).
+     * @return The height of the tree, -1 if it is empty.
+     */
+    public int height() {
+        return count == 0 ? -1 : 31 - Integer.numberOfLeadingZeros(count);
+    }
+
+    /**
+     * Reports whether the tree is empty.
+     * @return true iff the tree holds no points.
+     */
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Returns the number of points in the tree.
+     * @return The number of points in the tree.
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Returns the {@link KDPoint} located at the <b>root</b> of the tree. Added primarily for debugging purposes.
+     * @return A freshly materialized copy of the root's point, or null if the tree is empty.
+     */
+    public KDPoint getRoot() {
+        return count == 0 ? null : get(count >>> 1);
+    }
+
+    /* *********************************************************************************************** */
+    /* ************************************** MAPPED POINTS ****************************************** */
+    /* *********************************************************************************************** */
+
+    private int coord(int i, int dim) {
+        return coords.get(i * dims + dim);
+    }
+
+    private boolean matches(int i, KDPoint p) {
+        for (int d = 0; d < dims; d++)
+            if (coord(i, d) != p.coords[d])
+                return false;
+        return true;
+    }
+
+    private double distanceSquared(int i, KDPoint p) {
+        double sum = 0;
+        for (int d = 0; d < dims; d++) {
+            double diff = (double) coord(i, d) - p.coords[d];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    private KDPoint get(int i) {
+        int[] point = new int[dims];
+        for (int d = 0; d < dims; d++)
+            point[d] = coord(i, d);
+        return new KDPoint(point);
+    }
+}
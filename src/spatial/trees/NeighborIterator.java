@@ -0,0 +1,208 @@
+package spatial.trees;
+
+import spatial.kdpoint.KDPoint;
+import spatial.nodes.KDTreeNode;
+import spatial.nodes.PRQuadBlackNode;
+import spatial.nodes.PRQuadGrayNode;
+import spatial.nodes.PRQuadNode;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * <p>{@link NeighborIterator} browses the {@link KDPoint}s of a tree by increasing distance from an anchor, on behalf
+ * of {@link KDTree#nearestNeighbors(KDPoint)} and {@link PRQuadTree#nearestNeighbors(KDPoint)}. It keeps a single
+ * priority queue of both nodes and points (Hjaltason &amp; Samet's <em>incremental nearest neighbor</em> algorithm):
+ * a node is keyed by the squared distance from the anchor to the region that it spans, which bounds the distance to
+ * every point of its subtree from below, and a point by its own squared distance. Whenever the head of the queue is a
+ * node, it is replaced by its children and points; once it is a point, no point that is still in the tree can be any
+ * closer, so it is the next neighbor.</p>
+ *
+ * <p>Every step only expands the nodes that are closer than the neighbor that it yields, so consuming m neighbors
+ * costs about as much as a kNN query with k=m, without having to pick m up front. The anchor itself is skipped, like
+ * in the kNN queries. Points at the same distance come out in no particular order.</p>
+ *
+ * <p>The tree must not be modified while an iterator over it is in use.</p>
+ *
+ * @param <N> The type of the nodes of the tree.
+ */
+abstract class NeighborIterator<N> implements Iterator<KDPoint> {
+
+    /**
+     * The anchor of the query.
+     */
+    final KDPoint anchor;
+
+    private final PriorityQueue<Entry<N>> queue = new PriorityQueue<>();
+    private long pushed;
+
+    private NeighborIterator(KDPoint anchor) {
+        this.anchor = anchor;
+    }
+
+    /**
+     * Browses a <em>K</em>-D Tree.
+     * @param root The root of the tree, null if it is empty.
+     * @param anchor The anchor of the query.
+     * @param dims The dimensionality of the tree.
+     * @return An iterator over the points of the tree, nearest first.
+     */
+    static Iterator<KDPoint> of(KDTreeNode root, KDPoint anchor, int dims) {
+        return new KDTreeIterator(root, anchor, dims);
+    }
+
+    /**
+     * Browses a PR-QuadTree.
+     * @param root The root of the tree, null if it is empty.
+     * @param anchor The anchor of the query.
+     * @return An iterator over the points of the tree, nearest first.
+     */
+    static Iterator<KDPoint> of(PRQuadNode root, KDPoint anchor) {
+        return new PRQuadTreeIterator(root, anchor);
+    }
+
+    /**
+     * Wraps the provided iterator into a sequential, ordered {@link Stream}.
+     * @param neighbors An iterator from one of the {@code of} methods.
+     * @return A {@link Stream} of the neighbors, nearest first.
+     */
+    static Stream<KDPoint> stream(Iterator<KDPoint> neighbors) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(neighbors,
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Replaces a node, which has just left the queue, with its children and points.
+     * @param node The node.
+     * @param region The region that the node spans, as recorded by {@link #pushNode(Object, double, long[], int)}.
+     * @param dim The splitting dimension of the node, as recorded as well.
+     */
+    abstract void expand(N node, long[] region, int dim);
+
+    final void pushNode(N node, double distance, long[] region, int dim) {
+        queue.add(new Entry<>(node, null, distance, region, dim, pushed++));
+    }
+
+    final void pushPoint(KDPoint p) {
+        if (!p.equals(anchor))
+            queue.add(new Entry<>(null, p, p.distanceSquared(anchor), null, 0, pushed++));
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!queue.isEmpty() && queue.peek().point == null) {
+            Entry<N> e = queue.poll();
+            expand(e.node, e.region, e.dim);
+        }
+        return !queue.isEmpty();
+    }
+
+    @Override
+    public KDPoint next() {
+        if (!hasNext())
+            throw new NoSuchElementException("There are no more neighbors to report.");
+        return queue.poll().point;
+    }
+
+    private static final class Entry<N> implements Comparable<Entry<N>> {
+
+        final N node;
+        final KDPoint point;
+        final double distance;
+        final long[] region;
+        final int dim;
+        final long order;
+
+        Entry(N node, KDPoint point, double distance, long[] region, int dim, long order) {
+            this.node = node;
+            this.point = point;
+            this.distance = distance;
+            this.region = region;
+            this.dim = dim;
+            this.order = order;
+        }
+
+        @Override
+        public int compareTo(Entry<N> o) {
+            int c = Double.compare(distance, o.distance);
+            if (c != 0)
+                return c;
+            // A point goes before a node at the same distance, which could not hold anything closer
+            if ((point == null) != (o.point == null))
+                return (point != null) ? -1 : 1;
+            return Long.compare(order, o.order);
+        }
+    }
+
+    private static final class KDTreeIterator extends NeighborIterator<KDTreeNode> {
+
+        private final int dims;
+
+        KDTreeIterator(KDTreeNode root, KDPoint anchor, int dims) {
+            super(anchor);
+            this.dims = dims;
+            if (root != null) {
+                // The region of a node is a box, lower bounds in [0, dims) and upper bounds in [dims, 2*dims)
+                long[] region = new long[2 * dims];
+                Arrays.fill(region, 0, dims, Long.MIN_VALUE);
+                Arrays.fill(region, dims, 2 * dims, Long.MAX_VALUE);
+                pushNode(root, 0, region, 0);
+            }
+        }
+
+        @Override
+        void expand(KDTreeNode node, long[] region, int dim) {
+            pushPoint(node.getPoint());
+            int split = node.getPoint().coords[dim];
+            int nextDim = (dim + 1) % dims;
+            // Both boxes include the splitting plane, so that they stay lower bounds whichever side ties went to
+            if (node.getLeft() != null) {
+                long[] left = (node.getRight() != null) ? region.clone() : region;
+                left[dims + dim] = Math.min(left[dims + dim], split);
+                pushNode(node.getLeft(), distanceSquared(left), left, nextDim);
+            }
+            if (node.getRight() != null) {
+                region[dim] = Math.max(region[dim], split);
+                pushNode(node.getRight(), distanceSquared(region), region, nextDim);
+            }
+        }
+
+        private double distanceSquared(long[] region) {
+            // In double, like KDPoint.distanceSquared(): a gap across the whole int range squares past Long.MAX_VALUE
+            double dist = 0;
+            for (int d = 0; d < dims; d++) {
+                long c = anchor.coords[d];
+                double gap = (c < region[d]) ? region[d] - c : (c > region[dims + d]) ? c - region[dims + d] : 0;
+                dist += gap * gap;
+            }
+            return dist;
+        }
+    }
+
+    private static final class PRQuadTreeIterator extends NeighborIterator<PRQuadNode> {
+
+        PRQuadTreeIterator(PRQuadNode root, KDPoint anchor) {
+            super(anchor);
+            if (root != null)
+                pushNode(root, root.distanceSquaredTo(anchor), null, 0);
+        }
+
+        @Override
+        void expand(PRQuadNode node, long[] region, int dim) {
+            if (node instanceof PRQuadGrayNode) {
+                for (PRQuadNode child : ((PRQuadGrayNode) node).getChildren())
+                    if (child != null)
+                        pushNode(child, child.distanceSquaredTo(anchor), null, 0);
+            } else {
+                for (KDPoint p : ((PRQuadBlackNode) node).getPoints())
+                    pushPoint(p);
+            }
+        }
+    }
+}
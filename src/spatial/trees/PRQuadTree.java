@@ -1,15 +1,27 @@
 package spatial.trees;
 
 import spatial.kdpoint.KDPoint;
-import spatial.knnutils.BoundedPriorityQueue;
+import spatial.knnutils.BoundedQueue;
+import spatial.knnutils.HeapBoundedPriorityQueue;
 import spatial.knnutils.NNData;
 import spatial.nodes.PRQuadBlackNode;
 import spatial.nodes.PRQuadGrayNode;
 import spatial.nodes.PRQuadNode;
 
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
 
 /**
  * <p>PRQuadTree implements Point-Region (P-R) QuadTrees. Those are trie-based
@@ -25,6 +37,15 @@ import java.util.LinkedList;
  * subtrees per nodes. The course staff has come around some papers with applications of oct-trees, which are extensions of PR-QuadTrees) in 3 *
  * dimensions. Beyond 3, it seems that the idea of such exponential fanout trie-based quadtrees fades.</p>
  *
+ * <p>Still, {@link #PRQuadTree(int, int, int)} builds the same structure over d-dimensional {@link KDPoint}s, for
+ * d up to {@link #MAX_DIMS}: an octree in 3D and, in general, a tree whose gray nodes have 2^d children, one per
+ * orthant of their centroid. The other constructor builds the classic 2D PR-QuadTree.</p>
+ *
+ * <p>The k passed to a constructor only sets the <em>initial</em> space spanned by the root. Inserting a
+ * {@link KDPoint} that lies outside of it grows the root, around the origin, to twice its side, as many times as
+ * needed. Every subtree of the old root becomes the inner orthant of a subtree of the new one. Streams of coordinates of unknown extent can therefore be inserted
+ * without guessing k in advance, at the cost of one extra level per doubling.</p>
+ *
  * <p><b>YOU SHOULD ***NOT*** EDIT THIS CLASS!</b> If you do, you risk <b>not passing our tests!</b> All the functionality
  * of the P-R QuadTree will be implemented by the various {@link PRQuadNode}s.</p>
  *
@@ -43,6 +64,20 @@ public class PRQuadTree implements SpatialDictionary,SpatialQuerySolver {
      */
     public static final int INFTY = -1;
 
+    /**
+     * The largest dimensionality that a {@link PRQuadTree} supports. Every gray node allocates 2^d child slots, so
+     * the fan-out is already 65536 at this point.
+     * @see #PRQuadTree(int, int, int)
+     */
+    public static final int MAX_DIMS = 16;
+
+    /**
+     * The first four bytes of every snapshot of a {@link PRQuadTree}: &quot;PRQ&quot; followed by the version of the
+     * format.
+     * @see #writeSnapshot(WritableByteChannel)
+     */
+    public static final int SNAPSHOT_MAGIC = ('P' << 24) | ('R' << 16) | ('Q' << 8) | 1;
+
     /**
      * Our root is a {@link PRQuadNode}. If {@code null}, it is assumed to be a white nodes.
 
@@ -60,6 +95,11 @@ public class PRQuadTree implements SpatialDictionary,SpatialQuerySolver {
      */
     private int k;
 
+    /**
+     * The dimensionality of the {@link KDPoint}s held by the PRQuadTree.
+     */
+    private int dims;
+
     /**
      * The number of {@link KDPoint}s held by the PRQuadTree. Note that, unlike KD-Trees, in PR-QuadTrees, the
      * number of nodes is not (necessarily) equal to the number of points stored.
@@ -84,11 +124,30 @@ public class PRQuadTree implements SpatialDictionary,SpatialQuerySolver {
      * @see #bucketingParam
      */
     public PRQuadTree(int k, int bucketingParam){
+        this(k, bucketingParam, 2);
+    }
+
+    /**
+     * Constructor for PR-trees over {@link KDPoint}s of any dimensionality up to {@link #MAX_DIMS}. The root spans
+     * the hypercube [-2^(k-1), 2^(k-1)) in every dimension, and every gray node splits its space into 2^dims orthants.
+     * @param k The exponent of 2 that defines the side of the hypercube spanned by the <b>entire tree</b>, as in
+     *          {@link #PRQuadTree(int, int)}.
+     * @param bucketingParam The "bucketing" parameter, which controls how many {@link KDPoint}s a {@link PRQuadBlackNode}
+     *                       of this tree can hold before having to split.
+     * @param dims The dimensionality of the {@link KDPoint}s that the tree will hold.
+     * @throws RuntimeException if {@code bucketingParam} &lt; 1, {@code k } &lt; 1 or {@code dims} is not between 1
+     * and {@link #MAX_DIMS}.
+     */
+    public PRQuadTree(int k, int bucketingParam, int dims){
         if(k < 1 || bucketingParam < 1)
             throw new RuntimeException("k should be 1 and above, and bucketingParam 1 and above. " +
                     "Provided: k=" + k + ", bucketingParam=" + bucketingParam + ".");
+        if(dims < 1 || dims > MAX_DIMS)
+            throw new RuntimeException("The value of dims provided, " + dims + ", is invalid: Please provide an " +
+                    "integer between 1 and " + MAX_DIMS + ".");
         this.k = k;
         this.bucketingParam = bucketingParam;
+        this.dims = dims;
         count = 0;
     }
 
@@ -103,24 +162,71 @@ public class PRQuadTree implements SpatialDictionary,SpatialQuerySolver {
      */
     @Override
     public void insert(KDPoint p) throws CentroidAccuracyException{
+        insertIfAbsent(p);
+    }
+
+    /**
+     * Inserts {@code p} into the tree, unless it is already there, in a single pass down the tree.
+     * @param p The {@link KDPoint} to insert into the tree.
+     * @return true if {@code p} was inserted, false if the tree already contained it.
+     * @throws CentroidAccuracyException if the insertion causes a decomposition of the
+     * tree that is too &quot; fine &quot; for {@code int} coordinate {@link KDPoint}s can handle.
+     * @see #insert(KDPoint)
+     */
+    public boolean insertIfAbsent(KDPoint p) throws CentroidAccuracyException{
+        if(p.coords.length != dims)
+            throw new RuntimeException("Cannot insert a " + p.coords.length + "-D KDPoint into a " + dims + "-D PRQuadTree.");
         if(root == null) {  // white nodes, first point stored
             // Notice that we are calling the second constructor of PRQuadBlackNode here!
-            root = new PRQuadBlackNode(new KDPoint(0, 0), k, bucketingParam, p); // Initial centroid assumed at (0, 0).
+            root = new PRQuadBlackNode(new KDPoint(new int[dims]), k, bucketingParam, p); // Initial centroid assumed at the origin.
             count++;
+            growToSpan(p);
+            return true;
         } else {// black or gray nodes
-            if(!root.search(p)) {
-                root = root.insert(p, k); // will adjust height accordingly.
-                count++;
-            }
+            growToSpan(p); // Only grows if p lies outside the root, where it cannot already be stored
+            int before = root.count();
+            root = root.insertIfAbsent(p, k); // will adjust height accordingly.
+            if(root.count() == before)
+                return false;
+            count++;
+            return true;
+        }
+    }
+
+    /**
+     * Grows the root, doubling its side every time, until it spans p. The subtrees of the old root become the inner
+     * orthants of the subtrees of the new one, so nothing already stored moves, and we do not need to know the
+     * extent of the data in advance.
+     * @param p The {@link KDPoint} that the root needs to span.
+     * @see PRQuadNode#grow()
+     */
+    private void growToSpan(KDPoint p) {
+        while(!root.spans(p)) {
+            root = root.grow();
+            k++;
         }
     }
 
     @Override
     public void delete(KDPoint p) {
-        if(root != null && search(p)) {
-                root = root.delete(p);
-                count--;
-        }
+        deleteIfPresent(p);
+    }
+
+    /**
+     * Deletes {@code p} from the tree, if it is there, in a single pass down the tree.
+     * @param p The {@link KDPoint} to delete from the tree.
+     * @return true if {@code p} was deleted, false if the tree did not contain it.
+     * @see #delete(KDPoint)
+     */
+    public boolean deleteIfPresent(KDPoint p) {
+        if(root == null)
+            return false;
+        int before = root.count();
+        root = root.delete(p);
+        if(root != null && root.count() == before)
+            return false;
+        count--;
+        return true;
     }
 
     @Override
@@ -145,7 +251,8 @@ public class PRQuadTree implements SpatialDictionary,SpatialQuerySolver {
 
     /**
      * A simple accessor for the dimension parameter k of the current {@link PRQuadTree}.
-     * @return The parameter k that defines the length of the {@link PRQuadTree}'s ROOT node
+     * @return The parameter k that defines the length of the {@link PRQuadTree}'s ROOT node. This is larger than the
+     * value passed to the constructor if the root has grown to span points outside its initial space.
      *
      * @see PRQuadTree#PRQuadTree(int, int)
      * @see #root
@@ -162,6 +269,15 @@ public class PRQuadTree implements SpatialDictionary,SpatialQuerySolver {
         return bucketingParam;
     }
 
+    /**
+     * A simple accessor for the dimensionality of the current {@link PRQuadTree}.
+     * @return The dimensionality of the {@link KDPoint}s held by the {@link PRQuadTree}.
+     * @see #PRQuadTree(int, int, int)
+     */
+    public int getDims(){
+        return dims;
+    }
+
 
     @Override
     public Collection<KDPoint> range(KDPoint p, double range) {
@@ -173,6 +289,29 @@ public class PRQuadTree implements SpatialDictionary,SpatialQuerySolver {
         return pts;
     }
 
+    /**
+     * <p>Executes a box range query, which reports every {@link KDPoint} of the tree that lies in the axis-aligned box
+     * [min, max], <b>INCLUSIVE</b> in every dimension. Rectangular viewports are answered directly, rather than with
+     * a {@link #range(KDPoint, double) range query} around their center and a filter: subtrees outside the box are
+     * pruned, and subtrees inside of it are reported wholesale.</p>
+     *
+     * <p>Unlike {@link #range(KDPoint, double)}, there is no anchor, so no point in the box is left out. The box is
+     * empty if min exceeds max in any dimension.</p>
+     * @param min The corner of the box with the smallest coordinates.
+     * @param max The corner of the box with the largest coordinates.
+     * @return A {@link Collection} of all the {@link KDPoint}s of the tree in the box.
+     * @throws RuntimeException if min or max does not have the dimensionality of the tree.
+     */
+    public Collection<KDPoint> rangeBox(KDPoint min, KDPoint max) {
+        if(min.coords.length != dims || max.coords.length != dims)
+            throw new RuntimeException("The corners of the box provided, " + min + " and " + max + ", are invalid: " +
+                    "Please provide " + dims + "-dimensional points.");
+        LinkedList<KDPoint> pts = new LinkedList<>();
+        if(root != null)
+            root.rangeBox(min, max, pts);
+        return pts;
+    }
+
     @Override
     public KDPoint nearestNeighbor(KDPoint p) {
         NNData<KDPoint> n = new NNData<>(null, INFTY);
@@ -182,15 +321,154 @@ public class PRQuadTree implements SpatialDictionary,SpatialQuerySolver {
     }
 
     @Override
-    public BoundedPriorityQueue<KDPoint> kNearestNeighbors(int k, KDPoint p) {
+    public BoundedQueue<KDPoint> kNearestNeighbors(int k, KDPoint p) {
         if(k <= 0)
             throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
-        BoundedPriorityQueue<KDPoint> queue = new BoundedPriorityQueue<>(k);
+        BoundedQueue<KDPoint> queue = new HeapBoundedPriorityQueue<>(k);
         if(root != null)
             root.kNearestNeighbors(k, p, queue);
         return queue; // Might be empty; that's not a problem.
     }
 
+    /**
+     * <p>Browses the {@link KDPoint}s of the tree by increasing distance from p, lazily: every call to
+     * {@link Iterator#next()} only explores as much of the tree as it takes to find the next neighbor, so callers that
+     * filter the neighbors or stop at some distance need not guess a k for {@link #kNearestNeighbors(int, KDPoint)}
+     * up front.</p>
+     *
+     * <p>Like the other queries, the iterator skips p itself. The tree must not be modified while it is in use.</p>
+     * @param p The anchor of the query.
+     * @return An {@link Iterator} over all the {@link KDPoint}s of the tree but p, nearest first.
+     * @see #nearestNeighborStream(KDPoint)
+     */
+    public Iterator<KDPoint> nearestNeighbors(KDPoint p) {
+        return NeighborIterator.of(root, p);
+    }
+
+    /**
+     * Browses the {@link KDPoint}s of the tree by increasing distance from p, as a lazy, sequential {@link Stream}.
+     * @param p The anchor of the query.
+     * @return A {@link Stream} of all the {@link KDPoint}s of the tree but p, nearest first.
+     * @see #nearestNeighbors(KDPoint)
+     */
+    public Stream<KDPoint> nearestNeighborStream(KDPoint p) {
+        return NeighborIterator.stream(nearestNeighbors(p));
+    }
+
+    /**
+     * Answers a kNN query for every one of the provided anchors, in parallel on the
+     * {@link ForkJoinPool#commonPool() common pool}.
+     * @param k The number of neighbors to retrieve per anchor.
+     * @param anchors The anchors of the queries.
+     * @return A list whose i-th element lists the neighbors that {@link #kNearestNeighbors(int, KDPoint)} finds for
+     * the i-th anchor, nearest first.
+     * @throws RuntimeException if k&lt;=0.
+     * @see #kNearestNeighborsBatch(int, List, ForkJoinPool)
+     */
+    public List<List<KDPoint>> kNearestNeighborsBatch(int k, List<KDPoint> anchors) {
+        return kNearestNeighborsBatch(k, anchors, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * <p>Answers a kNN query for every one of the provided anchors, in parallel on the provided {@link ForkJoinPool}.
+     * Every worker reuses a single priority queue across the queries that it answers, so a batch allocates little more
+     * than its results.</p>
+     *
+     * <p>Queries only read the tree, so any number of them can run at once, but the tree must not be modified while a
+     * batch runs.</p>
+     * @param k The number of neighbors to retrieve per anchor.
+     * @param anchors The anchors of the queries.
+     * @param pool The pool to run the queries on.
+     * @return A list whose i-th element lists the neighbors that {@link #kNearestNeighbors(int, KDPoint)} finds for
+     * the i-th anchor, nearest first.
+     * @throws RuntimeException if k&lt;=0.
+     */
+    public List<List<KDPoint>> kNearestNeighborsBatch(int k, List<KDPoint> anchors, ForkJoinPool pool) {
+        PRQuadNode r = root;
+        return KNNBatch.run(k, anchors, pool, (anchor, queue) -> {
+            if (r != null)
+                r.kNearestNeighbors(k, anchor, queue);
+        });
+    }
+
+    /**
+     * <p>Writes a binary snapshot of the tree to the provided channel, which {@link #readSnapshot(ReadableByteChannel)}
+     * restores with the exact same structure. The snapshot holds a header with the {@link #SNAPSHOT_MAGIC magic number},
+     * the dimensionality, k, the bucketing parameter, the number of points and the centroid of the root, followed by
+     * the nodes in preorder, as written by {@link PRQuadNode#writeTo(SnapshotWriter)}: a tag byte per node, and the
+     * size and coordinates of every bucket.</p>
+     *
+     * <p>The tree must not be modified while it is being written.</p>
+     * @param channel The channel to write to, which is left open.
+     * @throws IOException if the channel cannot be written to.
+     */
+    public void writeSnapshot(WritableByteChannel channel) throws IOException {
+        SnapshotWriter out = new SnapshotWriter(channel);
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeInt(dims);
+        out.writeInt(k);
+        out.writeInt(bucketingParam);
+        out.writeInt(count);
+        if(root == null) {
+            out.writePoint(new KDPoint(new int[dims]));
+            out.writeByte(0); // A white root
+        } else {
+            out.writePoint(root.getCentroid());
+            root.writeTo(out);
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes a binary snapshot of the tree to the provided file, replacing it if it exists.
+     * @param path The file to write to.
+     * @throws IOException if the file cannot be written to.
+     * @see #writeSnapshot(WritableByteChannel)
+     */
+    public void writeSnapshot(Path path) throws IOException {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeSnapshot(channel);
+        }
+    }
+
+    /**
+     * Restores a {@link PRQuadTree} from a snapshot written by {@link #writeSnapshot(WritableByteChannel)}, in a
+     * single streaming pass that rebuilds every node in place rather than inserting the points again.
+     * @param channel The channel to read from, which is left open.
+     * @return A {@link PRQuadTree} with the same structure and the same points as the one that was written.
+     * @throws IOException if the channel cannot be read from, or does not hold a valid snapshot.
+     */
+    public static PRQuadTree readSnapshot(ReadableByteChannel channel) throws IOException {
+        SnapshotReader in = new SnapshotReader(channel);
+        if(in.readInt() != SNAPSHOT_MAGIC)
+            throw new StreamCorruptedException("Not a PR-QuadTree snapshot, or an unsupported version of one.");
+        int dims = in.readInt(), k = in.readInt(), bucketingParam = in.readInt(), count = in.readInt();
+        if(dims < 1 || dims > MAX_DIMS || k < 1 || bucketingParam < 1 || count < 0)
+            throw new StreamCorruptedException("Invalid PR-QuadTree snapshot header.");
+        PRQuadTree tree = new PRQuadTree(k, bucketingParam, dims);
+        tree.root = PRQuadNode.readFrom(in, in.readPoint(dims), k, bucketingParam);
+        int read = (tree.root == null) ? 0 : tree.root.count();
+        if(read != count)
+            throw new StreamCorruptedException("The PR-QuadTree snapshot holds " + read + " points instead of " +
+                    count + ".");
+        tree.count = count;
+        return tree;
+    }
+
+    /**
+     * Restores a {@link PRQuadTree} from a snapshot file written by {@link #writeSnapshot(Path)}.
+     * @param path The file to read from.
+     * @return A {@link PRQuadTree} with the same structure and the same points as the one that was written.
+     * @throws IOException if the file cannot be read from, or does not hold a valid snapshot.
+     * @see #readSnapshot(ReadableByteChannel)
+     */
+    public static PRQuadTree readSnapshot(Path path) throws IOException {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return readSnapshot(channel);
+        }
+    }
+
     /**
      * A simple tree description generator for VizTree/CompactVizTree. It returns a string representation for the QuadTree
      * This tree representation follows jimblackler style (http://jimblackler.net/treefun/index.html).
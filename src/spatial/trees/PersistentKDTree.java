@@ -0,0 +1,201 @@
+package spatial.trees;
+
+import spatial.kdpoint.KDPoint;
+import spatial.knnutils.BoundedQueue;
+import spatial.knnutils.HeapBoundedPriorityQueue;
+import spatial.knnutils.NNData;
+import spatial.nodes.KDTreeNode;
+
+import java.util.Collection;
+import java.util.LinkedList;
+
+/**
+ * <p>{@link PersistentKDTree} is an immutable <em>K</em>-D Tree. {@link #insert(KDPoint)} and
+ * {@link #delete(KDPoint)} leave the tree they are called on untouched and return a new tree instead, which copies
+ * the O(log n) {@link KDTreeNode}s on the path of the affected point and shares every other subtree with the old
+ * tree (<em>path copying</em>). Every version of the tree therefore stays valid, and keeping one around costs
+ * nothing: </p>
+ *
+ * <ul>
+ *     <li>Readers that hold a version see a consistent snapshot of the points for as long as they like, without
+ *     locks and without copying the tree, while writers derive new versions from it. Publishing a new version to
+ *     readers only takes a volatile write, through an {@link java.util.concurrent.atomic.AtomicReference} for
+ *     instance.</li>
+ *     <li>A batch of updates is applied by chaining calls, and rolled back by simply dropping its result and keeping
+ *     the version that it started from.</li>
+ * </ul>
+ *
+ * <p>Queries behave exactly like those of a {@link KDTree}. Like {@link KDTree#KDTree(int, double)}, a tree built with
+ * a weight balance threshold rebuilds scapegoat subtrees after its updates, into new nodes as well.</p>
+ *
+ * @see KDTree
+ * @see KDTreeNode#inserted(KDPoint, int, int)
+ * @see KDTreeNode#deleted(KDPoint, int, int)
+ */
+public final class PersistentKDTree implements SpatialQuerySolver {
+
+    private final KDTreeNode root;
+    private final int dims;
+    private final double alpha;
+    private final int count;
+    // As in KDTree, the largest count since the last full rebuild; only maintained by balanced trees
+    private final int maxCount;
+
+    /**
+     * Constructs an empty {@link PersistentKDTree} that never rebalances itself.
+     * @param k The dimensionality of the tree.
+     * @throws RuntimeException if k&lt;=0.
+     */
+    public PersistentKDTree(int k) {
+        this(null, k, 0, 0, 0);
+        if (k <= 0)
+            throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+    }
+
+    /**
+     * Constructs an empty, <b>balanced</b> {@link PersistentKDTree}, which rebalances itself exactly like a
+     * {@link KDTree#KDTree(int, double) balanced} {@link KDTree}.
+     * @param k The dimensionality of the tree.
+     * @param alpha The weight balance threshold, strictly between 0.5 and 1.
+     * @throws RuntimeException if k&lt;=0 or alpha is out of range.
+     */
+    public PersistentKDTree(int k, double alpha) {
+        this(null, k, alpha, 0, 0);
+        if (k <= 0)
+            throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+        if (!(alpha > 0.5 && alpha < 1))
+            throw new RuntimeException("The value of alpha provided, " + alpha + ", is invalid: Please provide a value strictly between 0.5 and 1.");
+    }
+
+    private PersistentKDTree(KDTreeNode root, int dims, double alpha, int count, int maxCount) {
+        this.root = root;
+        this.dims = dims;
+        this.alpha = alpha;
+        this.count = count;
+        this.maxCount = maxCount;
+    }
+
+    /**
+     * Builds a balanced {@link PersistentKDTree} over the provided {@link KDPoint}s in O(n log n) time, like
+     * {@link KDTree#bulkLoad(int, Collection)}. The tree never rebalances itself.
+     * @param k The dimensionality of the tree.
+     * @param points The {@link KDPoint}s to store in the tree.
+     * @return A {@link PersistentKDTree} containing all of {@code points}.
+     * @throws RuntimeException if k&lt;=0.
+     */
+    public static PersistentKDTree bulkLoad(int k, Collection<KDPoint> points) {
+        if (k <= 0)
+            throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+        KDPoint[] pts = points.toArray(new KDPoint[0]);
+        return new PersistentKDTree(KDTreeNode.build(pts, 0, k), k, 0, pts.length, pts.length);
+    }
+
+    /**
+     * Returns a tree that holds the points of this one, plus p. This tree is left as is.
+     * @param p The {@link KDPoint} to insert.
+     * @return The new version of the tree.
+     */
+    public PersistentKDTree insert(KDPoint p) {
+        KDTreeNode r = (root == null) ? new KDTreeNode(p) : root.inserted(p, 0, dims);
+        if (isBalanced())
+            r = r.rebalanced(p, 0, dims, alpha);
+        return new PersistentKDTree(r, dims, alpha, count + 1, Math.max(maxCount, count + 1));
+    }
+
+    /**
+     * Returns a tree that holds the points of this one, but one copy of p. This tree is left as is.
+     * @param p The {@link KDPoint} to delete.
+     * @return The new version of the tree, or this itself if it does not hold p.
+     */
+    public PersistentKDTree delete(KDPoint p) {
+        if (root == null)
+            return this;
+        KDTreeNode r = root.deleted(p, 0, dims);
+        if (r == root)
+            return this; // Not found, so nothing was copied
+        int newMax = maxCount;
+        if (isBalanced() && r != null) {
+            if (count - 1 <= alpha * maxCount) {
+                r = r.rebuild(0, dims);
+                newMax = count - 1;
+            } else
+                r = r.rebalanced(p, 0, dims, alpha);
+        }
+        return new PersistentKDTree(r, dims, alpha, count - 1, newMax);
+    }
+
+    /**
+     * Reports whether this is a balanced tree.
+     * @return true iff this was derived from a tree constructed with {@link #PersistentKDTree(int, double)}.
+     */
+    public boolean isBalanced() {
+        return alpha > 0;
+    }
+
+    /**
+     * Searches the tree for the provided {@link KDPoint}.
+     * @param p The {@link KDPoint} to search for.
+     * @return true iff p is in the tree.
+     */
+    public boolean search(KDPoint p) {
+        return root != null && root.search(p, 0, dims);
+    }
+
+    @Override
+    public Collection<KDPoint> range(KDPoint p, double range) {
+        LinkedList<KDPoint> pts = new LinkedList<>();
+        if (root != null)
+            root.range(p, pts, range, 0, dims);
+        return pts;
+    }
+
+    @Override
+    public KDPoint nearestNeighbor(KDPoint p) {
+        NNData<KDPoint> n = new NNData<>(null, KDTree.INFTY);
+        if (root != null)
+            n = root.nearestNeighbor(p, 0, n, dims);
+        return n.getBestGuess();
+    }
+
+    @Override
+    public BoundedQueue<KDPoint> kNearestNeighbors(int k, KDPoint p) {
+        if (k <= 0)
+            throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+        BoundedQueue<KDPoint> queue = new HeapBoundedPriorityQueue<>(k);
+        if (root != null)
+            root.kNearestNeighbors(k, p, queue, 0, dims);
+        return queue;
+    }
+
+    /**
+     * Returns the height of the tree.
+     * @return The height of the tree, -1 if it is empty.
+     */
+    public int height() {
+        return root == null ? -1 : root.height();
+    }
+
+    /**
+     * Reports whether the tree is empty.
+     * @return true iff the tree holds no points.
+     */
+    public boolean isEmpty() {
+        return root == null;
+    }
+
+    /**
+     * Returns the number of points in the tree.
+     * @return The number of points in the tree.
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Returns the {@link KDPoint} located at the <b>root</b> of the tree. Added primarily for debugging purposes.
+     * @return A copy of the {@link KDPoint} at the root of the tree, or null if the tree is empty.
+     */
+    public KDPoint getRoot() {
+        return root == null ? null : new KDPoint(root.getPoint());
+    }
+}
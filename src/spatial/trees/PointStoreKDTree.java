@@ -0,0 +1,268 @@
+package spatial.trees;
+
+import spatial.kdpoint.KDPoint;
+import spatial.kdpoint.PointStore;
+import spatial.knnutils.BoundedQueue;
+import spatial.knnutils.HeapBoundedPriorityQueue;
+import spatial.knnutils.NNData;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+
+/**
+ * <p>{@link PointStoreKDTree} is a <em>K</em>-D Tree with the exact same behavior as {@link KDTree}, but whose
+ * points live in a {@link PointStore} instead of individual {@link KDPoint} objects. There are no node objects
+ * either: every tree node is identified by the id of the point it holds, and its children and height live in
+ * primitive arrays indexed by that id.</p>
+ *
+ * <p>A stored point therefore costs {@code 4k} bytes of coordinates plus 12 bytes of tree structure, instead of a
+ * {@link KDPoint}, its {@code int[]} and a {@link spatial.nodes.KDTreeNode}, and traversals read coordinates from
+ * one contiguous array rather than chasing three references per node. {@link KDPoint}s are only allocated for the
+ * results handed back to clients.</p>
+ *
+ * @see KDTree
+ * @see PointStore
+ */
+public class PointStoreKDTree implements SpatialDictionary, SpatialQuerySolver {
+
+    /**
+     * The id that stands for an empty subtree.
+     */
+    private static final int NIL = -1;
+
+    private final PointStore store;
+    private final int dims;
+    private int root;
+    private int count;
+    // Per-id tree structure; only meaningful for ids currently in the tree
+    private int[] left, right, height;
+
+    /**
+     * Default constructor constructs this with <em>k=2</em>.
+     * @see KDTree#DEFAULT_DIMS
+     */
+    public PointStoreKDTree() {
+        this(KDTree.DEFAULT_DIMS);
+    }
+
+    /**
+     * This constructor requires that the user provide the value for <em>k</em>.
+     * @param k The dimensionality of this.
+     * @throws RuntimeException if k&lt;=0.
+     */
+    public PointStoreKDTree(int k) {
+        if (k <= 0)
+            throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+        dims = k;
+        store = new PointStore(k);
+        root = NIL;
+        count = 0;
+        left = new int[0];
+        right = new int[0];
+        height = new int[0];
+    }
+
+    @Override
+    public void insert(KDPoint p) {
+        int id = store.add(p);
+        if (id >= left.length) {
+            int capacity = Math.max(store.idBound(), left.length * 2);
+            left = Arrays.copyOf(left, capacity);
+            right = Arrays.copyOf(right, capacity);
+            height = Arrays.copyOf(height, capacity);
+        }
+        left[id] = right[id] = NIL;
+        height[id] = 0;
+        root = insert(root, id, 0);
+        count++;
+    }
+
+    private int insert(int node, int id, int currDim) {
+        if (node == NIL)
+            return id;
+        int nextDim = (currDim + 1) % dims;
+        if (store.coord(id, currDim) < store.coord(node, currDim))
+            left[node] = insert(left[node], id, nextDim);
+        else
+            right[node] = insert(right[node], id, nextDim);
+        update(node);
+        return node;
+    }
+
+    @Override
+    public void delete(KDPoint p) {
+        int node = find(p);
+        if (node != NIL) {
+            root = delete(root, node, 0);
+            count--;
+        }
+    }
+
+    private int delete(int node, int target, int currDim) {
+        // Deletes the node with id target, which is known to be in the subtree of node
+        int nextDim = (currDim + 1) % dims;
+        if (node == target) {
+            if (left[node] == NIL && right[node] == NIL) {
+                store.remove(node);
+                return NIL;
+            }
+            if (right[node] == NIL) {
+                // Like KDTreeNode, move the left subtree to the right so that ties keep going right
+                right[node] = left[node];
+                left[node] = NIL;
+            }
+            // The node keeps its id but takes over the coordinates of its successor,
+            // whose own node is then deleted from the right subtree
+            int successor = findMin(right[node], currDim, nextDim);
+            store.copy(successor, node);
+            right[node] = delete(right[node], successor, nextDim);
+        } else if (store.coord(target, currDim) < store.coord(node, currDim)) {
+            left[node] = delete(left[node], target, nextDim);
+        } else {
+            right[node] = delete(right[node], target, nextDim);
+        }
+        update(node);
+        return node;
+    }
+
+    private int findMin(int node, int targetDim, int currDim) {
+        // Returns the id of a point with the lowest value in targetDim in this subtree
+        int nextDim = (currDim + 1) % dims;
+        if (currDim == targetDim)
+            return left[node] == NIL ? node : findMin(left[node], targetDim, nextDim);
+        int lowest = node;
+        if (left[node] != NIL) {
+            int l = findMin(left[node], targetDim, nextDim);
+            if (store.coord(l, targetDim) < store.coord(lowest, targetDim))
+                lowest = l;
+        }
+        if (right[node] != NIL) {
+            int r = findMin(right[node], targetDim, nextDim);
+            if (store.coord(r, targetDim) < store.coord(lowest, targetDim))
+                lowest = r;
+        }
+        return lowest;
+    }
+
+    private void update(int node) {
+        int lHeight = left[node] == NIL ? -1 : height[left[node]];
+        int rHeight = right[node] == NIL ? -1 : height[right[node]];
+        height[node] = Math.max(lHeight, rHeight) + 1;
+    }
+
+    @Override
+    public boolean search(KDPoint p) {
+        return find(p) != NIL;
+    }
+
+    private int find(KDPoint p) {
+        // Returns the id of the first node on p's search path that holds p, or NIL
+        int node = root, currDim = 0;
+        while (node != NIL) {
+            if (store.matches(node, p))
+                return node;
+            node = p.coords[currDim] < store.coord(node, currDim) ? left[node] : right[node];
+            currDim = (currDim + 1) % dims;
+        }
+        return NIL;
+    }
+
+    @Override
+    public Collection<KDPoint> range(KDPoint p, double range) {
+        LinkedList<KDPoint> pts = new LinkedList<>();
+        if (range >= 0)
+            range(root, p, pts, range, range * range, 0);
+        return pts;
+    }
+
+    private void range(int node, KDPoint anchor, Collection<KDPoint> results, double range, double rangeSquared,
+                       int currDim) {
+        if (node == NIL)
+            return;
+        int nextDim = (currDim + 1) % dims;
+        int split = store.coord(node, currDim);
+        if (anchor.coords[currDim] - range <= split)
+            range(left[node], anchor, results, range, rangeSquared, nextDim);
+        if (anchor.coords[currDim] + range >= split)
+            range(right[node], anchor, results, range, rangeSquared, nextDim);
+        if (store.distanceSquared(node, anchor) <= rangeSquared && !store.matches(node, anchor))
+            results.add(store.get(node));
+    }
+
+    @Override
+    public KDPoint nearestNeighbor(KDPoint p) {
+        // Track the id of the best guess and its squared distance, and only materialize it at the very end
+        NNData<Integer> n = new NNData<>(NIL, KDTree.INFTY);
+        nearestNeighbor(root, p, 0, n);
+        return n.getBestGuess() == NIL ? null : store.get(n.getBestGuess());
+    }
+
+    private void nearestNeighbor(int node, KDPoint anchor, int currDim, NNData<Integer> n) {
+        if (node == NIL)
+            return;
+        int nextDim = (currDim + 1) % dims;
+        double diff = (double) anchor.coords[currDim] - store.coord(node, currDim);
+        double dist = store.distanceSquared(node, anchor);
+        if ((dist < n.getBestDist() || n.getBestDist() < 0) && !store.matches(node, anchor))
+            n.update(node, dist);
+        boolean goLeft = anchor.coords[currDim] < store.coord(node, currDim);
+        nearestNeighbor(goLeft ? left[node] : right[node], anchor, nextDim, n);
+        if (diff * diff < n.getBestDist() || n.getBestDist() < 0)
+            nearestNeighbor(goLeft ? right[node] : left[node], anchor, nextDim, n);
+    }
+
+    @Override
+    public BoundedQueue<KDPoint> kNearestNeighbors(int k, KDPoint p) {
+        if (k <= 0)
+            throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+        BoundedQueue<KDPoint> queue = new HeapBoundedPriorityQueue<>(k);
+        kNearestNeighbors(root, k, p, queue, 0);
+        return queue;
+    }
+
+    private void kNearestNeighbors(int node, int k, KDPoint anchor, BoundedQueue<KDPoint> queue, int currDim) {
+        if (node == NIL)
+            return;
+        int nextDim = (currDim + 1) % dims;
+        double diff = (double) anchor.coords[currDim] - store.coord(node, currDim);
+        double dist = store.distanceSquared(node, anchor);
+        // Points are only materialized once they make it into the queue, prioritized by squared distance
+        if (dist < worstDistance(queue, k) && !store.matches(node, anchor))
+            queue.enqueue(store.get(node), dist);
+        boolean goLeft = anchor.coords[currDim] < store.coord(node, currDim);
+        kNearestNeighbors(goLeft ? left[node] : right[node], k, anchor, queue, nextDim);
+        if (diff * diff < worstDistance(queue, k))
+            kNearestNeighbors(goLeft ? right[node] : left[node], k, anchor, queue, nextDim);
+    }
+
+    private static double worstDistance(BoundedQueue<KDPoint> queue, int k) {
+        // Squared distance of the farthest neighbor; infinite until the queue fills up, so that we always enqueue
+        if (queue.size() < k)
+            return Double.POSITIVE_INFINITY;
+        return queue.worstPriority();
+    }
+
+    @Override
+    public int height() {
+        return root == NIL ? -1 : height[root];
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    @Override
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Returns the {@link KDPoint} located at the <b>root</b> of the tree. Added primarily for debugging purposes.
+     * @return A freshly materialized copy of the root's point, or null if the tree is empty.
+     */
+    public KDPoint getRoot() {
+        return root == NIL ? null : store.get(root);
+    }
+}
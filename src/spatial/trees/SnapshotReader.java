@@ -0,0 +1,88 @@
+package spatial.trees;
+
+import spatial.kdpoint.KDPoint;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * <p>{@link SnapshotReader} reads back the primitive values written by a {@link SnapshotWriter} from a
+ * {@link ReadableByteChannel}, refilling a direct {@link ByteBuffer} of {@link SnapshotWriter#BUFFER_SIZE} bytes
+ * from the channel whenever it runs dry, so that a tree can be restored in a single streaming pass.</p>
+ *
+ * <p>Since it reads ahead, a {@link SnapshotReader} may consume bytes of the channel past the end of the snapshot.
+ * The channel is not closed by the reader.</p>
+ *
+ * @see SnapshotWriter
+ */
+public final class SnapshotReader {
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+
+    /**
+     * Creates a {@link SnapshotReader} over the provided channel.
+     * @param channel The channel to read from.
+     */
+    public SnapshotReader(ReadableByteChannel channel) {
+        this.channel = channel;
+        buffer = ByteBuffer.allocateDirect(SnapshotWriter.BUFFER_SIZE);
+        buffer.limit(0); // Empty, until the first refill
+    }
+
+    /**
+     * Reads a byte written by {@link SnapshotWriter#writeByte(int)}.
+     * @return The byte read.
+     * @throws IOException if the channel cannot be read from, or has ended.
+     */
+    public byte readByte() throws IOException {
+        ensure(Byte.BYTES);
+        return buffer.get();
+    }
+
+    /**
+     * Reads an {@code int} written by {@link SnapshotWriter#writeInt(int)}.
+     * @return The {@code int} read.
+     * @throws IOException if the channel cannot be read from, or ends before the {@code int} does.
+     */
+    public int readInt() throws IOException {
+        ensure(Integer.BYTES);
+        return buffer.getInt();
+    }
+
+    /**
+     * Reads a {@code double} written by {@link SnapshotWriter#writeDouble(double)}.
+     * @return The {@code double} read.
+     * @throws IOException if the channel cannot be read from, or ends before the {@code double} does.
+     */
+    public double readDouble() throws IOException {
+        ensure(Double.BYTES);
+        return buffer.getDouble();
+    }
+
+    /**
+     * Reads the coordinates of a {@link KDPoint} written by {@link SnapshotWriter#writePoint(KDPoint)}.
+     * @param dims The dimensionality of the {@link KDPoint}.
+     * @return A new {@link KDPoint}.
+     * @throws IOException if the channel cannot be read from, or ends before the point does.
+     */
+    public KDPoint readPoint(int dims) throws IOException {
+        int[] coords = new int[dims];
+        for (int d = 0; d < dims; d++)
+            coords[d] = readInt();
+        return new KDPoint(coords);
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() >= bytes)
+            return;
+        buffer.compact();
+        while (buffer.position() < bytes) {
+            if (channel.read(buffer) < 0)
+                throw new EOFException("The snapshot ended unexpectedly.");
+        }
+        buffer.flip();
+    }
+}
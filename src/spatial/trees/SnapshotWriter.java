@@ -0,0 +1,95 @@
+package spatial.trees;
+
+import spatial.kdpoint.KDPoint;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * <p>{@link SnapshotWriter} writes the primitive values of a tree snapshot to a {@link WritableByteChannel}. Values
+ * are encoded big-endian into a direct {@link ByteBuffer}, which is only written to the channel when it fills up or
+ * when the snapshot is {@link #flush() flushed}, so a snapshot costs a system call every
+ * {@link #BUFFER_SIZE} bytes rather than one per value.</p>
+ *
+ * <p>The format of a snapshot is up to the tree that writes it: see {@link KDTree#writeSnapshot(WritableByteChannel)}
+ * and {@link PRQuadTree#writeSnapshot(WritableByteChannel)}.</p>
+ *
+ * @see SnapshotReader
+ */
+public final class SnapshotWriter {
+
+    /**
+     * The size of the buffer, in bytes.
+     */
+    public static final int BUFFER_SIZE = 1 << 16;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+
+    /**
+     * Creates a {@link SnapshotWriter} over the provided channel. The channel is not closed by the writer.
+     * @param channel The channel to write to.
+     */
+    public SnapshotWriter(WritableByteChannel channel) {
+        this.channel = channel;
+        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    /**
+     * Writes the lowest 8 bits of b.
+     * @param b The byte to write.
+     * @throws IOException if the channel cannot be written to.
+     */
+    public void writeByte(int b) throws IOException {
+        ensure(Byte.BYTES);
+        buffer.put((byte) b);
+    }
+
+    /**
+     * Writes an {@code int}.
+     * @param i The {@code int} to write.
+     * @throws IOException if the channel cannot be written to.
+     */
+    public void writeInt(int i) throws IOException {
+        ensure(Integer.BYTES);
+        buffer.putInt(i);
+    }
+
+    /**
+     * Writes a {@code double}.
+     * @param d The {@code double} to write.
+     * @throws IOException if the channel cannot be written to.
+     */
+    public void writeDouble(double d) throws IOException {
+        ensure(Double.BYTES);
+        buffer.putDouble(d);
+    }
+
+    /**
+     * Writes the coordinates of a {@link KDPoint}, but not its dimensionality, which the reader has to know.
+     * @param p The {@link KDPoint} to write.
+     * @throws IOException if the channel cannot be written to.
+     * @see SnapshotReader#readPoint(int)
+     */
+    public void writePoint(KDPoint p) throws IOException {
+        for (int coord : p.coords)
+            writeInt(coord);
+    }
+
+    /**
+     * Writes everything that is still buffered to the channel. A snapshot is only complete once it has been flushed.
+     * @throws IOException if the channel cannot be written to.
+     */
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes)
+            flush();
+    }
+}
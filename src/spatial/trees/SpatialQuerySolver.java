@@ -1,6 +1,6 @@
 package spatial.trees;
 import spatial.kdpoint.KDPoint;
-import spatial.knnutils.BoundedPriorityQueue;
+import spatial.knnutils.BoundedQueue;
 
 import java.util.Collection;
 
@@ -15,7 +15,7 @@ import java.util.Collection;
  * @author <a href="https://github.com/jasonfilippou">Jason Filippou</a>
  *
  * @see KDPoint
- * @see BoundedPriorityQueue
+ * @see BoundedQueue
  * @see SpatialDictionary
  */
 public interface SpatialQuerySolver {
@@ -49,11 +49,11 @@ public interface SpatialQuerySolver {
      * The {@link KDPoint}s are sorted in ascending order of euclideanDistance.
      * @param k A positive integer denoting the amount of neighbors to return.
      * @param p The query point.
-     * @return A {@link BoundedPriorityQueue} containing the k-nearest neighbors of p.
+     * @return A {@link BoundedQueue} containing the k-nearest neighbors of p.
      * This queue will be empty if the tree contains only p.
      * @throws RuntimeException If k&lt;=0.
      * @see KDPoint
-     * @see BoundedPriorityQueue
+     * @see BoundedQueue
      */
-    BoundedPriorityQueue<KDPoint> kNearestNeighbors(int k, KDPoint p);
+    BoundedQueue<KDPoint> kNearestNeighbors(int k, KDPoint p);
 }